@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram;
+
+import java.util.Objects;
+
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.stability.Unstable;
+
+/**
+ * A link from a diagram to a wiki entity, as recorded in the diagram link index.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Unstable
+public final class DiagramLink
+{
+    /**
+     * The ways a diagram can reference an entity.
+     */
+    public enum Kind
+    {
+        /**
+         * The link of a diagram cell.
+         */
+        LINK,
+
+        /**
+         * A link inside the label of a diagram cell.
+         */
+        LABEL,
+
+        /**
+         * A diagram or inline diagram macro referencing its diagram.
+         */
+        MACRO,
+
+        /**
+         * An embed diagram macro referencing the embedded diagram.
+         */
+        EMBED
+    }
+
+    private final EntityReference source;
+
+    private final EntityReference target;
+
+    private final String cellId;
+
+    private final Kind kind;
+
+    /**
+     * @param source the diagram holding the link, either a document or an inline diagram attachment
+     * @param target the linked entity
+     * @param cellId the id of the diagram cell holding the link, {@code null} for macros
+     * @param kind the kind of link
+     */
+    public DiagramLink(EntityReference source, EntityReference target, String cellId, Kind kind)
+    {
+        this.source = source;
+        this.target = target;
+        this.cellId = cellId;
+        this.kind = kind;
+    }
+
+    /**
+     * @return the diagram holding the link, either a document or an inline diagram attachment
+     */
+    public EntityReference getSource()
+    {
+        return this.source;
+    }
+
+    /**
+     * @return the linked entity
+     */
+    public EntityReference getTarget()
+    {
+        return this.target;
+    }
+
+    /**
+     * @return the id of the diagram cell holding the link, {@code null} for macros
+     */
+    public String getCellId()
+    {
+        return this.cellId;
+    }
+
+    /**
+     * @return the kind of link
+     */
+    public Kind getKind()
+    {
+        return this.kind;
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof DiagramLink)) {
+            return false;
+        }
+        DiagramLink other = (DiagramLink) object;
+        return Objects.equals(this.source, other.source) && Objects.equals(this.target, other.target)
+            && Objects.equals(this.cellId, other.cellId) && this.kind == other.kind;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(this.source, this.target, this.cellId, this.kind);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("DiagramLink{source=%s, target=%s, cellId=%s, kind=%s}", this.source, this.target,
+            this.cellId, this.kind);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.xwiki.rest.XWikiRestComponent;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Provides the links recorded by the diagram link index. Only the links from the diagrams that the current user can
+ * view are returned. Each link is returned as a JSON object with its source, target, cell id and kind.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Unstable
+@Path("/diagram/links")
+public interface DiagramLinksResources extends XWikiRestComponent
+{
+    /**
+     * @param documentReference a document holding diagrams or diagram macros
+     * @return 200 with the links from the diagrams and the diagram macros of the document
+     */
+    @GET
+    @Path("from/{documentReference}")
+    @Produces(MediaType.APPLICATION_JSON)
+    Response getLinks(@PathParam("documentReference") String documentReference);
+
+    /**
+     * @param documentReference a document
+     * @return 200 with the links from the diagrams to the document or to its attachments
+     */
+    @GET
+    @Path("to/{documentReference}")
+    @Produces(MediaType.APPLICATION_JSON)
+    Response getBacklinks(@PathParam("documentReference") String documentReference);
+
+    /**
+     * @param wiki the name of a wiki
+     * @return 200 with the links from the diagrams to the documents of the wiki that don't exist, or 500 if they could
+     *     not be computed
+     */
+    @GET
+    @Path("broken/{wiki}")
+    @Produces(MediaType.APPLICATION_JSON)
+    Response getBrokenLinks(@PathParam("wiki") String wiki);
+}
@@ -19,6 +19,7 @@
  */
 package com.xwiki.diagram.internal;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -29,7 +30,8 @@ import org.slf4j.Logger;
 import com.xpn.xwiki.util.AbstractXWikiRunnable;
 
 /**
- * Base class for diagram Runnable. It provides tools for working with diagramsQueue.
+ * Base class for diagram Runnable. It provides tools for working with diagramsQueue. The same runnable can be run by
+ * several threads, in which case they all take their entries from the same queue.
  * 
  * @version $Id$
  * @since 1.13.1
@@ -49,16 +51,56 @@ public abstract class AbstractDiagramRunnable extends AbstractXWikiRunnable
     @Inject
     private Logger logger;
 
+    @Inject
+    private DiagramQueueStore queueStore;
+
     /**
-     * Add entries to the thread's queue.
+     * Add entries to the thread's queue. The entries are also saved in the queue store, so they can be processed after
+     * a restart if they were not processed before.
      * 
      * @param queueEntry the entry to be added
      */
     public void addToQueue(DiagramQueueEntry queueEntry)
     {
+        if (queueEntry != STOP_RUNNABLE_ENTRY) {
+            this.queueStore.append(getQueueName(), queueEntry);
+        }
         this.diagramsQueue.add(queueEntry);
     }
 
+    /**
+     * Adds to the thread's queue the entries that were saved in the queue store but not processed before the last
+     * stop.
+     *
+     * @since 2.0.1
+     */
+    public void restorePendingEntries()
+    {
+        List<DiagramQueueEntry> pendingEntries = this.queueStore.loadPendingEntries(getQueueName());
+        if (!pendingEntries.isEmpty()) {
+            this.logger.info("Restoring [{}] pending entries of the diagram queue [{}].", pendingEntries.size(),
+                getQueueName());
+            this.diagramsQueue.addAll(pendingEntries);
+        }
+    }
+
+    /**
+     * Marks an entry as processed, so that it's not processed again after a restart.
+     *
+     * @param queueEntry the entry that was processed
+     * @since 2.0.1
+     */
+    protected void acknowledge(DiagramQueueEntry queueEntry)
+    {
+        this.queueStore.acknowledge(getQueueName(), queueEntry);
+    }
+
+    /**
+     * @return the name under which the entries of this runnable's queue are saved in the queue store
+     * @since 2.0.1
+     */
+    protected abstract String getQueueName();
+
     /**
      * Process new diagram entry of queue.
      * 
@@ -71,14 +113,28 @@ public abstract class AbstractDiagramRunnable extends AbstractXWikiRunnable
         try {
             queueEntry = this.diagramsQueue.take();
         } catch (InterruptedException e) {
+            // Only the interrupted thread stops, the other threads sharing the queue keep processing its entries.
             logger.warn("Diagrams update thread has been interrupted", e);
-            queueEntry = STOP_RUNNABLE_ENTRY;
+            return STOP_RUNNABLE_ENTRY;
         }
 
         if (queueEntry == STOP_RUNNABLE_ENTRY) {
-            this.diagramsQueue.clear();
+            // The pending entries are kept in the queue store. The stop entries of the other threads sharing the queue
+            // are kept so that each of them stops.
+            this.diagramsQueue.removeIf(entry -> entry != STOP_RUNNABLE_ENTRY);
         }
 
         return queueEntry;
     }
+
+    /**
+     * Removes the stop entries that were not taken by any thread, for instance because a thread had already stopped
+     * after being interrupted, so that the threads started later don't stop right away.
+     *
+     * @since 2.0.1
+     */
+    public void removeStopEntries()
+    {
+        this.diagramsQueue.removeIf(entry -> entry == STOP_RUNNABLE_ENTRY);
+    }
 }
@@ -19,11 +19,8 @@
  */
 package com.xwiki.diagram.internal;
 
-import java.io.IOException;
 import java.io.InputStream;
 
-import org.apache.commons.io.IOUtils;
-
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
@@ -43,19 +40,17 @@ public final class AttachmentUtils
     /**
      * @param attachment attachment for which we want the content
      * @param context current context
-     * @return the content of an attachment as a string.
+     * @return a stream over the content of the attachment, to be closed by the caller, or {@code null} if the content
+     *     is not available
+     * @since 2.0.1
      */
-    public static String getContentAsString(XWikiAttachment attachment, XWikiContext context)
+    public static InputStream getContentInputStream(XWikiAttachment attachment, XWikiContext context)
     {
         try {
             // the input stream can be null if the attachment has been deleted for example.
-            InputStream contentInputStream = attachment.getContentInputStream(context);
-            if (contentInputStream != null) {
-                return new String(IOUtils.toByteArray(contentInputStream));
-            }
-        } catch (IOException | XWikiException ex) {
-
+            return attachment.getContentInputStream(context);
+        } catch (XWikiException ex) {
+            return null;
         }
-        return "";
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Configuration properties of the Diagram application, read from {@code xwiki.properties}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramConfiguration.class)
+@Singleton
+public class DiagramConfiguration
+{
+    private static final String PREFIX = "diagram.";
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * @return the number of threads that update the links inside diagrams after a rename, 2 by default
+     */
+    public int getLinksUpdateThreadCount()
+    {
+        return Math.max(1, this.configurationSource.getProperty(PREFIX + "linksUpdateThreadCount", 2));
+    }
+
+    /**
+     * @return the maximum number of diagram link sets kept in memory by the links cache, 1000 by default
+     */
+    public int getLinksCacheSize()
+    {
+        return Math.max(1, this.configurationSource.getProperty(PREFIX + "linksCacheSize", 1000));
+    }
+
+    /**
+     * @return the maximum number of serialized and resolved references kept in memory by the indexing, 10000 by
+     *     default
+     */
+    public int getReferenceCacheSize()
+    {
+        return Math.max(1, this.configurationSource.getProperty(PREFIX + "referenceCacheSize", 10000));
+    }
+
+    /**
+     * @return the number of threads that parse the inline diagrams of a document while it is indexed, by default the
+     *     number of available processors, up to 4
+     */
+    public int getIndexingThreadCount()
+    {
+        int defaultCount = Math.min(4, Runtime.getRuntime().availableProcessors());
+        return Math.max(1, this.configurationSource.getProperty(PREFIX + "indexingThreadCount", defaultCount));
+    }
+
+    /**
+     * @return the number of threads that parse the diagrams while the diagram links are rebuilt, by default the same
+     *     as {@link #getIndexingThreadCount()}
+     */
+    public int getReindexThreadCount()
+    {
+        return Math.max(1, this.configurationSource.getProperty(PREFIX + "reindexThreadCount",
+            getIndexingThreadCount()));
+    }
+
+    /**
+     * @return the number of documents processed together while the diagram links are rebuilt, 50 by default
+     */
+    public int getReindexBatchSize()
+    {
+        return Math.max(1, this.configurationSource.getProperty(PREFIX + "reindexBatchSize", 50));
+    }
+
+    /**
+     * @return the number of milliseconds to wait between two batches of documents while the diagram links are
+     *     rebuilt, in order to limit the load put on the database and on the attachment store, 0 by default
+     */
+    public long getReindexBatchDelay()
+    {
+        return Math.max(0L, this.configurationSource.getProperty(PREFIX + "reindexBatchDelay", 0L));
+    }
+}
@@ -19,24 +19,30 @@
  */
 package com.xwiki.diagram.internal;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.slf4j.Logger;
+import org.xml.sax.SAXException;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
 
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xwiki.diagram.internal.handlers.DiagramContentHandler;
 
 /**
- * Updates content and attachment of a diagram after the rename of backlinked pages.
+ * Updates content and attachment of a diagram after the rename of backlinked pages. This runnable is executed by a pool
+ * of threads, so the updates of the same backlink document are serialized using a set of striped locks.
  *
  * @version $Id$
  * @since 1.13
@@ -45,6 +51,14 @@ import com.xwiki.diagram.internal.handlers.DiagramContentHandler;
 @Singleton
 public class DiagramLinksRunnable extends AbstractDiagramRunnable
 {
+    private static final int DOCUMENT_LOCK_COUNT = 64;
+
+    /**
+     * Locks used to make sure that two threads never update the same backlink document at once. The documents are
+     * spread over a fixed number of locks so that we don't have to keep a lock for each document.
+     */
+    private final Lock[] documentLocks = createDocumentLocks();
+
     @Inject
     private Logger logger;
 
@@ -57,6 +71,12 @@ public class DiagramLinksRunnable extends AbstractDiagramRunnable
     @Inject
     private DiagramRenameStateManager renameStateManager;
 
+    @Override
+    protected String getQueueName()
+    {
+        return "links";
+    }
+
     /**
      * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
      */
@@ -76,18 +96,15 @@ public class DiagramLinksRunnable extends AbstractDiagramRunnable
                 // Always decrement so the map is never kept alive by a stuck counter, and trigger cleanup in case
                 // the job already finished.
                 renameStateManager.decrementAndCleanup(queueEntry);
+                acknowledge(queueEntry);
             }
         }
     }
 
     private void processEntry(DiagramQueueEntry queueEntry)
     {
-
         XWikiContext context = contextProvider.get();
-        DocumentReference originalDocRef = queueEntry.originalDocRef;
-        DocumentReference currentDocRef = queueEntry.currentDocRef;
-        List<DocumentReference> backlinks = queueEntry.backlinks;
-        for (DocumentReference backlinkRef : backlinks) {
+        for (DocumentReference backlinkRef : queueEntry.backlinks) {
             logger.info("Handling backlink [{}]", backlinkRef);
             try {
                 // If this backlink was also part of the same rename job, it may have already been moved. Resolve it to
@@ -98,30 +115,46 @@ public class DiagramLinksRunnable extends AbstractDiagramRunnable
                     logger.info("Backlink [{}] was also renamed, resolving to [{}]", backlinkRef, resolvedRef);
                 }
 
-                XWikiDocument backlinkDoc = context.getWiki().getDocument(resolvedRef, context).clone();
-
-                if (backlinkDoc.isNew()) {
-                    logger.warn("Could not load backlink document [{}], skipping", resolvedRef);
-                    continue;
-                }
-
-                if (backlinkDoc.getXObject(DiagramContentHandler.DIAGRAM_CLASS) != null) {
-                    logger.info("The backlink was a standalone diagram.");
-                    contentHandler.updateDiagramContent(backlinkDoc, originalDocRef, currentDocRef, context);
-                    contentHandler.updateAttachment(backlinkDoc, originalDocRef, currentDocRef);
-                }
-
-                List<XWikiAttachment> attachments = backlinkDoc.getAttachmentList().stream()
-                    .filter(attachment -> attachment.getFilename().endsWith("diagram" + ".xml"))
-                    .collect(Collectors.toList());
-                if (!attachments.isEmpty()) {
-                    logger.info("The backlink was an inline diagram.");
-                    contentHandler.updateDiagramContent(attachments, backlinkDoc, originalDocRef, currentDocRef,
-                        context);
+                Lock documentLock = getDocumentLock(resolvedRef);
+                documentLock.lock();
+                try {
+                    updateBacklink(resolvedRef, queueEntry.linkedRenames, context);
+                } finally {
+                    documentLock.unlock();
                 }
             } catch (Exception e) {
                 logger.warn("Error processing diagram links for entry [{}]", queueEntry, e);
             }
         }
     }
+
+    private void updateBacklink(DocumentReference backlinkRef, Map<DocumentReference, DocumentReference> renames,
+        XWikiContext context)
+        throws XWikiException, IOException, XMLStreamException, ParserConfigurationException, SAXException
+    {
+        // The document is loaded only after the lock is acquired so that we see the changes saved by other threads.
+        XWikiDocument backlinkDoc = context.getWiki().getDocument(backlinkRef, context).clone();
+
+        if (backlinkDoc.isNew()) {
+            logger.warn("Could not load backlink document [{}], skipping", backlinkRef);
+            return;
+        }
+
+        // All the renamed pages linked from this backlink are updated at once, so the document is saved only once.
+        contentHandler.updateBacklinkDocument(backlinkDoc, renames, context);
+    }
+
+    private static Lock[] createDocumentLocks()
+    {
+        Lock[] locks = new Lock[DOCUMENT_LOCK_COUNT];
+        for (int i = 0; i < DOCUMENT_LOCK_COUNT; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private Lock getDocumentLock(DocumentReference documentReference)
+    {
+        return this.documentLocks[Math.floorMod(documentReference.hashCode(), DOCUMENT_LOCK_COUNT)];
+    }
 }
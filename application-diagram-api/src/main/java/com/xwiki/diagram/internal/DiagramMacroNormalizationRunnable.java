@@ -0,0 +1,255 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.validation.EntityNameValidationConfiguration;
+import org.xwiki.model.validation.EntityNameValidationManager;
+import org.xwiki.query.QueryException;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.MacroBlockMatcher;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.internal.handlers.DiagramReferenceCache;
+
+/**
+ * Updates in the background the references of the diagram macros that don't respect the current name strategy, or that
+ * don't have a reference at all. The Solr indexing only detects these macros, so that it stays read-only, and schedules
+ * their document here. The entries of the queue have the document to normalize as their only backlink and no renames.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramMacroNormalizationRunnable.class)
+@Singleton
+public class DiagramMacroNormalizationRunnable extends AbstractDiagramRunnable
+{
+    private static final String REFERENCE = "reference";
+
+    private static final String DEFAULT_REFERENCE = "Diagram";
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private DiagramReferenceCache referenceCache;
+
+    @Inject
+    private EntityNameValidationManager entityNameValidationManager;
+
+    @Inject
+    private EntityNameValidationConfiguration entityNameValidationConfiguration;
+
+    @Inject
+    private DocumentExistenceChecker existenceChecker;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The documents waiting in the queue, so that a document indexed several times is normalized only once.
+     */
+    private final Set<DocumentReference> scheduledDocuments = ConcurrentHashMap.newKeySet();
+
+    @Override
+    protected String getQueueName()
+    {
+        return "macroNormalization";
+    }
+
+    /**
+     * Checks if {@link #normalize(XWikiDocument, XWikiContext)} would update a document, so that the documents that
+     * can't be updated are not scheduled again each time they are indexed.
+     *
+     * @param documentReference the document holding the macros
+     * @param macroBlocks the diagram macros of the document
+     * @return {@code true} if any of the macros has no reference, or a reference that doesn't respect the current
+     *     name strategy, can be transformed and targets a diagram that doesn't exist, {@code false} otherwise
+     */
+    public boolean needsNormalization(DocumentReference documentReference, List<Block> macroBlocks)
+    {
+        List<DocumentReference> transformableReferences = new ArrayList<>();
+        for (Block macroBlock : macroBlocks) {
+            String referenceName = macroBlock.getParameter(REFERENCE);
+            if (referenceName == null) {
+                return true;
+            } else if (!isValid(referenceName) && !referenceName.equals(transformName(referenceName))) {
+                transformableReferences.add(this.referenceCache.resolveDocument(referenceName, documentReference));
+            }
+        }
+        if (transformableReferences.isEmpty()) {
+            return false;
+        }
+
+        // The references of the existing diagrams are kept for backwards compatibility.
+        try {
+            return !this.existenceChecker.getExistingDocuments(transformableReferences)
+                .containsAll(transformableReferences);
+        } catch (QueryException e) {
+            this.logger.warn("Failed to check the existence of the diagrams referenced by [{}].", documentReference,
+                e);
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the normalization of the diagram macro references of a document.
+     *
+     * @param documentReference the document to normalize
+     */
+    public void schedule(DocumentReference documentReference)
+    {
+        if (this.scheduledDocuments.add(documentReference)) {
+            addToQueue(
+                new DiagramQueueEntry(documentReference, Collections.emptyMap(), null, Collections.emptyMap()));
+        }
+    }
+
+    @Override
+    public void runInternal()
+    {
+        while (!Thread.interrupted()) {
+            DiagramQueueEntry queueEntry = getNextDiagramQueueEntry();
+
+            if (queueEntry == STOP_RUNNABLE_ENTRY) {
+                break;
+            }
+
+            XWikiContext xcontext = contextProvider.get();
+            try {
+                for (DocumentReference documentReference : queueEntry.backlinks) {
+                    this.scheduledDocuments.remove(documentReference);
+                    XWikiDocument document = xcontext.getWiki().getDocument(documentReference, xcontext).clone();
+                    normalize(document, xcontext);
+                }
+            } catch (XWikiException | QueryException e) {
+                logger.warn("Failed to update the diagram macro references of [{}] to respect the name strategy.",
+                    queueEntry.backlinks, e);
+            } finally {
+                acknowledge(queueEntry);
+            }
+        }
+    }
+
+    /**
+     * Checks and updates the references of all the diagram macro calls to make sure that all of them respect the
+     * current name strategy. The existence of the referenced diagrams is checked with a single query per wiki.
+     *
+     * @param document document with all the macro calls
+     * @param xcontext the XWiki context
+     * @return true if any reference was invalid and has been updated, false otherwise
+     * @throws XWikiException if saving the document fails
+     * @throws QueryException if checking the existence of the diagrams fails
+     */
+    public boolean normalize(XWikiDocument document, XWikiContext xcontext) throws XWikiException, QueryException
+    {
+        XDOM xdom = document.getXDOM();
+        List<Block> macroBlocks = xdom.getBlocks(new MacroBlockMatcher("diagram"), Block.Axes.CHILD);
+        if (macroBlocks.stream().map(macroBlock -> macroBlock.getParameter(REFERENCE))
+            .allMatch(referenceName -> referenceName != null && isValid(referenceName)))
+        {
+            return false;
+        }
+
+        List<DocumentReference> macroReferences = new ArrayList<>(macroBlocks.size());
+        for (Block macroBlock : macroBlocks) {
+            String referenceName = macroBlock.getParameter(REFERENCE);
+            macroReferences.add(this.referenceCache.resolveDocument(
+                referenceName == null ? DEFAULT_REFERENCE : referenceName, document.getDocumentReference()));
+        }
+        Set<DocumentReference> existingDiagrams = this.existenceChecker.getExistingDocuments(macroReferences);
+
+        boolean modified = false;
+        for (int i = 0; i < macroBlocks.size(); i++) {
+            Block macroBlock = macroBlocks.get(i);
+            boolean addDefaultValue = (macroBlock.getParameter(REFERENCE) == null);
+            String referenceName = addDefaultValue ? DEFAULT_REFERENCE : macroBlock.getParameter(REFERENCE);
+            // For backwards compatibility we check if the page already exists so we won't modify it.
+            if (!existingDiagrams.contains(macroReferences.get(i))) {
+                // First we check if the name is valid in the current naming strategy.
+                boolean isValid = this.isValid(referenceName);
+                // If the name is valid then we can use it, otherwise we transform the name in a valid
+                // one and update the macro block. If the macro reference is empty we also update it with the
+                // right reference.
+                if (!isValid || addDefaultValue) {
+                    String transformedName = this.transformName(referenceName);
+                    logger.debug("The reference [{}] was updated to [{}] to respect the current name strategy. "
+                        + "Document: [{}]", referenceName, transformedName, document.getDocumentReference());
+                    macroBlock.setParameter(REFERENCE, transformedName);
+                    modified = true;
+                }
+            } else if (addDefaultValue) {
+                // If the page already exists, but the macro parameter is empty we should still add a value to it
+                // because when we try to move it will fail otherwise.
+                macroBlock.setParameter(REFERENCE, referenceName);
+                modified = true;
+            }
+        }
+        if (modified) {
+            document.setContent(xdom);
+            xcontext.getWiki()
+                .saveDocument(document, "Updated diagram macro references to respect the name strategy.", xcontext);
+        }
+        return modified;
+    }
+
+    private String transformName(String name)
+    {
+        // this.entityNameValidationConfiguration.useTransformation() is a property that MUST be set by the user in the
+        // Administration -> Editing -> Name Strategies -> transform names automatically, if the property is disabled
+        // the code will always return the original name and not the transformed one.
+        if (this.entityNameValidationConfiguration.useTransformation()
+            && this.entityNameValidationManager.getEntityReferenceNameStrategy() != null)
+        {
+            return this.entityNameValidationManager.getEntityReferenceNameStrategy().transform(name);
+        } else {
+            return name;
+        }
+    }
+
+    private boolean isValid(String name)
+    {
+        // this.entityNameValidationConfiguration.useValidation() is a property that MUST be set by the user in the
+        // Administration -> Editing -> Name Strategies -> validate names before saving, if the property is disabled
+        // this code will always return false.
+        if (this.entityNameValidationConfiguration.useValidation()
+            && this.entityNameValidationManager.getEntityReferenceNameStrategy() != null)
+        {
+            return this.entityNameValidationManager.getEntityReferenceNameStrategy().isValid(name);
+        } else {
+            return true;
+        }
+    }
+}
@@ -19,7 +19,9 @@
  */
 package com.xwiki.diagram.internal;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -69,6 +71,12 @@ public class DiagramMacroRunnable extends AbstractDiagramRunnable
     @Inject
     private DiagramRenameStateManager renameStateManager;
 
+    @Override
+    protected String getQueueName()
+    {
+        return "macro";
+    }
+
     /**
      * @see com.xpn.xwiki.util.AbstractXWikiRunnable#runInternal()
      */
@@ -83,18 +91,18 @@ public class DiagramMacroRunnable extends AbstractDiagramRunnable
             }
 
             XWikiContext xcontext = contextProvider.get();
-            DocumentReference originalDocRef = queueEntry.originalDocRef;
-            DocumentReference currentDocRef = queueEntry.currentDocRef;
 
             try {
-                // We need to take backlinks from the original document because at this step they are not loaded on
-                // the new document.
-                List<DocumentReference> backlinks = queueEntry.backlinks;
-
-                for (DocumentReference backlinkDocRef : backlinks) {
-                    XWikiDocument backlinkDoc = xcontext.getWiki().getDocument(backlinkDocRef, xcontext).clone();
-
-                    updateDiagramMacrosReferences(backlinkDoc, currentDocRef, originalDocRef, xcontext);
+                // The entries are grouped by backlink, so each page that includes renamed diagrams is parsed and
+                // saved only once per job.
+                for (DocumentReference backlinkDocRef : queueEntry.backlinks) {
+                    // The backlinks were taken from the original documents, so they may have been moved by the same
+                    // rename job.
+                    DocumentReference resolvedDocRef =
+                        queueEntry.renameMap.getOrDefault(backlinkDocRef, backlinkDocRef);
+                    XWikiDocument backlinkDoc = xcontext.getWiki().getDocument(resolvedDocRef, xcontext).clone();
+
+                    updateDiagramMacrosReferences(backlinkDoc, queueEntry.linkedRenames, xcontext);
                 }
             } catch (XWikiException e) {
                 logger.warn("Update diagram macro reference parameter thread interrupted", e);
@@ -102,6 +110,7 @@ public class DiagramMacroRunnable extends AbstractDiagramRunnable
                 // Always decrement so the map is never kept alive by a stuck counter, and trigger cleanup in case
                 // the job already finished.
                 renameStateManager.decrementAndCleanup(queueEntry);
+                acknowledge(queueEntry);
             }
         }
     }
@@ -117,23 +126,35 @@ public class DiagramMacroRunnable extends AbstractDiagramRunnable
      */
     public void updateDiagramMacrosReferences(XWikiDocument document, DocumentReference newReference,
         DocumentReference oldReference, XWikiContext xcontext) throws XWikiException
+    {
+        updateDiagramMacrosReferences(document, Collections.singletonMap(oldReference, newReference), xcontext);
+    }
+
+    /**
+     * Update for a page the references of all the diagram macros that include a renamed diagram. The content is parsed
+     * and the document is saved only once, whatever the number of renamed diagrams.
+     *
+     * @param document document that need to be updated with the new references
+     * @param renames the old→new references of the renamed diagrams
+     * @param xcontext the XWikiContext
+     * @throws XWikiException if updating the document fails
+     * @since 2.0.1
+     */
+    public void updateDiagramMacrosReferences(XWikiDocument document, Map<DocumentReference, DocumentReference> renames,
+        XWikiContext xcontext) throws XWikiException
     {
         XDOM backlinkDocXDOM = document.getXDOM();
         List<Block> macroBlocks = backlinkDocXDOM.getBlocks(new MacroBlockMatcher("diagram"), Axes.CHILD);
 
-        String newReferenceString =
-            compactEntityReferenceSerializer.serialize(newReference, document.getDocumentReference());
-        String oldReferenceString =
-            compactEntityReferenceSerializer.serialize(oldReference, document.getDocumentReference());
-
-        Boolean modified = false;
+        boolean modified = false;
         for (Block macroBlock : macroBlocks) {
             String rawReference = macroBlock.getParameter(MACRO_REFERENCE_PARAMETER);
-            String macroReference = compactEntityReferenceSerializer.serialize(resolver.resolve(rawReference,
-                document.getDocumentReference()), document.getDocumentReference());
+            DocumentReference macroReference = resolver.resolve(rawReference, document.getDocumentReference());
+            DocumentReference newReference = renames.get(macroReference);
 
-            if (!macroReference.equals(newReferenceString) && macroReference.equals(oldReferenceString)) {
-                macroBlock.setParameter(MACRO_REFERENCE_PARAMETER, newReferenceString);
+            if (newReference != null && !newReference.equals(macroReference)) {
+                macroBlock.setParameter(MACRO_REFERENCE_PARAMETER,
+                    compactEntityReferenceSerializer.serialize(newReference, document.getDocumentReference()));
                 modified = true;
             }
         }
@@ -19,6 +19,7 @@
  */
 package com.xwiki.diagram.internal;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -62,6 +63,15 @@ public class DiagramQueueEntry
      * @since 2.0
      */
     public final Map<DocumentReference, DocumentReference> renameMap;
+
+    /**
+     * The renames (old DocumentReference -> new DocumentReference) that have to be applied on the backlinks of this
+     * entry. When the entries of a rename job are grouped by backlink, this holds every renamed page that is linked
+     * from that backlink, so the backlink is updated and saved only once.
+     * @since 2.0.1
+     */
+    public final Map<DocumentReference, DocumentReference> linkedRenames;
+
     /**
      * Constructor.
      * 
@@ -80,6 +90,28 @@ public class DiagramQueueEntry
         this.backlinks = backlinks;
         this.jobID = jobID;
         this.renameMap = renameMap;
+        this.linkedRenames = originalDocRef != null ? Collections.singletonMap(originalDocRef, currentDocRef)
+            : Collections.emptyMap();
+    }
+
+    /**
+     * Constructor for an entry that groups all the renames of a job that affect the same backlink.
+     *
+     * @param backlink the document that links to the renamed pages
+     * @param linkedRenames the old→new references of the renamed pages linked from the backlink
+     * @param jobID the rename job ID
+     * @param renameMap the shared old→new reference map for the job
+     * @since 2.0.1
+     */
+    public DiagramQueueEntry(DocumentReference backlink, Map<DocumentReference, DocumentReference> linkedRenames,
+        String jobID, Map<DocumentReference, DocumentReference> renameMap)
+    {
+        this.originalDocRef = null;
+        this.currentDocRef = null;
+        this.backlinks = Collections.singletonList(backlink);
+        this.jobID = jobID;
+        this.renameMap = renameMap;
+        this.linkedRenames = linkedRenames;
     }
 
     /**
@@ -89,7 +121,7 @@ public class DiagramQueueEntry
     public String toString()
     {
         // Used for debug
-        return String.format("DiagramQueueEntry{original=%s, current=%s, backlinks=%s, jobId=%s}",
-            originalDocRef, currentDocRef, backlinks, jobID);
+        return String.format("DiagramQueueEntry{original=%s, current=%s, backlinks=%s, linkedRenames=%s, jobId=%s}",
+            originalDocRef, currentDocRef, backlinks, linkedRenames, jobID);
     }
 }
@@ -0,0 +1,344 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Keeps the entries of the diagram queues in append-only journal files, stored in the permanent directory, so that the
+ * link and macro updates that were not processed yet are not lost when XWiki is restarted in the middle of a rename
+ * job. Each entry is written when it is added to a queue and acknowledged once it has been processed; the entries
+ * that are still pending are replayed when the diagram threads are started again.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramQueueStore.class)
+@Singleton
+public class DiagramQueueStore implements Disposable
+{
+    private static final String ADD = "A";
+
+    private static final String ACKNOWLEDGE = "K";
+
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private static final String LIST_SEPARATOR = ",";
+
+    private static final String PAIR_SEPARATOR = "=";
+
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+
+    /**
+     * The journal of a queue. Each line is either an added entry, with its sequence number, or the acknowledgment of
+     * the entry with the given sequence number.
+     */
+    private final class Journal
+    {
+        private final File file;
+
+        private final Map<DiagramQueueEntry, Long> pendingEntries = new IdentityHashMap<>();
+
+        private Writer writer;
+
+        private long sequence;
+
+        Journal(File file)
+        {
+            this.file = file;
+        }
+
+        synchronized List<DiagramQueueEntry> load() throws IOException
+        {
+            Map<Long, String> pendingLines = new LinkedHashMap<>();
+            if (this.file.exists()) {
+                try (BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        readLine(line, pendingLines);
+                    }
+                }
+            }
+
+            // Compact the journal so that it contains only the pending entries.
+            closeWriter();
+            this.file.getParentFile().mkdirs();
+            this.writer = Files.newBufferedWriter(this.file.toPath(), StandardCharsets.UTF_8);
+            this.pendingEntries.clear();
+            this.sequence = 0;
+            List<DiagramQueueEntry> entries = new ArrayList<>(pendingLines.size());
+            for (String line : pendingLines.values()) {
+                try {
+                    DiagramQueueEntry entry = deserialize(line);
+                    write(entry, line);
+                    entries.add(entry);
+                } catch (RuntimeException e) {
+                    logger.warn("Skipping invalid diagram queue journal entry [{}] from [{}]", line, this.file, e);
+                }
+            }
+            this.writer.flush();
+            return entries;
+        }
+
+        private void readLine(String line, Map<Long, String> pendingLines)
+        {
+            String[] fields = line.split(FIELD_SEPARATOR, 3);
+            try {
+                if (ADD.equals(fields[0]) && fields.length == 3) {
+                    pendingLines.put(Long.valueOf(fields[1]), fields[2]);
+                } else if (ACKNOWLEDGE.equals(fields[0]) && fields.length > 1) {
+                    pendingLines.remove(Long.valueOf(fields[1]));
+                }
+            } catch (NumberFormatException e) {
+                // The last line can be incomplete if XWiki was stopped while it was written.
+                logger.warn("Skipping invalid diagram queue journal line [{}] from [{}]", line, this.file);
+            }
+        }
+
+        synchronized void append(DiagramQueueEntry entry) throws IOException
+        {
+            write(entry, serialize(entry));
+            this.writer.flush();
+        }
+
+        synchronized void acknowledge(DiagramQueueEntry entry) throws IOException
+        {
+            Long entrySequence = this.pendingEntries.remove(entry);
+            if (entrySequence != null) {
+                if (this.pendingEntries.isEmpty()) {
+                    // Nothing is pending anymore, so we can start a new journal.
+                    closeWriter();
+                    this.writer = Files.newBufferedWriter(this.file.toPath(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                } else {
+                    this.writer.write(ACKNOWLEDGE + FIELD_SEPARATOR + entrySequence + '\n');
+                    this.writer.flush();
+                }
+            }
+        }
+
+        synchronized void closeWriter() throws IOException
+        {
+            if (this.writer != null) {
+                this.writer.close();
+                this.writer = null;
+            }
+        }
+
+        private void write(DiagramQueueEntry entry, String serializedEntry) throws IOException
+        {
+            if (this.writer == null) {
+                this.file.getParentFile().mkdirs();
+                this.writer = Files.newBufferedWriter(this.file.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            long entrySequence = ++this.sequence;
+            this.writer.write(ADD + FIELD_SEPARATOR + entrySequence + FIELD_SEPARATOR + serializedEntry + '\n');
+            this.pendingEntries.put(entry, entrySequence);
+        }
+    }
+
+    /**
+     * Loads the entries of a queue that were not acknowledged before the last stop.
+     *
+     * @param queueName the name of the queue
+     * @return the pending entries, in the order they were added
+     */
+    public List<DiagramQueueEntry> loadPendingEntries(String queueName)
+    {
+        try {
+            return getJournal(queueName).load();
+        } catch (IOException e) {
+            this.logger.error("Failed to load the pending entries of the diagram queue [{}].", queueName, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Records a new entry of a queue.
+     *
+     * @param queueName the name of the queue
+     * @param entry the entry that is added to the queue
+     */
+    public void append(String queueName, DiagramQueueEntry entry)
+    {
+        try {
+            getJournal(queueName).append(entry);
+        } catch (IOException e) {
+            this.logger.warn("Failed to save the entry [{}] of the diagram queue [{}]. It will be lost if XWiki is "
+                + "restarted before it is processed.", entry, queueName, e);
+        }
+    }
+
+    /**
+     * Records that an entry of a queue has been processed and must not be replayed.
+     *
+     * @param queueName the name of the queue
+     * @param entry the entry that has been processed
+     */
+    public void acknowledge(String queueName, DiagramQueueEntry entry)
+    {
+        try {
+            getJournal(queueName).acknowledge(entry);
+        } catch (IOException e) {
+            this.logger.warn("Failed to acknowledge the entry [{}] of the diagram queue [{}].", entry, queueName, e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        for (Journal journal : this.journals.values()) {
+            try {
+                journal.closeWriter();
+            } catch (IOException e) {
+                this.logger.warn("Failed to close the diagram queue journal [{}].", journal.file, e);
+            }
+        }
+    }
+
+    private Journal getJournal(String queueName)
+    {
+        return this.journals.computeIfAbsent(queueName, key -> new Journal(
+            new File(this.environment.getPermanentDirectory(), "diagram/queues/" + key + JOURNAL_EXTENSION)));
+    }
+
+    /**
+     * Serializes an entry on a single line. Only the part of the job's rename map that concerns the backlinks of the
+     * entry is kept, since it's the only part used when the entry is processed.
+     */
+    private String serialize(DiagramQueueEntry entry)
+    {
+        Map<DocumentReference, DocumentReference> renamedBacklinks = new LinkedHashMap<>();
+        for (DocumentReference backlink : entry.backlinks) {
+            DocumentReference renamedBacklink = entry.renameMap.get(backlink);
+            if (renamedBacklink != null) {
+                renamedBacklinks.put(backlink, renamedBacklink);
+            }
+        }
+
+        List<String> backlinks = new ArrayList<>(entry.backlinks.size());
+        entry.backlinks.forEach(backlink -> backlinks.add(serialize(backlink)));
+
+        return String.join(FIELD_SEPARATOR, encode(entry.jobID), serialize(entry.originalDocRef),
+            serialize(entry.currentDocRef), String.join(LIST_SEPARATOR, backlinks), serialize(entry.linkedRenames),
+            serialize(renamedBacklinks));
+    }
+
+    private String serialize(Map<DocumentReference, DocumentReference> references)
+    {
+        List<String> pairs = new ArrayList<>(references.size());
+        references.forEach((key, value) -> pairs.add(serialize(key) + PAIR_SEPARATOR + serialize(value)));
+        return String.join(LIST_SEPARATOR, pairs);
+    }
+
+    private String serialize(DocumentReference reference)
+    {
+        return reference != null ? encode(this.serializer.serialize(reference)) : "";
+    }
+
+    private DiagramQueueEntry deserialize(String line)
+    {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        String jobID = decode(fields[0]);
+        DocumentReference originalDocRef = deserializeReference(fields[1]);
+        DocumentReference currentDocRef = deserializeReference(fields[2]);
+        List<DocumentReference> backlinks = new ArrayList<>();
+        for (String backlink : StringUtils.split(fields[3], LIST_SEPARATOR)) {
+            backlinks.add(deserializeReference(backlink));
+        }
+        Map<DocumentReference, DocumentReference> linkedRenames = deserializeMap(fields[4]);
+        Map<DocumentReference, DocumentReference> renameMap = new ConcurrentHashMap<>(deserializeMap(fields[5]));
+
+        if (originalDocRef == null && backlinks.size() == 1) {
+            return new DiagramQueueEntry(backlinks.get(0), linkedRenames, jobID, renameMap);
+        }
+        return new DiagramQueueEntry(originalDocRef, currentDocRef, backlinks, jobID, renameMap);
+    }
+
+    private Map<DocumentReference, DocumentReference> deserializeMap(String field)
+    {
+        Map<DocumentReference, DocumentReference> references = new HashMap<>();
+        for (String pair : StringUtils.split(field, LIST_SEPARATOR)) {
+            String[] parts = pair.split(PAIR_SEPARATOR, 2);
+            references.put(deserializeReference(parts[0]), deserializeReference(parts[1]));
+        }
+        return references;
+    }
+
+    private DocumentReference deserializeReference(String field)
+    {
+        return field.isEmpty() ? null : this.resolver.resolve(decode(field));
+    }
+
+    private static String encode(String value)
+    {
+        // The encoded value doesn't contain any of the separators.
+        return value != null ? URLEncoder.encode(value, StandardCharsets.UTF_8) : "";
+    }
+
+    private static String decode(String value)
+    {
+        return value.isEmpty() ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
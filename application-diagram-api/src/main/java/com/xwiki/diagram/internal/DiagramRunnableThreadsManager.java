@@ -19,11 +19,16 @@
  */
 package com.xwiki.diagram.internal;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.rendering.block.Block;
 
 /**
  * Manages the state of the diagram runnable threads.
@@ -36,21 +41,33 @@ import org.xwiki.component.annotation.Component;
 public class DiagramRunnableThreadsManager
 {
     /**
-     * Thread that will handle updating diagram's content and attachment after a page rename.
+     * Threads that will handle updating diagram's content and attachment after a page rename. They share the queue of
+     * the diagram links runnable.
      */
-    private Thread diagramLinksThread;
+    private List<Thread> diagramLinksThreads;
 
     /**
      * Thread that will handle updating the reference of a diagram macro after a diagram rename.
      */
     private Thread diagramMacroThread;
 
+    /**
+     * Thread that will update the diagram macro references that don't respect the name strategy.
+     */
+    private Thread diagramMacroNormalizationThread;
+
     @Inject
     private DiagramLinksRunnable diagramLinksRunnable;
 
     @Inject
     private DiagramMacroRunnable diagramMacroRunnable;
 
+    @Inject
+    private DiagramMacroNormalizationRunnable diagramMacroNormalizationRunnable;
+
+    @Inject
+    private DiagramConfiguration configuration;
+
     @Inject
     private Logger logger;
 
@@ -59,7 +76,9 @@ public class DiagramRunnableThreadsManager
      */
     public void maybeStart()
     {
-        if (this.diagramLinksThread == null || this.diagramMacroThread == null) {
+        if (this.diagramLinksThreads == null || this.diagramMacroThread == null
+            || this.diagramMacroNormalizationThread == null)
+        {
             startThreads();
         }
     }
@@ -71,12 +90,25 @@ public class DiagramRunnableThreadsManager
      */
     public synchronized void startThreads()
     {
-        if (this.diagramLinksThread == null) {
-            this.diagramLinksThread = startThread(this.diagramLinksRunnable, "Update Diagram Links Thread");
+        if (this.diagramLinksThreads == null) {
+            // Process first the entries that were left over when XWiki was stopped.
+            this.diagramLinksRunnable.restorePendingEntries();
+            int threadCount = this.configuration.getLinksUpdateThreadCount();
+            List<Thread> threads = new ArrayList<>(threadCount);
+            for (int i = 1; i <= threadCount; i++) {
+                threads.add(startThread(this.diagramLinksRunnable, "Update Diagram Links Thread " + i));
+            }
+            this.diagramLinksThreads = threads;
         }
         if (this.diagramMacroThread == null) {
+            this.diagramMacroRunnable.restorePendingEntries();
             this.diagramMacroThread = startThread(this.diagramMacroRunnable, "Update Diagram Macro Thread");
         }
+        if (this.diagramMacroNormalizationThread == null) {
+            this.diagramMacroNormalizationRunnable.restorePendingEntries();
+            this.diagramMacroNormalizationThread =
+                startThread(this.diagramMacroNormalizationRunnable, "Normalize Diagram Macro References Thread");
+        }
     }
 
     /**
@@ -102,8 +134,9 @@ public class DiagramRunnableThreadsManager
     public void stopThreads()
     {
         try {
-            stopThread(this.diagramLinksThread, this.diagramLinksRunnable);
+            stopThreads(this.diagramLinksThreads, this.diagramLinksRunnable);
             stopThread(this.diagramMacroThread, this.diagramMacroRunnable);
+            stopThread(this.diagramMacroNormalizationThread, this.diagramMacroNormalizationRunnable);
         } catch (InterruptedException e) {
             logger.warn("Diagram backlinks update thread interrupted", e);
         }
@@ -121,11 +154,35 @@ public class DiagramRunnableThreadsManager
         if (diagramThread != null) {
             diagramRunnable.addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
             diagramThread.join();
+            diagramRunnable.removeStopEntries();
+        }
+    }
+
+    /**
+     * Actions for closing a group of threads that run the same runnable. Each thread takes its own stop entry from the
+     * shared queue.
+     *
+     * @param diagramThreads threads to be stopped
+     * @param diagramRunnable runnable object shared by the threads
+     * @throws InterruptedException if any thread has interrupted the current thread
+     * @since 2.0.1
+     */
+    public void stopThreads(List<Thread> diagramThreads, AbstractDiagramRunnable diagramRunnable)
+        throws InterruptedException
+    {
+        if (diagramThreads != null && !diagramThreads.isEmpty()) {
+            for (int i = 0; i < diagramThreads.size(); i++) {
+                diagramRunnable.addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
+            }
+            for (Thread diagramThread : diagramThreads) {
+                diagramThread.join();
+            }
+            diagramRunnable.removeStopEntries();
         }
     }
 
     /**
-     * Submits a queue entry for processing by the diagram links thread, which updates the links inside standalone
+     * Submits a queue entry for processing by the diagram links threads, which updates the links inside standalone
      * diagrams.
      *
      * @param queueEntry the entry to process
@@ -144,4 +201,27 @@ public class DiagramRunnableThreadsManager
     {
         diagramMacroRunnable.addToQueue(queueEntry);
     }
+
+    /**
+     * @param documentReference the document holding the macros
+     * @param macroBlocks the diagram macros of the document
+     * @return {@code true} if the reference of any of the macros has to be updated to respect the name strategy
+     * @since 2.0.1
+     */
+    public boolean needsMacroNormalization(DocumentReference documentReference, List<Block> macroBlocks)
+    {
+        return diagramMacroNormalizationRunnable.needsNormalization(documentReference, macroBlocks);
+    }
+
+    /**
+     * Schedules the update of the diagram macro references of a document that don't respect the name strategy.
+     *
+     * @param documentReference the document to update
+     * @since 2.0.1
+     */
+    public void submitMacroNormalization(DocumentReference documentReference)
+    {
+        maybeStart();
+        diagramMacroNormalizationRunnable.schedule(documentReference);
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * Checks the existence of many documents at once, with one query per wiki and per batch of names, instead of loading
+ * each document.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DocumentExistenceChecker.class)
+@Singleton
+public class DocumentExistenceChecker
+{
+    private static final int BATCH_SIZE = 500;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    /**
+     * @param references the documents to check, from any wiki
+     * @return the documents that exist among the given ones
+     * @throws QueryException if checking the existence of the documents fails
+     */
+    public Set<DocumentReference> getExistingDocuments(Collection<DocumentReference> references)
+        throws QueryException
+    {
+        Set<DocumentReference> existingDocuments = new HashSet<>();
+        Map<String, List<DocumentReference>> referencesByWiki = references.stream().distinct()
+            .collect(Collectors.groupingBy(reference -> reference.getWikiReference().getName()));
+        for (Map.Entry<String, List<DocumentReference>> wikiReferences : referencesByWiki.entrySet()) {
+            Map<String, DocumentReference> referencesByName = new HashMap<>();
+            wikiReferences.getValue()
+                .forEach(reference -> referencesByName.put(this.localSerializer.serialize(reference), reference));
+            List<String> allNames = new ArrayList<>(referencesByName.keySet());
+            for (int start = 0; start < allNames.size(); start += BATCH_SIZE) {
+                List<String> names =
+                    new ArrayList<>(allNames.subList(start, Math.min(start + BATCH_SIZE, allNames.size())));
+                Query query = this.queryManager.createQuery("where doc.fullName in (:names)", Query.HQL);
+                List<String> existingNames = query.setWiki(wikiReferences.getKey()).bindValue("names", names).execute();
+                for (String existingName : existingNames) {
+                    existingDocuments.add(referencesByName.get(existingName));
+                }
+            }
+        }
+        return existingDocuments;
+    }
+}
@@ -19,7 +19,11 @@
  */
 package com.xwiki.diagram.internal;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -27,6 +31,7 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.component.phase.Disposable;
@@ -85,8 +90,9 @@ public class PageRenameListener extends AbstractEventListener implements Disposa
     public PageRenameListener()
     {
         // The former event is responsible for handling the actual updates, while the latter is responsible for
-        // cleaning up the memory so we don't create leaks.
-        super(ROLE_HINT, new DocumentRenamingEvent(), new EntitiesRenamedEvent());
+        // cleaning up the memory so we don't create leaks. The application ready event is used to resume the updates
+        // that were not finished before the last restart.
+        super(ROLE_HINT, new DocumentRenamingEvent(), new EntitiesRenamedEvent(), new ApplicationReadyEvent());
     }
 
     @Override
@@ -95,6 +101,10 @@ public class PageRenameListener extends AbstractEventListener implements Disposa
 
         diagramRunnableThreadsManager.maybeStart();
 
+        if (event instanceof ApplicationReadyEvent) {
+            return;
+        }
+
         // When the job ends, every page has been moved and the rename map is complete: only now do we hand the
         // collected entries to the runnable threads, then mark the job finished and clean up if all entries are done.
         if (event instanceof EntitiesRenamedEvent) {
@@ -170,15 +180,39 @@ public class PageRenameListener extends AbstractEventListener implements Disposa
             return;
         }
 
-        state.pendingEntries.addAndGet(state.collectedMacroEntries.size() + state.collectedLinksEntries.size());
+        List<DiagramQueueEntry> macroEntries = groupEntriesByBacklink(jobId, state.collectedMacroEntries, state);
+        List<DiagramQueueEntry> linksEntries = groupEntriesByBacklink(jobId, state.collectedLinksEntries, state);
+        state.pendingEntries.addAndGet(macroEntries.size() + linksEntries.size());
 
+        macroEntries.forEach(diagramRunnableThreadsManager::submitDiagramMacroUpdate);
+        linksEntries.forEach(diagramRunnableThreadsManager::submitDiagramLinksUpdate);
+    }
+
+    /**
+     * Groups the collected entries by backlink document, so that each backlink is loaded, updated and saved only once
+     * per job, with all the renamed pages it links to or the renamed diagrams it includes.
+     *
+     * @param jobId the rename job ID
+     * @param collectedEntries the entries collected during the job
+     * @param state the state of the rename job
+     * @return one queue entry for each backlink document
+     */
+    private List<DiagramQueueEntry> groupEntriesByBacklink(String jobId, Queue<DiagramQueueEntry> collectedEntries,
+        JobRenameState state)
+    {
+        Map<DocumentReference, Map<DocumentReference, DocumentReference>> renamesByBacklink = new LinkedHashMap<>();
         DiagramQueueEntry queueEntry;
-        while ((queueEntry = state.collectedMacroEntries.poll()) != null) {
-            diagramRunnableThreadsManager.submitDiagramMacroUpdate(queueEntry);
-        }
-        while ((queueEntry = state.collectedLinksEntries.poll()) != null) {
-            diagramRunnableThreadsManager.submitDiagramLinksUpdate(queueEntry);
+        while ((queueEntry = collectedEntries.poll()) != null) {
+            for (DocumentReference backlink : queueEntry.backlinks) {
+                renamesByBacklink.computeIfAbsent(backlink, key -> new LinkedHashMap<>())
+                    .put(queueEntry.originalDocRef, queueEntry.currentDocRef);
+            }
         }
+
+        List<DiagramQueueEntry> groupedEntries = new ArrayList<>(renamesByBacklink.size());
+        renamesByBacklink.forEach((backlink, renames) -> groupedEntries
+            .add(new DiagramQueueEntry(backlink, renames, jobId, state.renameMap)));
+        return groupedEntries;
     }
 
     private String getCurrentJobId()
@@ -0,0 +1,218 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+
+/**
+ * Byte level Aho-Corasick automaton that checks if a content contains at least one of a set of patterns. It is used to
+ * quickly reject the diagrams that can't contain a link to a renamed page, before doing any XML or HTML parsing. The
+ * content is scanned only once, whatever the number of patterns, and without being decoded.
+ * <p>
+ * Instances are immutable once built and can be shared between threads.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+public final class AhoCorasickMatcher
+{
+    private static final int ROOT = 0;
+
+    private static final int NO_STATE = -1;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The bytes labeling the transitions of each state, sorted so they can be searched with a binary search. The
+     * transitions are sparse because most of the patterns share a long common prefix.
+     */
+    private final byte[][] labels;
+
+    /**
+     * The target states of the transitions of each state, in the same order as {@link #labels}.
+     */
+    private final int[][] targets;
+
+    private final int[] transitionCount;
+
+    private final int[] failure;
+
+    private final boolean[] terminal;
+
+    private int stateCount;
+
+    /**
+     * Builds the automaton for the given patterns.
+     *
+     * @param patterns the byte sequences to look for, empty patterns are ignored
+     */
+    public AhoCorasickMatcher(Collection<byte[]> patterns)
+    {
+        int maxStates = 1 + patterns.stream().mapToInt(pattern -> pattern.length).sum();
+        this.labels = new byte[maxStates][];
+        this.targets = new int[maxStates][];
+        this.transitionCount = new int[maxStates];
+        this.failure = new int[maxStates];
+        this.terminal = new boolean[maxStates];
+        this.stateCount = 1;
+        for (byte[] pattern : patterns) {
+            if (pattern.length > 0) {
+                addPattern(pattern);
+            }
+        }
+        computeFailureLinks();
+    }
+
+    /**
+     * @return {@code true} if there is no pattern to look for, in which case nothing can match
+     */
+    public boolean isEmpty()
+    {
+        return this.stateCount == 1;
+    }
+
+    /**
+     * @param content the content to scan
+     * @return {@code true} if the content contains at least one of the patterns
+     */
+    public boolean matches(byte[] content)
+    {
+        return scan(ROOT, content, content.length) == NO_STATE;
+    }
+
+    /**
+     * Scans the stream until a pattern is found or the end of the stream is reached. The stream is not closed.
+     *
+     * @param content the content to scan
+     * @return {@code true} if the content contains at least one of the patterns
+     * @throws IOException if reading the content fails
+     */
+    public boolean matches(InputStream content) throws IOException
+    {
+        if (isEmpty()) {
+            return false;
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int state = ROOT;
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            state = scan(state, buffer, read);
+            if (state == NO_STATE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the state reached after scanning the content, or {@link #NO_STATE} if a pattern was found
+     */
+    private int scan(int initialState, byte[] content, int length)
+    {
+        int state = initialState;
+        for (int i = 0; i < length; i++) {
+            int next = getTransition(state, content[i]);
+            while (next == NO_STATE && state != ROOT) {
+                state = this.failure[state];
+                next = getTransition(state, content[i]);
+            }
+            state = next == NO_STATE ? ROOT : next;
+            if (this.terminal[state]) {
+                return NO_STATE;
+            }
+        }
+        return state;
+    }
+
+    private void addPattern(byte[] pattern)
+    {
+        int state = ROOT;
+        for (byte label : pattern) {
+            int next = getTransition(state, label);
+            if (next == NO_STATE) {
+                next = this.stateCount++;
+                addTransition(state, label, next);
+            }
+            state = next;
+        }
+        this.terminal[state] = true;
+    }
+
+    private void computeFailureLinks()
+    {
+        // Breadth first traversal, so the failure link of a state is computed after the ones of its parents.
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int i = 0; i < this.transitionCount[ROOT]; i++) {
+            int child = this.targets[ROOT][i];
+            this.failure[child] = ROOT;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < this.transitionCount[state]; i++) {
+                byte label = this.labels[state][i];
+                int child = this.targets[state][i];
+                int fallback = this.failure[state];
+                while (fallback != ROOT && getTransition(fallback, label) == NO_STATE) {
+                    fallback = this.failure[fallback];
+                }
+                int target = getTransition(fallback, label);
+                this.failure[child] = target == NO_STATE ? ROOT : target;
+                // A state that ends with a pattern is a match too.
+                this.terminal[child] |= this.terminal[this.failure[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    private int getTransition(int state, byte label)
+    {
+        byte[] stateLabels = this.labels[state];
+        if (stateLabels == null) {
+            return NO_STATE;
+        }
+        int index = Arrays.binarySearch(stateLabels, 0, this.transitionCount[state], label);
+        return index >= 0 ? this.targets[state][index] : NO_STATE;
+    }
+
+    private void addTransition(int state, byte label, int target)
+    {
+        int count = this.transitionCount[state];
+        if (this.labels[state] == null) {
+            this.labels[state] = new byte[2];
+            this.targets[state] = new int[2];
+        } else if (count == this.labels[state].length) {
+            this.labels[state] = Arrays.copyOf(this.labels[state], count * 2);
+            this.targets[state] = Arrays.copyOf(this.targets[state], count * 2);
+        }
+        // Keep the labels sorted.
+        int index = -Arrays.binarySearch(this.labels[state], 0, count, label) - 1;
+        System.arraycopy(this.labels[state], index, this.labels[state], index + 1, count - index);
+        System.arraycopy(this.targets[state], index, this.targets[state], index + 1, count - index);
+        this.labels[state][index] = label;
+        this.targets[state][index] = target;
+        this.transitionCount[state]++;
+    }
+}
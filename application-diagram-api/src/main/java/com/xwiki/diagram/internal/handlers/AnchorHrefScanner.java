@@ -0,0 +1,302 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lightweight scanner that finds the {@code href} values of the {@code <a>} elements of the HTML labels of a diagram,
+ * without building a DOM. It handles only well formed tags and attributes; when the markup is not something it
+ * understands it gives up, and the caller should fall back to the HTML cleaner.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+public final class AnchorHrefScanner
+{
+    private static final String HREF = "href";
+
+    private static final char TAG_START = '<';
+
+    private static final char TAG_END = '>';
+
+    private static final char ENTITY_START = '&';
+
+    private static final char ENTITY_END = ';';
+
+    private static final int HEXADECIMAL = 16;
+
+    private static final int DECIMAL = 10;
+
+    /**
+     * An {@code href} attribute value found in a label, with its position in the label.
+     *
+     * @version $Id$
+     */
+    public static final class Href
+    {
+        private final String value;
+
+        private final int start;
+
+        private final int end;
+
+        private Href(String value, int start, int end)
+        {
+            this.value = value;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return the decoded {@code href} value
+         */
+        public String getValue()
+        {
+            return this.value;
+        }
+
+        /**
+         * @return the index in the label where the attribute value starts, including the opening quote if any
+         */
+        public int getStart()
+        {
+            return this.start;
+        }
+
+        /**
+         * @return the index in the label after the end of the attribute value, including the closing quote if any
+         */
+        public int getEnd()
+        {
+            return this.end;
+        }
+    }
+
+    private AnchorHrefScanner()
+    {
+    }
+
+    /**
+     * @param html the HTML label
+     * @return the decoded {@code href} values of the anchors, in document order, or {@code null} if the markup could
+     *     not be scanned reliably
+     */
+    public static List<String> scan(String html)
+    {
+        List<Href> hrefs = scanHrefs(html);
+        if (hrefs == null) {
+            return null;
+        }
+        List<String> hrefValues = new ArrayList<>(hrefs.size());
+        for (Href href : hrefs) {
+            hrefValues.add(href.getValue());
+        }
+        return hrefValues;
+    }
+
+    /**
+     * @param html the HTML label
+     * @return the {@code href} attributes of the anchors, in document order, or {@code null} if the markup could not
+     *     be scanned reliably
+     */
+    public static List<Href> scanHrefs(String html)
+    {
+        List<Href> hrefs = new ArrayList<>();
+        int index = html.indexOf(TAG_START);
+        while (index >= 0) {
+            if (html.startsWith("<!--", index)) {
+                // Anchors inside comments are ignored by the HTML parser, let it handle them.
+                return null;
+            }
+            int next = isAnchorStart(html, index) ? scanAnchor(html, index + 2, hrefs) : index + 1;
+            if (next < 0) {
+                return null;
+            }
+            index = html.indexOf(TAG_START, next);
+        }
+        return hrefs;
+    }
+
+    private static boolean isAnchorStart(String html, int index)
+    {
+        int nameEnd = index + 2;
+        return nameEnd <= html.length() && Character.toLowerCase(html.charAt(index + 1)) == 'a'
+            && (nameEnd == html.length() || isTagNameEnd(html.charAt(nameEnd)));
+    }
+
+    private static boolean isTagNameEnd(char character)
+    {
+        return Character.isWhitespace(character) || character == TAG_END || character == '/';
+    }
+
+    /**
+     * Scans the attributes of an anchor.
+     *
+     * @return the index after the end of the tag, or -1 if the tag is malformed
+     */
+    private static int scanAnchor(String html, int start, List<Href> hrefs)
+    {
+        boolean hrefFound = false;
+        int index = start;
+        while (true) {
+            index = skipWhitespaces(html, index);
+            if (index >= html.length()) {
+                return -1;
+            }
+            char character = html.charAt(index);
+            if (character == TAG_END) {
+                return index + 1;
+            } else if (character == '/') {
+                index++;
+                continue;
+            }
+
+            int nameEnd = index;
+            while (nameEnd < html.length() && isAttributeNameChar(html.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            if (nameEnd == index) {
+                return -1;
+            }
+            String name = html.substring(index, nameEnd);
+            index = skipWhitespaces(html, nameEnd);
+
+            String value = "";
+            int valueStart = index;
+            if (index < html.length() && html.charAt(index) == '=') {
+                index = skipWhitespaces(html, index + 1);
+                valueStart = index;
+                int valueEnd = findValueEnd(html, index);
+                if (valueEnd < 0) {
+                    return -1;
+                }
+                boolean quoted = html.charAt(index) == '"' || html.charAt(index) == '\'';
+                value = quoted ? html.substring(index + 1, valueEnd - 1) : html.substring(index, valueEnd);
+                index = valueEnd;
+            }
+
+            if (!hrefFound && HREF.equalsIgnoreCase(name)) {
+                String decodedValue = decodeEntities(value);
+                if (decodedValue == null) {
+                    return -1;
+                }
+                hrefs.add(new Href(decodedValue, valueStart, index));
+                hrefFound = true;
+            }
+        }
+    }
+
+    /**
+     * @return the index after the end of the attribute value (including the closing quote), or -1 if the value is not
+     *     terminated
+     */
+    private static int findValueEnd(String html, int start)
+    {
+        if (start >= html.length()) {
+            return -1;
+        }
+        char quote = html.charAt(start);
+        if (quote == '"' || quote == '\'') {
+            int end = html.indexOf(quote, start + 1);
+            return end < 0 ? -1 : end + 1;
+        }
+        int end = start;
+        while (end < html.length() && !Character.isWhitespace(html.charAt(end)) && html.charAt(end) != TAG_END) {
+            end++;
+        }
+        return end == start ? -1 : end;
+    }
+
+    private static boolean isAttributeNameChar(char character)
+    {
+        return !Character.isWhitespace(character) && character != TAG_END && character != '/' && character != '='
+            && character != '"' && character != '\'' && character != TAG_START;
+    }
+
+    private static int skipWhitespaces(String html, int start)
+    {
+        int index = start;
+        while (index < html.length() && Character.isWhitespace(html.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return the value with the XML entities and the character references decoded, or {@code null} if the value
+     *     contains an entity that is not supported
+     */
+    private static String decodeEntities(String value)
+    {
+        int ampersand = value.indexOf(ENTITY_START);
+        if (ampersand < 0) {
+            return value;
+        }
+
+        StringBuilder decoded = new StringBuilder(value.length());
+        int index = 0;
+        while (ampersand >= 0) {
+            int semicolon = value.indexOf(ENTITY_END, ampersand);
+            String entity = semicolon < 0 ? null : decodeEntity(value.substring(ampersand + 1, semicolon));
+            if (entity == null) {
+                return null;
+            }
+            decoded.append(value, index, ampersand).append(entity);
+            index = semicolon + 1;
+            ampersand = value.indexOf(ENTITY_START, index);
+        }
+        return decoded.append(value, index, value.length()).toString();
+    }
+
+    private static String decodeEntity(String entity)
+    {
+        switch (entity) {
+            case "amp":
+                return "&";
+            case "lt":
+                return "<";
+            case "gt":
+                return ">";
+            case "quot":
+                return "\"";
+            case "apos":
+                return "'";
+            default:
+                return decodeCharacterReference(entity);
+        }
+    }
+
+    private static String decodeCharacterReference(String entity)
+    {
+        if (entity.length() < 2 || entity.charAt(0) != '#') {
+            return null;
+        }
+        try {
+            boolean hexadecimal = entity.charAt(1) == 'x' || entity.charAt(1) == 'X';
+            int codePoint = hexadecimal ? Integer.parseInt(entity.substring(2), HEXADECIMAL)
+                : Integer.parseInt(entity.substring(1), DECIMAL);
+            return new String(Character.toChars(codePoint));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -20,33 +20,40 @@
 package com.xwiki.diagram.internal.handlers;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.LocalDocumentReference;
-import org.xwiki.xml.XMLUtils;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
 
 /**
  * Handler for diagram content operations.
@@ -68,6 +75,8 @@ public class DiagramContentHandler
      */
     public static final LocalDocumentReference DIAGRAM_CLASS = new LocalDocumentReference("Diagram", "DiagramClass");
 
+    private static final String DIAGRAM_ATTACHMENT_SUFFIX = "diagram.xml";
+
     private static final String UPDATED_DIAGRAM_AFTER_PAGE_RENAME = "Updated diagram after page rename";
 
     @Inject
@@ -76,6 +85,18 @@ public class DiagramContentHandler
     @Inject
     private DiagramLinkHandler linkHandler;
 
+    @Inject
+    private DiagramLinksRewriter linksRewriter;
+
+    @Inject
+    private DiagramParserPool parserPool;
+
+    @Inject
+    private DiagramLinksCache linksCache;
+
+    @Inject
+    private Environment environment;
+
     @Inject
     private Provider<XWikiContext> contextProvider;
 
@@ -83,125 +104,211 @@ public class DiagramContentHandler
     private Logger logger;
 
     /**
-     * Update the attachments content and save the new version.
+     * Update the links inside the diagram's SVG attachment. The document is not saved.
      * 
      * @param backlinkDoc document that has a backlink to diagram
-     * @param oldDocRef reference of the page before rename
-     * @param newDocRef reference of the page after rename
+     * @param renames the references of the renamed pages, before and after rename
+     * @return true if the attachment was updated, false otherwise
      * @throws XWikiException when an error occurs while accessing documents.
      * @throws IOException if something goes wrong while setting attachment's content.
+     * @since 2.0.1
      */
-    public void updateAttachment(XWikiDocument backlinkDoc, DocumentReference oldDocRef, DocumentReference newDocRef)
+    public boolean updateAttachment(XWikiDocument backlinkDoc, Map<DocumentReference, DocumentReference> renames)
         throws XWikiException, IOException
     {
         XWikiAttachment attachment = backlinkDoc.getAttachment("diagram.svg");
+        if (attachment == null) {
+            return false;
+        }
+
         XWikiContext context = contextProvider.get();
+        String attachmentContent = IOUtils.toString(attachment.getContentInputStream(context), StandardCharsets.UTF_8);
+        String newContent = attachmentContent;
+        for (Map.Entry<DocumentReference, DocumentReference> rename : renames.entrySet()) {
+            newContent = replaceURLs(newContent, rename.getKey(), rename.getValue(), context);
+        }
 
-        if (attachment != null) {
-            backlinkDoc.setAttachment(getUpdatedAttachment(attachment, oldDocRef, newDocRef));
-            context.getWiki().saveDocument(backlinkDoc, "Updated attachment after page rename", context);
+        if (newContent.equals(attachmentContent)) {
+            return false;
         }
+        attachment.setContent(new ByteArrayInputStream(newContent.getBytes(StandardCharsets.UTF_8)));
+        backlinkDoc.setAttachment(attachment);
+        return true;
     }
 
     /**
-     * Migrate links inside diagram's attachment to the new name.
+     * Migrate the URLs of a page inside the content of a diagram's attachment to the new name.
      * 
-     * @param attachment attachment to be processed
+     * @param content the content of the attachment
      * @param oldDocRef reference of the page before rename
      * @param newDocRef reference of the page after rename
-     * @return the modified attachment
+     * @param context the current context
+     * @return the modified content
      * @throws XWikiException when an error occurs while accessing documents.
-     * @throws IOException if something goes wrong while setting attachment's content.
      */
-    private XWikiAttachment getUpdatedAttachment(XWikiAttachment attachment, DocumentReference oldDocRef,
-        DocumentReference newDocRef) throws XWikiException, IOException
+    private String replaceURLs(String content, DocumentReference oldDocRef, DocumentReference newDocRef,
+        XWikiContext context) throws XWikiException
     {
-        XWikiContext context = contextProvider.get();
         XWikiDocument oldDoc = context.getWiki().getDocument(oldDocRef, context);
         XWikiDocument newDoc = context.getWiki().getDocument(newDocRef, context);
 
-        String attachmentContent = IOUtils.toString(attachment.getContentInputStream(context), StandardCharsets.UTF_8);
-
         String regex = "\"%s\"";
         String oldAbsoluteURL = String.format(regex, oldDoc.getExternalURL(VIEW_ACTION, context));
         String newAbsoluteURL = String.format(regex, newDoc.getExternalURL(VIEW_ACTION, context));
         String oldURL = String.format(regex, oldDoc.getURL(VIEW_ACTION, context));
         String newURL = String.format(regex, newDoc.getURL(VIEW_ACTION, context));
 
-        String newContent = attachmentContent.replaceAll(oldAbsoluteURL, newAbsoluteURL).replaceAll(oldURL, newURL);
-
-        attachment.setContent(new ByteArrayInputStream(newContent.getBytes()));
-
-        return attachment;
+        return content.replaceAll(oldAbsoluteURL, newAbsoluteURL).replaceAll(oldURL, newURL);
     }
 
     /**
-     * Update content of the diagram with new links.
+     * Update content of the diagram with new links. The document is not saved.
      * 
      * @param backlinkDoc document that has a backlink to the diagram
-     * @param originalDocRef reference of the document before rename
-     * @param currentDocRef reference of the document after rename
-     * @param context context of the execution
-     * @throws ParserConfigurationException if a DocumentBuilder cannot be created
-     * @throws SAXException if parsing the document fails
+     * @param renames the references of the renamed pages, before and after rename
+     * @return true if the content of the diagram was updated, false otherwise
+     * @throws XMLStreamException if reading or writing the diagram XML fails
+     * @throws ParserConfigurationException if parsing an embedded label fails
+     * @throws SAXException if parsing an embedded label fails
      * @throws IOException if any IO errors occur
-     * @throws XWikiException if saving the document fails
+     * @since 2.0.1
      */
-    public void updateDiagramContent(XWikiDocument backlinkDoc, DocumentReference originalDocRef,
-        DocumentReference currentDocRef, XWikiContext context)
-        throws ParserConfigurationException, SAXException, IOException, XWikiException
+    public boolean updateDiagramContent(XWikiDocument backlinkDoc, Map<DocumentReference, DocumentReference> renames)
+        throws XMLStreamException, ParserConfigurationException, SAXException, IOException
     {
-        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
-            .parse(new ByteArrayInputStream(backlinkDoc.getContent().getBytes()));
-        boolean updated = maybeUpdateContent(document, originalDocRef, currentDocRef);
-        // Since a document save is expensive we actually do the save only when are sure that a node was updated.
-        if (updated) {
-            logger.info("Updating the diagram content because a backlink document has been updated. Original "
-                + "Reference: [{}] New Reference: [{}]",  originalDocRef, currentDocRef);
-            backlinkDoc.setContent(XMLUtils.serialize(document));
-            context.getWiki().saveDocument(backlinkDoc, UPDATED_DIAGRAM_AFTER_PAGE_RENAME, context);
+        // The links of the diagram may be known already, from the last time it was indexed.
+        if (!mayLinkTo(linksCache.peekLinkedPages(backlinkDoc), renames)) {
+            return false;
+        }
+        byte[] content = backlinkDoc.getContent().getBytes(StandardCharsets.UTF_8);
+        // Most backlinks don't contain the renamed references at all, so we reject them before parsing anything.
+        if (!linkHandler.getLinksMatcher(renames.keySet()).matches(content)) {
+            return false;
         }
+        Map<String, String> newLinks = linkHandler.getNewLinks(renames);
+        // The first pass only reads the diagram, so nothing is written for the diagrams that don't need an update.
+        if (!linksRewriter.needsRewrite(new ByteArrayInputStream(content), newLinks)) {
+            return false;
+        }
+
+        logger.info("Updating the diagram content of [{}] because some linked pages have been renamed: [{}]",
+            backlinkDoc.getDocumentReference(), renames);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(content.length);
+        linksRewriter.rewrite(new ByteArrayInputStream(content), output, newLinks);
+        backlinkDoc.setContent(new String(output.toByteArray(), StandardCharsets.UTF_8));
+        return true;
     }
 
     /**
-     * Update content of the diagram with new links.
+     * Update content of the inline diagrams with new links. The document is not saved. The attachments are rewritten
+     * in a streaming way, through a temporary file, so that large diagrams are never fully loaded in memory.
      *
      * @param diagramAttachments list of diagram attachments
      * @param backlinkDoc document that has a backlink to the diagram
-     * @param originalDocRef reference of the document before rename
-     * @param currentDocRef reference of the document after rename
+     * @param renames the references of the renamed pages, before and after rename
      * @param context context of the execution
-     * @throws ParserConfigurationException if a DocumentBuilder cannot be created
-     * @throws SAXException if parsing the document fails
+     * @return true if at least one of the attachments was updated, false otherwise
+     * @throws XMLStreamException if reading or writing the diagram XML fails
+     * @throws ParserConfigurationException if parsing an embedded label fails
+     * @throws SAXException if parsing an embedded label fails
      * @throws IOException if any IO errors occur
-     * @throws XWikiException if saving the document fails
+     * @throws XWikiException if reading an attachment fails
+     * @since 2.0.1
      */
-    public void updateDiagramContent(List<XWikiAttachment> diagramAttachments, XWikiDocument backlinkDoc,
-        DocumentReference originalDocRef, DocumentReference currentDocRef, XWikiContext context)
-        throws ParserConfigurationException, XWikiException, IOException, SAXException
+    public boolean updateDiagramContent(List<XWikiAttachment> diagramAttachments, XWikiDocument backlinkDoc,
+        Map<DocumentReference, DocumentReference> renames, XWikiContext context)
+        throws XMLStreamException, ParserConfigurationException, SAXException, IOException, XWikiException
     {
+        AhoCorasickMatcher linksMatcher = linkHandler.getLinksMatcher(renames.keySet());
+        Map<String, String> newLinks = linkHandler.getNewLinks(renames);
         boolean updated = false;
         for (XWikiAttachment attachment : diagramAttachments) {
-            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
-                .parse(attachment.getContentInputStream(context));
-
-            updated |= maybeUpdateContent(document, originalDocRef, currentDocRef);
+            boolean needsRewrite = mayLinkTo(linksCache.peekLinkedPages(attachment), renames);
+            if (needsRewrite) {
+                try (InputStream content = attachment.getContentInputStream(context)) {
+                    needsRewrite = linksMatcher.matches(content);
+                }
+            }
+            if (needsRewrite) {
+                try (InputStream content = attachment.getContentInputStream(context)) {
+                    needsRewrite = linksRewriter.needsRewrite(content, newLinks);
+                }
+            }
 
-            if (updated) {
+            if (needsRewrite) {
                 logger.info("Found an inline diagram that should be updated. Digram name: [{}] Document containing the"
-                        + " diagram [{}] Original Reference [{}] New Reference [{}]", attachment.getFilename(),
-                    backlinkDoc.getDocumentReference(), originalDocRef, currentDocRef);
-                attachment.setContent(
-                    new ByteArrayInputStream(XMLUtils.serialize(document).getBytes(StandardCharsets.UTF_8)));
+                    + " diagram [{}] Renamed pages [{}]", attachment.getFilename(), backlinkDoc.getDocumentReference(),
+                    renames);
+                rewriteAttachment(attachment, newLinks, context);
                 attachment.setAuthorReference(context.getAuthorReference());
+                updated = true;
             }
         }
+        return updated;
+    }
+
+    private boolean mayLinkTo(List<EntityReference> cachedLinkedPages,
+        Map<DocumentReference, DocumentReference> renames)
+    {
+        return cachedLinkedPages == null || !Collections.disjoint(cachedLinkedPages, renames.keySet());
+    }
+
+    private void rewriteAttachment(XWikiAttachment attachment, Map<String, String> newLinks, XWikiContext context)
+        throws XMLStreamException, ParserConfigurationException, SAXException, IOException, XWikiException
+    {
+        Path rewrittenContent = Files.createTempFile(environment.getTemporaryDirectory().toPath(), "diagram", ".xml");
+        try {
+            try (InputStream content = attachment.getContentInputStream(context);
+                OutputStream output = Files.newOutputStream(rewrittenContent)) {
+                linksRewriter.rewrite(content, output, newLinks);
+            }
+            try (InputStream content = Files.newInputStream(rewrittenContent)) {
+                attachment.setContent(content);
+            }
+        } finally {
+            Files.deleteIfExists(rewrittenContent);
+        }
+    }
+
+    /**
+     * Update the links of a backlink document, either a standalone diagram or a page containing inline diagrams, and
+     * save it once if anything changed.
+     *
+     * @param backlinkDoc document that has a backlink to the renamed pages
+     * @param renames the references of the renamed pages, before and after rename
+     * @param context context of the execution
+     * @return true if the document was updated and saved, false otherwise
+     * @throws XMLStreamException if reading or writing the diagram XML fails
+     * @throws ParserConfigurationException if parsing an embedded label fails
+     * @throws SAXException if parsing an embedded label fails
+     * @throws IOException if any IO errors occur
+     * @throws XWikiException if saving the document fails
+     * @since 2.0.1
+     */
+    public boolean updateBacklinkDocument(XWikiDocument backlinkDoc, Map<DocumentReference, DocumentReference> renames,
+        XWikiContext context)
+        throws XMLStreamException, ParserConfigurationException, SAXException, IOException, XWikiException
+    {
+        boolean updated = false;
+        if (backlinkDoc.getXObject(DIAGRAM_CLASS) != null) {
+            logger.info("The backlink was a standalone diagram.");
+            updated |= updateDiagramContent(backlinkDoc, renames);
+            updated |= updateAttachment(backlinkDoc, renames);
+        }
+
+        List<XWikiAttachment> attachments = backlinkDoc.getAttachmentList().stream()
+            .filter(attachment -> attachment.getFilename().endsWith(DIAGRAM_ATTACHMENT_SUFFIX))
+            .collect(Collectors.toList());
+        if (!attachments.isEmpty()) {
+            logger.info("The backlink was an inline diagram.");
+            updated |= updateDiagramContent(attachments, backlinkDoc, renames, context);
+        }
+
+        // Since a document save is expensive we actually do the save only when are sure that something was updated.
         if (updated) {
-            logger.info("Updating the diagram content because a backlink document has been updated. Document containing"
-                + "the diagram [{}] Original Reference [{}] New Reference [{}]", backlinkDoc.getDocumentReference(),
-                originalDocRef, currentDocRef);
             context.getWiki().saveDocument(backlinkDoc, UPDATED_DIAGRAM_AFTER_PAGE_RENAME, context);
         }
+        return updated;
     }
 
     /**
@@ -213,33 +320,73 @@ public class DiagramContentHandler
      */
     public List<EntityReference> getLinkedPages(String content, DocumentReference diagramReference)
     {
-        try {
-            GetDiagramLinksHandler getDiagramLinksHandler = getDiagramLinksHandlerProvider.get();
-            SAXParserFactory.newInstance().newSAXParser()
-                .parse(new ByteArrayInputStream(content.getBytes()), getDiagramLinksHandler);
+        return getLinkedPages(new InputSource(new StringReader(content)), diagramReference);
+    }
 
-            return getDiagramLinksHandler.getLinkedPages(diagramReference);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            logger.warn("Failed while getting diagram linked pages", e);
-        }
+    /**
+     * Search referenced pages inside the content of a diagram, read as it is parsed. The encoding is taken from the
+     * XML declaration, UTF-8 by default.
+     *
+     * @param content the content of the diagram, which is not closed
+     * @param diagramReference the reference of current diagram
+     * @return linkedPages list of pages linked in this content
+     * @since 2.0.1
+     */
+    public List<EntityReference> getLinkedPages(InputStream content, DocumentReference diagramReference)
+    {
+        return getLinkedPages(new InputSource(content), diagramReference);
+    }
 
-        return Collections.emptyList();
+    /**
+     * Search the links inside the content of a diagram, with the cell holding each of them.
+     *
+     * @param content the content of the diagram
+     * @param diagramReference the reference of the document holding the diagram, used to resolve the links
+     * @param source the diagram holding the content, either the document or an inline diagram attachment
+     * @return the links of the diagram
+     * @since 2.0.1
+     */
+    public List<DiagramLink> getLinks(String content, DocumentReference diagramReference, EntityReference source)
+    {
+        GetDiagramLinksHandler getDiagramLinksHandler = parse(new InputSource(new StringReader(content)));
+        return getDiagramLinksHandler != null ? getDiagramLinksHandler.getLinks(diagramReference, source)
+            : Collections.emptyList();
+    }
+
+    /**
+     * Search the links inside the content of a diagram, read as it is parsed, with the cell holding each of them.
+     *
+     * @param content the content of the diagram, which is not closed
+     * @param diagramReference the reference of the document holding the diagram, used to resolve the links
+     * @param source the diagram holding the content, either the document or an inline diagram attachment
+     * @return the links of the diagram
+     * @since 2.0.1
+     */
+    public List<DiagramLink> getLinks(InputStream content, DocumentReference diagramReference,
+        EntityReference source)
+    {
+        GetDiagramLinksHandler getDiagramLinksHandler = parse(new InputSource(content));
+        return getDiagramLinksHandler != null ? getDiagramLinksHandler.getLinks(diagramReference, source)
+            : Collections.emptyList();
     }
 
+    private List<EntityReference> getLinkedPages(InputSource content, DocumentReference diagramReference)
+    {
+        GetDiagramLinksHandler getDiagramLinksHandler = parse(content);
+        return getDiagramLinksHandler != null ? getDiagramLinksHandler.getLinkedPages(diagramReference)
+            : Collections.emptyList();
+    }
 
-    private boolean maybeUpdateContent(Document document, DocumentReference originalDocRef,
-        DocumentReference currentDocRef) throws IOException, ParserConfigurationException, SAXException
+    private GetDiagramLinksHandler parse(InputSource content)
     {
-        boolean updated = false;
-        NodeList userObjectList = document.getElementsByTagName("UserObject");
-        for (int i = 0; i < userObjectList.getLength(); i++) {
-            updated |= linkHandler.updateUserObjectNode(userObjectList.item(i), currentDocRef, originalDocRef);
+        try {
+            GetDiagramLinksHandler getDiagramLinksHandler = getDiagramLinksHandlerProvider.get();
+            parserPool.getSAXParser().parse(content, getDiagramLinksHandler);
+            return getDiagramLinksHandler;
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            logger.warn("Failed while getting diagram linked pages", e);
         }
 
-        NodeList mxCellList = document.getElementsByTagName("mxCell");
-        for (int i = 0; i < mxCellList.getLength(); i++) {
-            updated |= linkHandler.updateMxCellNode(mxCellList.item(i), currentDocRef, originalDocRef);
-        }
-        return updated;
+        return null;
     }
 }
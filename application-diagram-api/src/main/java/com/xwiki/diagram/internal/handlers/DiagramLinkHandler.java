@@ -21,8 +21,13 @@ package com.xwiki.diagram.internal.handlers;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -33,11 +38,11 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.slf4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.xml.XMLUtils;
 import org.xwiki.xml.html.HTMLCleaner;
 
 /**
@@ -70,6 +75,11 @@ public class DiagramLinkHandler
      */
     public static final String LABEL = "label";
 
+    /**
+     * Characters above this one are not ASCII and could be written as character references.
+     */
+    private static final int MAX_ASCII = 127;
+
     /**
      * Href attribute.
      */
@@ -118,93 +128,161 @@ public class DiagramLinkHandler
      */
     private Boolean isXWikiCustomLink(String href)
     {
-        return href.substring(0, CUSTOM_LINK_PREFIX.length()).contentEquals(CUSTOM_LINK_PREFIX);
+        return href.startsWith(CUSTOM_LINK_PREFIX);
     }
 
     /**
-     * Modify content of UserObject node of the diagram, to contain the new name of the link.
-     * 
-     * @param node UserObject node
-     * @param newDocumentRef document's reference after rename
-     * @param oldDocumentRef document's reference before rename
-     * @return true if the node was updated, false otherwise.
+     * Prepares the lookup table used to rewrite the links of a diagram after some pages have been renamed.
+     *
+     * @param renames the references of the renamed pages, before and after rename
+     * @return the new diagram links, indexed by the serialized reference of the page before rename
+     * @since 2.0.1
      */
-    public boolean updateUserObjectNode(Node node, DocumentReference newDocumentRef, DocumentReference oldDocumentRef)
-        throws IOException, ParserConfigurationException, SAXException
+    public Map<String, String> getNewLinks(Map<DocumentReference, DocumentReference> renames)
     {
-        boolean modified = false;
-        if (node.hasChildNodes()) {
-            Node linkNode = node.getAttributes().getNamedItem(LINK);
-            if (linkNode != null) {
-                String oldSource = linkNode.getNodeValue();
-                if (isXWikiCustomLink(oldSource) && oldDocumentRef.toString()
-                    .equals(getResourceReferenceFromCustomLink(oldSource)))
-                {
-                    String newSource = getCustomLinkFromResourceReference(newDocumentRef.toString());
-                    linkNode.setTextContent(newSource);
-                    modified = true;
-                }
-            }
-            linkNode = node.getAttributes().getNamedItem(LABEL);
-            if (linkNode != null) {
-                modified |= updateEmbeddedLinks(linkNode, newDocumentRef, oldDocumentRef);
+        Map<String, String> newLinks = new HashMap<>(renames.size() * 2);
+        renames.forEach((oldDocumentRef, newDocumentRef) -> newLinks.put(oldDocumentRef.toString(),
+            getCustomLinkFromResourceReference(newDocumentRef.toString())));
+        return newLinks;
+    }
+
+    /**
+     * Builds a matcher that finds, directly in the bytes of a diagram XML, the diagram links that can target one of the
+     * given pages. It is meant to reject cheaply the diagrams that don't need to be parsed: a match doesn't guarantee
+     * that the diagram really links to one of the pages.
+     *
+     * @param references the pages to look for
+     * @return the matcher of the links to the given pages
+     * @since 2.0.1
+     */
+    public AhoCorasickMatcher getLinksMatcher(Collection<DocumentReference> references)
+    {
+        List<byte[]> patterns = new ArrayList<>(references.size());
+        for (DocumentReference reference : references) {
+            String link = getCustomLinkFromResourceReference(reference.toString());
+            // The link can be written differently depending on where it is (attribute, escaped HTML label, character
+            // references) so we look only for the part that can't be escaped.
+            int length = 0;
+            while (length < link.length() && !isEscapable(link.charAt(length))) {
+                length++;
             }
+            patterns.add(link.substring(0, length).getBytes(StandardCharsets.UTF_8));
         }
-        return modified;
+        return new AhoCorasickMatcher(patterns);
+    }
+
+    private static boolean isEscapable(char character)
+    {
+        return character > MAX_ASCII || "&<>\"'".indexOf(character) >= 0;
     }
 
     /**
-     * Modify content of mxCell node of the diagram, to contain the new name of the link.
-     * 
-     * @param node mxCell node
-     * @return true if the node has been updated, false otherwise.
-     * @param newDocumentRef document's reference after rename
-     * @param oldDocumentRef document's reference before rename
+     * Computes the new value of a link attribute (e.g. the {@code link} attribute of a UserObject node).
+     *
+     * @param link the current value of the link attribute
+     * @param newLinks the new diagram links, indexed by the serialized reference of the page before rename
+     * @return the new link, or {@code null} if the link doesn't target a renamed page
+     * @since 2.0.1
+     */
+    public String getNewLink(String link, Map<String, String> newLinks)
+    {
+        if (link == null || !isXWikiCustomLink(link)) {
+            return null;
+        }
+        return newLinks.get(getResourceReferenceFromCustomLink(link));
+    }
+
+    /**
+     * Computes the new value of a text element that can contain links (e.g. the {@code value} attribute of a mxCell).
+     *
+     * @param value the current value of the text element
+     * @param newLinks the new diagram links, indexed by the serialized reference of the page before rename
+     * @return the new value, or {@code null} if the value doesn't contain links to renamed pages
      * @throws ParserConfigurationException if document builder cannot be created
-     * @throws SAXException if parsing the document fails
-     * @throws IOException if parsing the document fails
+     * @throws SAXException if parsing the text element fails
+     * @throws IOException if parsing the text element fails
+     * @since 2.0.1
      */
-    public boolean updateMxCellNode(Node node, DocumentReference newDocumentRef, DocumentReference oldDocumentRef)
-        throws ParserConfigurationException, SAXException, IOException
+    public String getNewEmbeddedLinks(String value, Map<String, String> newLinks)
+        throws IOException, ParserConfigurationException, SAXException
     {
-        if (node.hasChildNodes()) {
-            Node linkNode = node.getAttributes().getNamedItem("value");
-            if (linkNode == null) {
-                return false;
+        if (value == null || !value.contains(HREF)) {
+            return null;
+        }
+
+        // The value attribute contains the text element, which could contain one or more links. Each link is replaced
+        // only once, in a single pass, so that a new link is never rewritten again by another rename.
+        List<AnchorHrefScanner.Href> hrefs = AnchorHrefScanner.scanHrefs(value);
+        String newValue = hrefs != null ? replaceLinks(value, hrefs, newLinks)
+            : replaceLinks(value, getLinksFromHTMLCleaner(value), newLinks);
+        return newValue.equals(value) ? null : newValue;
+    }
+
+    private String replaceLinks(String value, List<AnchorHrefScanner.Href> hrefs, Map<String, String> newLinks)
+    {
+        StringBuilder newValue = new StringBuilder(value.length());
+        int index = 0;
+        for (AnchorHrefScanner.Href href : hrefs) {
+            String newLink = getNewLink(href.getValue(), newLinks);
+            if (newLink != null) {
+                newValue.append(value, index, href.getStart()).append('"')
+                    .append(XMLUtils.escapeAttributeValue(newLink)).append('"');
+                index = href.getEnd();
             }
-            return updateEmbeddedLinks(linkNode, newDocumentRef, oldDocumentRef);
         }
-        return false;
+        return newValue.append(value, index, value.length()).toString();
     }
 
     /**
-     * Updates the links that are embedded in node attributes.
-     * @param linkNode attribute node that contains the links
-     * @param newDocumentRef new document reference.
-     * @param oldDocumentRef old document reference.
-     * @return returns true if the node was updated, false otherwise.
+     * Replaces the links of a label that couldn't be scanned, so without knowing where the links are. Only the whole
+     * links are replaced, the longest one first, so that renaming a page doesn't modify the links to the pages whose
+     * reference starts with the same characters.
      */
-    private boolean updateEmbeddedLinks(Node linkNode, DocumentReference newDocumentRef,
-        DocumentReference oldDocumentRef) throws IOException, ParserConfigurationException, SAXException
+    private String replaceLinks(String value, Collection<String> links, Map<String, String> newLinks)
     {
+        Map<String, String> replacements = new HashMap<>();
+        for (String link : links) {
+            String newLink = getNewLink(link, newLinks);
+            if (newLink != null) {
+                replacements.put(link, newLink);
+            }
+        }
+        if (replacements.isEmpty()) {
+            return value;
+        }
+        List<String> oldLinks = new ArrayList<>(replacements.keySet());
+        oldLinks.sort(Comparator.comparingInt(String::length).reversed());
 
-        boolean pageUpdated = false;
-        String value = linkNode.getNodeValue();
-        if (!value.contains(HREF)) {
-            return false;
+        StringBuilder newValue = new StringBuilder(value.length());
+        int index = 0;
+        int copied = 0;
+        while (index < value.length()) {
+            String oldLink = findLinkAt(value, index, oldLinks);
+            if (oldLink != null) {
+                newValue.append(value, copied, index).append(replacements.get(oldLink));
+                index += oldLink.length();
+                copied = index;
+            } else {
+                index++;
+            }
         }
+        return newValue.append(value, copied, value.length()).toString();
+    }
 
-        // The value attribute contains the text element, which could contain one or more links.
-        for (String oldSource : getLinksFromEmbeddedNode(value)) {
-            if (oldSource != null && isXWikiCustomLink(oldSource) && oldDocumentRef.toString()
-                .equals(getResourceReferenceFromCustomLink(oldSource)))
-            {
-                String newSource = getCustomLinkFromResourceReference(newDocumentRef.toString());
-                linkNode.setNodeValue(value.replace(oldSource, newSource));
-                pageUpdated = true;
+    private String findLinkAt(String value, int index, List<String> links)
+    {
+        for (String link : links) {
+            int end = index + link.length();
+            if (value.startsWith(link, index) && (end == value.length() || isLinkEnd(value.charAt(end)))) {
+                return link;
             }
         }
-        return pageUpdated;
+        return null;
+    }
+
+    private static boolean isLinkEnd(char character)
+    {
+        return Character.isWhitespace(character) || character == '"' || character == '\'' || character == '>';
     }
 
     /**
@@ -246,7 +324,8 @@ public class DiagramLinkHandler
     }
 
     /**
-     * Get links from the content of a text element.
+     * Get links from the content of a text element. The labels are scanned without building a DOM, the HTML cleaner
+     * being used only when the markup is not well formed.
      * 
      * @param value value of the text element.
      * @return links inside text element
@@ -256,6 +335,12 @@ public class DiagramLinkHandler
      */
     private List<String> getLinksFromEmbeddedNode(String value)
         throws SAXException, IOException, ParserConfigurationException
+    {
+        List<String> hrefValues = AnchorHrefScanner.scan(value);
+        return hrefValues != null ? hrefValues : getLinksFromHTMLCleaner(value);
+    }
+
+    private List<String> getLinksFromHTMLCleaner(String value)
     {
         List<String> hrefValues = new ArrayList<String>();
         // Create a DOM using value for getting the href of 'a' elements inside it.
@@ -0,0 +1,311 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DiagramConfiguration;
+
+import static com.xwiki.diagram.internal.AttachmentUtils.getContentInputStream;
+
+/**
+ * Keeps the links of a diagram, so that the same diagram content is not parsed again each time its links are
+ * needed. The entries are keyed by the reference and the version of the document holding the diagram, or by the
+ * reference and the version of the inline diagram attachment, so a new version is never served stale links. Documents
+ * and attachments that have unsaved changes are not cached.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramLinksCache.class)
+@Singleton
+public class DiagramLinksCache implements Initializable, Disposable
+{
+    private static final String VERSION_SEPARATOR = "@";
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private DiagramConfiguration configuration;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    // The content handler uses this cache as a pre-filter, so it's injected lazily.
+    @Inject
+    private Provider<DiagramContentHandler> contentHandlerProvider;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Logger logger;
+
+    private Cache<List<DiagramLink>> cache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager
+                .createNewCache(new LRUCacheConfiguration("diagram.links", this.configuration.getLinksCacheSize()));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the diagram links cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * @param document a standalone diagram
+     * @return the pages linked from the content of the diagram, parsed only if they are not cached yet
+     */
+    public List<EntityReference> getLinkedPages(XWikiDocument document)
+    {
+        return getTargets(getLinks(document));
+    }
+
+    /**
+     * @param document the document holding an inline diagram
+     * @param attachment the attachment holding the content of the inline diagram
+     * @return the pages linked from the inline diagram, parsed only if they are not cached yet
+     */
+    public List<EntityReference> getLinkedPages(XWikiDocument document, XWikiAttachment attachment)
+    {
+        return getLinkedPages(document, attachment, this.contextProvider.get());
+    }
+
+    /**
+     * @param document the document holding an inline diagram
+     * @param attachment the attachment holding the content of the inline diagram
+     * @param context the context used to load the content of the attachment
+     * @return the pages linked from the inline diagram, parsed only if they are not cached yet
+     */
+    public List<EntityReference> getLinkedPages(XWikiDocument document, XWikiAttachment attachment,
+        XWikiContext context)
+    {
+        return getTargets(getLinks(document, attachment, context));
+    }
+
+    /**
+     * @param document a standalone diagram
+     * @return the links of the diagram, with the cell holding each of them, parsed only if they are not cached yet
+     */
+    public List<DiagramLink> getLinks(XWikiDocument document)
+    {
+        List<DiagramLink> links = peekLinks(document);
+        if (links == null) {
+            links = Collections.unmodifiableList(this.contentHandlerProvider.get().getLinks(document.getContent(),
+                document.getDocumentReference(), document.getDocumentReference()));
+            if (!document.isContentDirty()) {
+                this.cache.set(getKey(document), links);
+            }
+        }
+        return links;
+    }
+
+    /**
+     * @param document the document holding an inline diagram
+     * @param attachment the attachment holding the content of the inline diagram
+     * @param context the context used to load the content of the attachment
+     * @return the links of the inline diagram, with the cell holding each of them, parsed only if they are not cached
+     *     yet
+     */
+    public List<DiagramLink> getLinks(XWikiDocument document, XWikiAttachment attachment, XWikiContext context)
+    {
+        List<DiagramLink> links = peekLinks(attachment);
+        if (links == null) {
+            links = parseLinks(document, attachment, getContentInputStream(attachment, context));
+        }
+        return links;
+    }
+
+    /**
+     * Same as {@link #getLinks(XWikiDocument, XWikiAttachment, XWikiContext)} but with the content of the attachment
+     * opened by the caller, so that it can be called from a thread that doesn't own the XWiki context.
+     *
+     * @param document the document holding an inline diagram
+     * @param attachment the attachment holding the content of the inline diagram
+     * @param content the content of the attachment, closed by this method, or {@code null} if it's not available
+     * @return the links of the inline diagram, with the cell holding each of them, parsed only if they are not cached
+     *     yet
+     */
+    public List<DiagramLink> getLinks(XWikiDocument document, XWikiAttachment attachment, InputStream content)
+    {
+        List<DiagramLink> links = peekLinks(attachment);
+        if (links == null) {
+            return parseLinks(document, attachment, content);
+        }
+        IOUtils.closeQuietly(content);
+        return links;
+    }
+
+    /**
+     * @param document a standalone diagram
+     * @return the cached pages linked from the content of the diagram, or {@code null} if they are not cached
+     */
+    public List<EntityReference> peekLinkedPages(XWikiDocument document)
+    {
+        List<DiagramLink> links = peekLinks(document);
+        return links != null ? getTargets(links) : null;
+    }
+
+    /**
+     * @param attachment the attachment holding the content of an inline diagram
+     * @return the cached pages linked from the inline diagram, or {@code null} if they are not cached
+     */
+    public List<EntityReference> peekLinkedPages(XWikiAttachment attachment)
+    {
+        List<DiagramLink> links = peekLinks(attachment);
+        return links != null ? getTargets(links) : null;
+    }
+
+    private List<DiagramLink> peekLinks(XWikiDocument document)
+    {
+        return document.isContentDirty() ? null : count(this.cache.get(getKey(document)));
+    }
+
+    private List<DiagramLink> peekLinks(XWikiAttachment attachment)
+    {
+        return attachment.isContentDirty() ? null : count(this.cache.get(getKey(attachment)));
+    }
+
+    /**
+     * Removes the cached links of a document and of its attachments. Since the entries are keyed by version, this is
+     * needed only when a version can be reused, for example when a document or an attachment is deleted and created
+     * again.
+     *
+     * @param document the document that was changed or deleted, in the version that was cached
+     */
+    public void invalidate(XWikiDocument document)
+    {
+        this.cache.remove(getKey(document));
+        for (XWikiAttachment attachment : document.getAttachmentList()) {
+            this.cache.remove(getKey(attachment));
+        }
+    }
+
+    /**
+     * @return the number of times the links were found in the cache
+     */
+    public long getHitCount()
+    {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return the number of times the links were not found in the cache
+     */
+    public long getMissCount()
+    {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return the ratio of the times the links were found in the cache, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private List<DiagramLink> parseLinks(XWikiDocument document, XWikiAttachment attachment, InputStream content)
+    {
+        List<DiagramLink> links = Collections.emptyList();
+        // The content is streamed to the parser, so the attachment is never fully copied in memory.
+        try (InputStream input = content) {
+            if (input != null) {
+                links = Collections.unmodifiableList(this.contentHandlerProvider.get().getLinks(input,
+                    document.getDocumentReference(), attachment.getReference()));
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the inline diagram [{}].", attachment.getReference(), e);
+        }
+        if (!attachment.isContentDirty()) {
+            this.cache.set(getKey(attachment), links);
+        }
+        return links;
+    }
+
+    private List<DiagramLink> count(List<DiagramLink> links)
+    {
+        if (links != null) {
+            this.hitCount.incrementAndGet();
+        } else {
+            this.missCount.incrementAndGet();
+        }
+        return links;
+    }
+
+    private static List<EntityReference> getTargets(List<DiagramLink> links)
+    {
+        return links.stream().map(DiagramLink::getTarget).distinct().collect(Collectors.toList());
+    }
+
+    private String getKey(XWikiDocument document)
+    {
+        return "document:" + this.serializer.serialize(document.getDocumentReferenceWithLocale()) + VERSION_SEPARATOR
+            + document.getVersion();
+    }
+
+    private String getKey(XWikiAttachment attachment)
+    {
+        return "attachment:" + this.serializer.serialize(attachment.getReference()) + VERSION_SEPARATOR
+            + attachment.getVersion();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xml.sax.SAXException;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Rewrites the links of a diagram XML in a streaming way: the XML is copied node by node to the output and only the
+ * attributes that hold links are modified, so the memory used doesn't depend on the size of the diagram. The output is
+ * serialized here rather than with a StAX writer because the attribute values must keep their line breaks and tabs.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramLinksRewriter.class)
+@Singleton
+public class DiagramLinksRewriter
+{
+    private static final String VALUE = "value";
+
+    private static final String XMLNS = "xmlns";
+
+    private static final String UTF8 = StandardCharsets.UTF_8.name();
+
+    @Inject
+    private DiagramLinkHandler linkHandler;
+
+    @Inject
+    private DiagramParserPool parserPool;
+
+    /**
+     * Checks, without writing anything, if the diagram contains links that have to be rewritten.
+     *
+     * @param content the diagram XML
+     * @param newLinks the new diagram links, indexed by the serialized reference of the page before rename, see
+     *     {@link DiagramLinkHandler#getNewLinks(Map)}
+     * @return true if at least one link of the diagram targets a renamed page, false otherwise
+     * @throws XMLStreamException if reading the diagram XML fails
+     * @throws ParserConfigurationException if parsing an embedded label fails
+     * @throws SAXException if parsing an embedded label fails
+     * @throws IOException if parsing an embedded label fails
+     */
+    public boolean needsRewrite(InputStream content, Map<String, String> newLinks)
+        throws XMLStreamException, ParserConfigurationException, SAXException, IOException
+    {
+        XMLStreamReader reader = this.parserPool.getXMLInputFactory().createXMLStreamReader(content);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        if (getNewAttributeValue(reader.getLocalName(), reader.getAttributeLocalName(i),
+                            reader.getAttributeValue(i), newLinks) != null)
+                        {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copies the diagram XML to the output, rewriting the links that target renamed pages.
+     *
+     * @param content the diagram XML
+     * @param output where to write the rewritten diagram XML, using the UTF-8 encoding
+     * @param newLinks the new diagram links, indexed by the serialized reference of the page before rename, see
+     *     {@link DiagramLinkHandler#getNewLinks(Map)}
+     * @return true if at least one link was rewritten, false otherwise
+     * @throws XMLStreamException if reading or writing the diagram XML fails
+     * @throws ParserConfigurationException if parsing an embedded label fails
+     * @throws SAXException if parsing an embedded label fails
+     * @throws IOException if parsing an embedded label fails
+     */
+    public boolean rewrite(InputStream content, OutputStream output, Map<String, String> newLinks)
+        throws XMLStreamException, ParserConfigurationException, SAXException, IOException
+    {
+        XMLStreamReader reader = this.parserPool.getXMLInputFactory().createXMLStreamReader(content);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        boolean rewritten = false;
+        try {
+            // The reader starts on the start document event. Write the XML declaration only if the diagram had one.
+            if (reader.getVersion() != null) {
+                writer.write("<?xml version=\"" + reader.getVersion() + "\" encoding=\"" + UTF8 + "\"?>");
+            }
+            // The start tag of the current element is left open until we know whether the element is empty, so that
+            // empty elements are written back self-closing.
+            boolean startTagOpen = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (startTagOpen) {
+                    writer.write(event == XMLStreamConstants.END_ELEMENT ? "/>" : ">");
+                    startTagOpen = false;
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        continue;
+                    }
+                }
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    rewritten |= copyStartElement(reader, writer, newLinks);
+                    startTagOpen = true;
+                } else {
+                    copyEvent(event, reader, writer);
+                }
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+        }
+        return rewritten;
+    }
+
+    private boolean copyStartElement(XMLStreamReader reader, Writer writer, Map<String, String> newLinks)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        boolean rewritten = false;
+        writer.write('<');
+        writer.write(getQualifiedName(reader.getPrefix(), reader.getLocalName()));
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            writeAttribute(writer, StringUtils.isEmpty(prefix) ? XMLNS : XMLNS + ':' + prefix,
+                nonNull(reader.getNamespaceURI(i)));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String value = reader.getAttributeValue(i);
+            String newValue = getNewAttributeValue(reader.getLocalName(), reader.getAttributeLocalName(i), value,
+                newLinks);
+            if (newValue != null) {
+                value = newValue;
+                rewritten = true;
+            }
+            writeAttribute(writer, getQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                value);
+        }
+        return rewritten;
+    }
+
+    private void copyEvent(int event, XMLStreamReader reader, Writer writer) throws IOException
+    {
+        switch (event) {
+            case XMLStreamConstants.END_ELEMENT:
+                writer.write("</" + getQualifiedName(reader.getPrefix(), reader.getLocalName()) + '>');
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.CDATA:
+                writeEscaped(writer, reader.getText(), false);
+                break;
+            case XMLStreamConstants.COMMENT:
+                writer.write("<!--" + reader.getText() + "-->");
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                writer.write("<?" + reader.getPITarget()
+                    + (StringUtils.isEmpty(reader.getPIData()) ? "" : ' ' + reader.getPIData()) + "?>");
+                break;
+            case XMLStreamConstants.DTD:
+                writer.write(reader.getText());
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                writer.write('&' + reader.getLocalName() + ';');
+                break;
+            default:
+                // The start and end of the document are handled by the caller.
+                break;
+        }
+    }
+
+    private void writeAttribute(Writer writer, String name, String value) throws IOException
+    {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+        writeEscaped(writer, value, true);
+        writer.write('"');
+    }
+
+    /**
+     * Escapes the given text. The line breaks and tabs of the attribute values are written as character references
+     * because the XML parsers normalize them to spaces otherwise, and the diagram labels would lose their line breaks.
+     */
+    private void writeEscaped(Writer writer, String text, boolean attribute) throws IOException
+    {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write("&gt;");
+                    break;
+                case '"':
+                    writer.write(attribute ? "&quot;" : "\"");
+                    break;
+                case '\r':
+                    // Parsers normalize raw carriage returns to line feeds, even in text.
+                    writer.write("&#xd;");
+                    break;
+                case '\n':
+                    writer.write(attribute ? "&#xa;" : "\n");
+                    break;
+                case '\t':
+                    writer.write(attribute ? "&#x9;" : "\t");
+                    break;
+                default:
+                    writer.write(c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the new value of the attribute, or {@code null} if the attribute doesn't hold a link to a renamed page
+     */
+    private String getNewAttributeValue(String element, String attribute, String value, Map<String, String> newLinks)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        if (DiagramLinkHandler.USEROBJECT.equals(element)) {
+            if (DiagramLinkHandler.LINK.equals(attribute)) {
+                return this.linkHandler.getNewLink(value, newLinks);
+            } else if (DiagramLinkHandler.LABEL.equals(attribute)) {
+                return this.linkHandler.getNewEmbeddedLinks(value, newLinks);
+            }
+        } else if (DiagramLinkHandler.MXCELL.equals(element) && VALUE.equals(attribute)) {
+            return this.linkHandler.getNewEmbeddedLinks(value, newLinks);
+        }
+        return null;
+    }
+
+    private static String getQualifiedName(String prefix, String localName)
+    {
+        return StringUtils.isEmpty(prefix) ? localName : prefix + ':' + localName;
+    }
+
+    private static String nonNull(String value)
+    {
+        return value != null ? value : "";
+    }
+}
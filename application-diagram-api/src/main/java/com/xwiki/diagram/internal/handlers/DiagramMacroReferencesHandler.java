@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.rendering.block.Block;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.internal.DiagramRunnableThreadsManager;
+
+/**
+ * Handles the references of the diagram macro. Ensure that the diagram macro always has a valid reference even if the
+ * page is renamed or moved.
+ * <p>
+ * The handling is read-only: the macros whose reference doesn't respect the current name strategy are updated in the
+ * background, and the document is indexed again once it is saved.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component
+@Named("diagram")
+@Singleton
+public class DiagramMacroReferencesHandler implements MacroReferencesHandler
+{
+    private static final String REFERENCE = "reference";
+
+    private static final String DEFAULT_REFERENCE = "Diagram";
+
+    @Inject
+    private DiagramReferenceCache referenceCache;
+
+    @Inject
+    private DiagramRunnableThreadsManager diagramRunnableThreadsManager;
+
+    @Override
+    public List<EntityReference> getReferences(XWikiDocument document, List<Block> macroBlocks)
+    {
+        if (diagramRunnableThreadsManager.needsMacroNormalization(document.getDocumentReference(), macroBlocks)) {
+            diagramRunnableThreadsManager.submitMacroNormalization(document.getDocumentReference());
+        }
+
+        List<EntityReference> macroReferences = new ArrayList<>(macroBlocks.size());
+        for (Block macroBlock : macroBlocks) {
+            String referenceName = macroBlock.getParameter(REFERENCE);
+            macroReferences.add(referenceCache.resolveDocument(
+                referenceName == null ? DEFAULT_REFERENCE : referenceName, document.getDocumentReference()));
+        }
+        return macroReferences;
+    }
+}
@@ -20,33 +20,34 @@
 package com.xwiki.diagram.internal.handlers;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.solr.common.SolrInputDocument;
-import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.component.phase.Initializable;
 import org.xwiki.model.reference.EntityReference;
-import org.xwiki.model.validation.EntityNameValidationConfiguration;
-import org.xwiki.model.validation.EntityNameValidationManager;
 import org.xwiki.rendering.block.Block;
-import org.xwiki.rendering.block.XDOM;
-import org.xwiki.rendering.block.match.MacroBlockMatcher;
+import org.xwiki.rendering.block.MacroBlock;
 import org.xwiki.search.solr.SolrEntityMetadataExtractor;
 
-import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.index.DiagramLinkIndex;
 
 /**
- * Handles the backlinks of the diagram macro. Ensure that the diagram macro always has a valid reference even if the
- * page is renamed or moved.
+ * Handles the backlinks of the diagram macros (diagram, embedDiagram and inlineDiagram).
+ * <p>
+ * The content of the document is walked only once to collect the calls of all these macros, which are then sent to
+ * the {@link MacroReferencesHandler} of their macro. The references are also recorded in the {@link DiagramLinkIndex}.
  *
  * @version $Id$
  * @since 1.21
@@ -54,133 +55,84 @@ import com.xpn.xwiki.doc.XWikiDocument;
 @Component
 @Named("macrodiagram")
 @Singleton
-public class DiagramMacroSolrMetadataExtractor implements SolrEntityMetadataExtractor<XWikiDocument>
+public class DiagramMacroSolrMetadataExtractor implements SolrEntityMetadataExtractor<XWikiDocument>, Initializable
 {
-    private static final String REFERENCE = "reference";
+    private static final String DIAGRAM = "diagram";
 
-    @Inject
-    private Provider<XWikiContext> contextProvider;
+    private static final String EMBED_DIAGRAM = "embedDiagram";
+
+    private static final String INLINE_DIAGRAM = "inlineDiagram";
 
     @Inject
-    @Named("explicit")
-    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+    @Named(DIAGRAM)
+    private MacroReferencesHandler diagramReferencesHandler;
 
     @Inject
-    private LinkRegistry linkRegistry;
+    @Named(EMBED_DIAGRAM)
+    private MacroReferencesHandler embedDiagramReferencesHandler;
 
     @Inject
-    private EntityNameValidationManager entityNameValidationManager;
+    @Named(INLINE_DIAGRAM)
+    private MacroReferencesHandler inlineDiagramReferencesHandler;
 
     @Inject
-    private EntityNameValidationConfiguration entityNameValidationConfiguration;
+    private LinkRegistry linkRegistry;
 
     @Inject
-    private Logger logger;
+    private DiagramLinkIndex linkIndex;
+
+    private final Map<String, MacroReferencesHandler> handlers = new LinkedHashMap<>();
+
+    private final Map<String, DiagramLink.Kind> linkKinds = new HashMap<>();
 
     @Override
-    public boolean extract(XWikiDocument document, SolrInputDocument solrDocument)
+    public void initialize()
     {
-
-        XDOM xdom = document.getXDOM();
-        List<Block> macroBlocks = xdom.getBlocks(new MacroBlockMatcher("diagram"), Block.Axes.CHILD);
-        if (macroBlocks != null && !macroBlocks.isEmpty() && !updateMacroReference(
-            document, xdom, macroBlocks))
-        {
-            List<EntityReference> macroReferences = new ArrayList<>();
-            for (Block macroBlock : macroBlocks) {
-
-                DocumentReference macroReference =
-                    explicitDocumentReferenceResolver.resolve(macroBlock.getParameter(REFERENCE),
-                        document.getDocumentReference());
-                macroReferences.add(macroReference);
-            }
-            return linkRegistry.registerBacklinks(solrDocument, macroReferences);
-        }
-        return false;
+        this.handlers.put(DIAGRAM, this.diagramReferencesHandler);
+        this.handlers.put(EMBED_DIAGRAM, this.embedDiagramReferencesHandler);
+        this.handlers.put(INLINE_DIAGRAM, this.inlineDiagramReferencesHandler);
+        this.linkKinds.put(DIAGRAM, DiagramLink.Kind.MACRO);
+        this.linkKinds.put(EMBED_DIAGRAM, DiagramLink.Kind.EMBED);
+        this.linkKinds.put(INLINE_DIAGRAM, DiagramLink.Kind.MACRO);
     }
 
-    /**
-     * Checks and updates the references of all the diagram macro calls to make sure that all of them respect the
-     * current name strategy.
-     *
-     * @param document document with all the macro calls
-     * @param xdom of the @document
-     * @param macroBlocks list of all the diagram macro calls
-     * @return true if any reference was invalid and has been updated, false if there weren't any invalid references or
-     *     if an error occurred while updating the document
-     */
-    private boolean updateMacroReference(XWikiDocument document, XDOM xdom, List<Block> macroBlocks)
+    @Override
+    public boolean extract(XWikiDocument document, SolrInputDocument solrDocument)
     {
-        try {
-
-            XWikiContext context = contextProvider.get();
-            boolean modified = false;
-            for (Block macroBlock : macroBlocks) {
-                boolean addDefaultValue = (macroBlock.getParameter(REFERENCE) == null);
-                String referenceName = addDefaultValue ? "Diagram" : macroBlock.getParameter(REFERENCE);
-                // For backwards compatibility we check if the page already exists so we won't modify it.
-                DocumentReference macroReference =
-                    explicitDocumentReferenceResolver.resolve(referenceName, document.getDocumentReference());
-                boolean diagramAlreadyExists = context.getWiki().exists(macroReference, context);
-                if (!diagramAlreadyExists) {
-                    // First we check if the name is valid in the current naming strategy.
-                    boolean isValid = this.isValid(referenceName);
-                    // If the name is valid then we can use it, otherwise we transform the name in a valid
-                    // one and update the macro block. If the macro reference is empty we also update it with the
-                    // right reference.
-                    if (!isValid || addDefaultValue) {
-                        String transformedName = this.transformName(referenceName);
-                        logger.debug("The reference [{}] was updated to [{}] to respect the current name strategy. "
-                            + "Document: [{}]", referenceName, transformedName, document.getDocumentReference());
-                        macroBlock.setParameter(REFERENCE, transformedName);
-                        modified = true;
-                    }
-                } else if (addDefaultValue) {
-                    // If the page already exists, but the macro parameter is empty we should still add a value to it
-                    // because when we try to move it will fail otherwise.
-                    macroBlock.setParameter(REFERENCE, referenceName);
-                    modified = true;
-                }
-            }
-            if (modified) {
-                document.setContent(xdom);
-                context.getWiki()
-                    .saveDocument(document, "Updated diagram macro references to respect the name strategy.", context);
-                return modified;
-            }
-        } catch (XWikiException e) {
-            logger.error("Failed to update diagram macro references of [{}] to respect the naming strategy.", document,
-                e);
+        Map<String, List<Block>> macroBlocksById = new LinkedHashMap<>();
+        List<Block> macroBlocks = document.getXDOM().getBlocks(
+            block -> block instanceof MacroBlock && this.handlers.containsKey(((MacroBlock) block).getId()),
+            Block.Axes.CHILD);
+        if (macroBlocks == null || macroBlocks.isEmpty()) {
+            updateLinkIndex(document, Collections.emptyList());
             return false;
         }
-        return false;
-    }
+        for (Block macroBlock : macroBlocks) {
+            macroBlocksById.computeIfAbsent(((MacroBlock) macroBlock).getId(), id -> new ArrayList<>())
+                .add(macroBlock);
+        }
 
-    private String transformName(String name)
-    {
-        // this.entityNameValidationConfiguration.useTransformation() is a property that MUST be set by the user in the
-        // Administration -> Editing -> Name Strategies -> transform names automatically, if the property is disabled
-        // the code will always return the original name and not the transformed one.
-        if (this.entityNameValidationConfiguration.useTransformation()
-            && this.entityNameValidationManager.getEntityReferenceNameStrategy() != null)
-        {
-            return this.entityNameValidationManager.getEntityReferenceNameStrategy().transform(name);
-        } else {
-            return name;
+        List<EntityReference> macroReferences = new ArrayList<>();
+        List<DiagramLink> links = new ArrayList<>();
+        for (Map.Entry<String, List<Block>> entry : macroBlocksById.entrySet()) {
+            List<EntityReference> references =
+                this.handlers.get(entry.getKey()).getReferences(document, entry.getValue());
+            macroReferences.addAll(references);
+            for (EntityReference reference : references) {
+                links.add(new DiagramLink(document.getDocumentReference(), reference, null,
+                    this.linkKinds.get(entry.getKey())));
+            }
         }
+        updateLinkIndex(document, links);
+        return linkRegistry.registerBacklinks(solrDocument, macroReferences);
     }
 
-    private boolean isValid(String name)
+    private void updateLinkIndex(XWikiDocument document, List<DiagramLink> links)
     {
-        // this.entityNameValidationConfiguration.useValidation() is a property that MUST be set by the user in the
-        // Administration -> Editing -> Name Strategies -> validate names before saving, if the property is disabled
-        // this code will always return false.
-        if (this.entityNameValidationConfiguration.useValidation()
-            && this.entityNameValidationManager.getEntityReferenceNameStrategy() != null)
-        {
-            return this.entityNameValidationManager.getEntityReferenceNameStrategy().isValid(name);
-        } else {
-            return true;
+        // Only the default translation is recorded in the index.
+        if (!document.isTranslation()) {
+            this.linkIndex.update(document.getDocumentReference(), DiagramLinkIndex.Scope.MACROS,
+                links.stream().distinct().collect(Collectors.toList()));
         }
     }
 }
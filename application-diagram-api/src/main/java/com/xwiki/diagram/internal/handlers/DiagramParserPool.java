@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import javax.inject.Singleton;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+
+import org.xml.sax.SAXException;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * Holds the XML parser factories used to read and rewrite diagrams. The factories are looked up and configured only
+ * once, and the SAX parsers are reused by each thread, so that parsing a diagram doesn't pay the cost of the factory
+ * lookup and setup every time.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramParserPool.class)
+@Singleton
+public class DiagramParserPool implements Initializable
+{
+    private static final String FEATURE_PREFIX = "http://xml.org/sax/features/";
+
+    private SAXParserFactory saxParserFactory;
+
+    private XMLInputFactory xmlInputFactory;
+
+    /**
+     * SAX parsers are not thread safe, but they can be reset and reused by the same thread.
+     */
+    private final ThreadLocal<SAXParser> saxParsers = new ThreadLocal<>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.saxParserFactory = SAXParserFactory.newInstance();
+            // Diagrams don't need external entities or DTDs, so we don't load them.
+            this.saxParserFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            this.saxParserFactory.setFeature(FEATURE_PREFIX + "external-general-entities", false);
+            this.saxParserFactory.setFeature(FEATURE_PREFIX + "external-parameter-entities", false);
+            this.saxParserFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new InitializationException("Failed to configure the SAX parser factory.", e);
+        }
+
+        this.xmlInputFactory = XMLInputFactory.newFactory();
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * @return a SAX parser that can be used by the current thread until the next call of this method
+     * @throws ParserConfigurationException if the parser can't be created
+     * @throws SAXException if the parser can't be created
+     */
+    public SAXParser getSAXParser() throws ParserConfigurationException, SAXException
+    {
+        SAXParser parser = this.saxParsers.get();
+        if (parser == null) {
+            parser = this.saxParserFactory.newSAXParser();
+            this.saxParsers.set(parser);
+        } else {
+            parser.reset();
+        }
+        return parser;
+    }
+
+    /**
+     * @return the factory used to create the StAX readers, safe to be used by several threads
+     */
+    public XMLInputFactory getXMLInputFactory()
+    {
+        return this.xmlInputFactory;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xwiki.diagram.internal.DiagramConfiguration;
+
+/**
+ * Remembers the references serialized and resolved while indexing diagrams. The links of a wiki share a lot of spaces
+ * and pages, so the same references would otherwise be serialized and resolved over and over again, creating a new
+ * string or reference each time. The cached values are immutable and are shared by all the callers.
+ * <p>
+ * The XWiki cache API only accepts string keys, which would mean serializing the references only to look them up, so
+ * the results are kept in LRU maps instead.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramReferenceCache.class)
+@Singleton
+public class DiagramReferenceCache implements Initializable
+{
+    @Inject
+    @Named("withtype/withparameters")
+    private EntityReferenceSerializer<String> entitySerializer;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    @Inject
+    private DiagramConfiguration configuration;
+
+    private Map<EntityReference, String> serializedReferences;
+
+    private Map<Pair<String, EntityReference>, DocumentReference> resolvedReferences;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    @Override
+    public void initialize()
+    {
+        int size = this.configuration.getReferenceCacheSize();
+        this.serializedReferences = createLRUMap(size);
+        this.resolvedReferences = createLRUMap(size);
+    }
+
+    /**
+     * @param reference the reference to serialize
+     * @return the reference serialized with its type and its parameters
+     */
+    public String serialize(EntityReference reference)
+    {
+        return get(this.serializedReferences, reference, this.entitySerializer::serialize);
+    }
+
+    /**
+     * @param reference the string representation of a document reference
+     * @param baseReference the reference used to resolve the missing parts of the string representation
+     * @return the document reference, resolved with the explicit resolver
+     */
+    public DocumentReference resolveDocument(String reference, EntityReference baseReference)
+    {
+        return get(this.resolvedReferences, Pair.of(reference, baseReference),
+            key -> this.explicitDocumentReferenceResolver.resolve(key.getLeft(), key.getRight()));
+    }
+
+    /**
+     * @return the number of serializations and resolutions that were found in the cache
+     */
+    public long getHitCount()
+    {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return the number of serializations and resolutions that had to be computed
+     */
+    public long getMissCount()
+    {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return the ratio of serializations and resolutions found in the cache, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private <K, V> V get(Map<K, V> cache, K key, Function<K, V> function)
+    {
+        V value = cache.get(key);
+        if (value != null) {
+            this.hitCount.incrementAndGet();
+        } else {
+            this.missCount.incrementAndGet();
+            // The value is computed outside of the lock. If two threads compute the same value, the last one wins,
+            // which is fine since both values are equal.
+            value = function.apply(key);
+            if (value != null) {
+                cache.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    private static <K, V> Map<K, V> createLRUMap(int maxSize)
+    {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75F, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > maxSize;
+            }
+        });
+    }
+}
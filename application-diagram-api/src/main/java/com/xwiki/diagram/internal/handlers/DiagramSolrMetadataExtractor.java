@@ -19,7 +19,9 @@
  */
 package com.xwiki.diagram.internal.handlers;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -30,10 +32,12 @@ import org.xwiki.model.reference.EntityReference;
 import org.xwiki.search.solr.SolrEntityMetadataExtractor;
 
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.index.DiagramLinkIndex;
 
 /**
  * Handles the backlinks of a diagram. Ensure that the diagram links are updated and point to the correct page
- * whenever a page is moved or renamed.
+ * whenever a page is moved or renamed. The links are also recorded, with their cell, in the {@link DiagramLinkIndex}.
  *
  * @version $Id$
  * @since 1.20.8
@@ -43,20 +47,34 @@ import com.xpn.xwiki.doc.XWikiDocument;
 public class DiagramSolrMetadataExtractor implements SolrEntityMetadataExtractor<XWikiDocument>
 {
     @Inject
-    private DiagramContentHandler diagramContentHandler;
+    private DiagramLinksCache linksCache;
 
     @Inject
     private LinkRegistry linkRegistry;
 
+    @Inject
+    private DiagramLinkIndex linkIndex;
+
     @Override
     public boolean extract(XWikiDocument document, SolrInputDocument solrDocument)
     {
         // Updates for the diagram directly.
         if (document.getXObject(DiagramContentHandler.DIAGRAM_CLASS) != null) {
+            List<DiagramLink> links = linksCache.getLinks(document);
+            updateLinkIndex(document, links);
             List<EntityReference> references =
-                diagramContentHandler.getLinkedPages(document.getContent(), document.getDocumentReference());
+                links.stream().map(DiagramLink::getTarget).distinct().collect(Collectors.toList());
             return linkRegistry.registerBacklinks(solrDocument, references);
         }
+        updateLinkIndex(document, Collections.emptyList());
         return false;
     }
+
+    private void updateLinkIndex(XWikiDocument document, List<DiagramLink> links)
+    {
+        // Only the default translation is recorded in the index.
+        if (!document.isTranslation()) {
+            linkIndex.update(document.getDocumentReference(), DiagramLinkIndex.Scope.CONTENT, links);
+        }
+    }
 }
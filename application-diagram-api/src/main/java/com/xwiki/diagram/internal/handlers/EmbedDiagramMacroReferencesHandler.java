@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.rendering.block.Block;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.internal.InlineDiagramManager;
+
+/**
+ * Handles the references of the embed diagram macro to its source document or attachment.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component
+@Named("embedDiagram")
+@Singleton
+public class EmbedDiagramMacroReferencesHandler implements MacroReferencesHandler
+{
+    @Inject
+    @Named("current")
+    private EntityReferenceResolver<String> entityReferenceResolver;
+
+    @Override
+    public List<EntityReference> getReferences(XWikiDocument document, List<Block> macroBlocks)
+    {
+        List<EntityReference> macroReferences = new ArrayList<>();
+        for (Block macroBlock : macroBlocks) {
+            // Handle the reference to the source document.
+            String macroReference = macroBlock.getParameter("diagramSource");
+            if (macroReference != null && !macroReference.isEmpty()) {
+                boolean isAttachment =
+                    macroReference.endsWith(InlineDiagramManager.DIAGRAM_SUFFIX) && macroReference.contains("@");
+                if (isAttachment) {
+                    // Handle the reference to the actual attachment. Yes, attachments have backreferences.
+                    macroReferences.add(entityReferenceResolver.resolve(macroReference, EntityType.ATTACHMENT));
+                } else {
+                    macroReferences.add(entityReferenceResolver.resolve(macroReference, EntityType.DOCUMENT));
+                }
+            }
+        }
+        return macroReferences;
+    }
+}
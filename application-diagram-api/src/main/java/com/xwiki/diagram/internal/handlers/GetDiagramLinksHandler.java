@@ -20,7 +20,11 @@
 package com.xwiki.diagram.internal.handlers;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
@@ -36,6 +40,8 @@ import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 
+import com.xwiki.diagram.DiagramLink;
+
 /**
  * Parses the XML of a diagram and gets the links to wiki pages that are linked.
  * 
@@ -50,6 +56,8 @@ public class GetDiagramLinksHandler extends DefaultHandler
 
     private static final String LABEL = "label";
 
+    private static final String ID = "id";
+
     @Inject
     private DiagramLinkHandler linkHandler;
 
@@ -58,26 +66,56 @@ public class GetDiagramLinksHandler extends DefaultHandler
     private DocumentReferenceResolver<String> resolver;
 
     /**
-     * Lists of pages referenced inside nodes.
+     * The links found inside nodes, in document order.
+     */
+    private final List<FoundLink> foundLinks = new ArrayList<>();
+
+    /**
+     * A link found in a node, before its reference is resolved.
      */
-    private List<String> linkedPages = new ArrayList<String>();
+    private static final class FoundLink
+    {
+        private final String cellId;
+
+        private final DiagramLink.Kind kind;
+
+        private final String link;
+
+        FoundLink(String cellId, DiagramLink.Kind kind, String link)
+        {
+            this.cellId = cellId;
+            this.kind = kind;
+            this.link = link;
+        }
+    }
 
     @Override
     public void startElement(String uri, String key, String qName, Attributes attributes) throws SAXException
     {
         if (qName.equalsIgnoreCase(DiagramLinkHandler.USEROBJECT)) {
+            String cellId = attributes.getValue(ID);
             // User Object nodes can store the link in 2 places in the attribute "link" and in the label as
             // a <a href = "customLink">actualLabel</a>
             if (attributes.getValue(LINK) != null) {
-                linkedPages.add(linkHandler.getUserObjectNodeLink(attributes.getValue(LINK)));
+                addLink(cellId, DiagramLink.Kind.LINK, linkHandler.getUserObjectNodeLink(attributes.getValue(LINK)));
             }
             // I didn't manage to create the situation where there are links in both the LINK and LABEL attributes,
             // but to keep it safe we check both cases instead of having an else if.
             if (attributes.getValue(LABEL) != null && attributes.getValue(LABEL).contains("href")) {
-                linkedPages.addAll(linkHandler.getMxCellNodeLinks(attributes.getValue(LABEL)));
+                linkHandler.getMxCellNodeLinks(attributes.getValue(LABEL))
+                    .forEach(link -> addLink(cellId, DiagramLink.Kind.LABEL, link));
             }
         } else if (qName.equalsIgnoreCase(DiagramLinkHandler.MXCELL)) {
-            linkedPages.addAll(linkHandler.getMxCellNodeLinks(attributes.getValue("value")));
+            String cellId = attributes.getValue(ID);
+            linkHandler.getMxCellNodeLinks(attributes.getValue("value"))
+                .forEach(link -> addLink(cellId, DiagramLink.Kind.LABEL, link));
+        }
+    }
+
+    private void addLink(String cellId, DiagramLink.Kind kind, String link)
+    {
+        if (link != null) {
+            this.foundLinks.add(new FoundLink(cellId, kind, link));
         }
     }
 
@@ -89,7 +127,27 @@ public class GetDiagramLinksHandler extends DefaultHandler
      */
     public List<EntityReference> getLinkedPages(DocumentReference diagramReference)
     {
-        return linkedPages.stream().distinct().map(link -> resolver.resolve(link, diagramReference))
-            .collect(Collectors.toList());
+        return foundLinks.stream().map(foundLink -> foundLink.link).distinct()
+            .map(link -> resolver.resolve(link, diagramReference)).collect(Collectors.toList());
+    }
+
+    /**
+     * Get the unique links of the diagram, with the cell holding them.
+     *
+     * @param diagramReference the reference of the document holding the diagram, used to resolve the links
+     * @param source the diagram holding the links, either the document or an inline diagram attachment
+     * @return the links of the diagram, in document order
+     * @since 2.0.1
+     */
+    public List<DiagramLink> getLinks(DocumentReference diagramReference, EntityReference source)
+    {
+        Map<String, DocumentReference> resolvedLinks = new HashMap<>();
+        Set<DiagramLink> links = new LinkedHashSet<>();
+        for (FoundLink foundLink : foundLinks) {
+            DocumentReference target = resolvedLinks.computeIfAbsent(foundLink.link,
+                link -> resolver.resolve(link, diagramReference));
+            links.add(new DiagramLink(source, target, foundLink.cellId, foundLink.kind));
+        }
+        return new ArrayList<>(links);
     }
 }
@@ -19,8 +19,16 @@
  */
 package com.xwiki.diagram.internal.handlers;
 
-import java.util.Date;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
@@ -28,21 +36,31 @@ import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
 import org.xwiki.model.reference.DocumentReferenceResolver;
-import org.xwiki.model.reference.EntityReference;
 import org.xwiki.search.solr.SolrEntityMetadataExtractor;
 
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
-
-import static com.xwiki.diagram.internal.AttachmentUtils.getContentAsString;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DiagramConfiguration;
+import com.xwiki.diagram.internal.index.DiagramLinkIndex;
 
 /**
  * Handles the registration of backlinks for the inline diagrams.
  * <p>
+ * Every inline diagram attachment is indexed, whatever its age, but only the attachment versions whose links are not
+ * cached by the {@link DiagramLinksCache} are parsed. When a document has several inline diagrams, they are parsed
+ * concurrently on a bounded pool of threads. The links are also recorded, with their cell, in the
+ * {@link DiagramLinkIndex}.
  *
  * @version $Id$
  * @since 2.0
@@ -50,43 +68,119 @@ import static com.xwiki.diagram.internal.AttachmentUtils.getContentAsString;
 @Component
 @Named("macroinlinediagram")
 @Singleton
-public class InlineDiagramContentSolrMetadataExtractor implements SolrEntityMetadataExtractor<XWikiDocument>
+public class InlineDiagramContentSolrMetadataExtractor
+    implements SolrEntityMetadataExtractor<XWikiDocument>, Initializable, Disposable
 {
     @Inject
-    private DiagramContentHandler diagramContentHandler;
+    private DiagramLinksCache linksCache;
 
     @Inject
     private LinkRegistry linkRegistry;
 
+    @Inject
+    private DiagramLinkIndex linkIndex;
+
     @Inject
     @Named("explicit")
     private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
 
+    @Inject
+    private DiagramConfiguration configuration;
+
     @Inject
     private Provider<XWikiContext> contextProvider;
 
+    @Inject
+    private Logger logger;
+
+    private ExecutorService parsingExecutor;
+
+    @Override
+    public void initialize()
+    {
+        this.parsingExecutor = Executors.newFixedThreadPool(this.configuration.getIndexingThreadCount(),
+            new BasicThreadFactory.Builder().namingPattern("Inline Diagram Indexing Thread %d").daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.parsingExecutor.shutdownNow();
+    }
+
     @Override
     public boolean extract(XWikiDocument document, SolrInputDocument solrDocument)
     {
-        long tenMinutesMillis = 10L * 60L * 1000L;
-        Date tenMinutesAgo = new Date(System.currentTimeMillis() - tenMinutesMillis);
         // The XWikiDocument API doesn't have a method to get all attachments with a specific file extension so we
         // get all and filter them.
-        // We also filter the attachments to index only the new ones (no older than 10 minutes), because checking
-        // every diagram attachment whenever someone updates a single one can cause performance issues. This is not a
-        // foolproof time window, but if there are no huge indexing jobs running on the instance, the document
-        // should be indexed immediately after it is saved.
-        List<XWikiAttachment> attachments =
-            document.getAttachmentList().stream().filter(attachment -> attachment.getFilename().endsWith("diagram"
-                + ".xml") && attachment.getDate().after(tenMinutesAgo)).collect(Collectors.toList());
+        List<XWikiAttachment> attachments = document.getAttachmentList().stream()
+            .filter(attachment -> attachment.getFilename().endsWith("diagram.xml")).collect(Collectors.toList());
+        if (attachments.isEmpty()) {
+            updateLinkIndex(document, Collections.emptyList());
+            return false;
+        }
+
+        // The links are registered on this thread since the Solr document is not thread safe.
+        List<DiagramLink> documentLinks = new ArrayList<>();
         boolean pageUpdated = false;
-        for (XWikiAttachment attachment : attachments) {
-            String content = getContentAsString(attachment, contextProvider.get());
-            List<EntityReference> references =
-                diagramContentHandler.getLinkedPages(content, document.getDocumentReference());
-            pageUpdated |= linkRegistry.registerBacklinks(solrDocument, references);
+        for (List<DiagramLink> links : getLinks(document, attachments).values()) {
+            documentLinks.addAll(links);
+            pageUpdated |= linkRegistry.registerBacklinks(solrDocument,
+                links.stream().map(DiagramLink::getTarget).distinct().collect(Collectors.toList()));
         }
+        updateLinkIndex(document, documentLinks);
 
         return pageUpdated;
     }
+
+    private void updateLinkIndex(XWikiDocument document, List<DiagramLink> links)
+    {
+        // The attachments are shared by all the translations, so only the default one is indexed.
+        if (!document.isTranslation()) {
+            this.linkIndex.update(document.getDocumentReference(), DiagramLinkIndex.Scope.INLINE, links);
+        }
+    }
+
+    private Map<XWikiAttachment, List<DiagramLink>> getLinks(XWikiDocument document,
+        List<XWikiAttachment> attachments)
+    {
+        XWikiContext context = this.contextProvider.get();
+        Map<XWikiAttachment, List<DiagramLink>> links = new LinkedHashMap<>();
+        if (attachments.size() == 1) {
+            XWikiAttachment attachment = attachments.get(0);
+            links.put(attachment, this.linksCache.getLinks(document, attachment, context));
+            return links;
+        }
+
+        Map<XWikiAttachment, Future<List<DiagramLink>>> parsing = new LinkedHashMap<>();
+        for (XWikiAttachment attachment : attachments) {
+            try {
+                // The store and the context can only be used from the thread that owns the context, so the content
+                // is opened here and only the parsing is done by the pool.
+                InputStream content = attachment.getContentInputStream(context);
+                parsing.put(attachment,
+                    this.parsingExecutor.submit(() -> this.linksCache.getLinks(document, attachment, content)));
+            } catch (XWikiException e) {
+                this.logger.warn("Failed to load the inline diagram [{}].", attachment.getReference(), e);
+                links.put(attachment, Collections.emptyList());
+            }
+        }
+        for (Map.Entry<XWikiAttachment, Future<List<DiagramLink>>> entry : parsing.entrySet()) {
+            links.put(entry.getKey(), getLinks(entry.getKey(), entry.getValue()));
+        }
+        return links;
+    }
+
+    private List<DiagramLink> getLinks(XWikiAttachment attachment, Future<List<DiagramLink>> parsing)
+    {
+        try {
+            return parsing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.logger.warn("Interrupted while parsing the inline diagram [{}].", attachment.getReference());
+        } catch (ExecutionException e) {
+            this.logger.warn("Failed to parse the inline diagram [{}].", attachment.getReference(), e.getCause());
+        }
+        return Collections.emptyList();
+    }
 }
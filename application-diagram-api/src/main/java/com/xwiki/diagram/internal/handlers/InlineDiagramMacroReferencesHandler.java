@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.rendering.block.Block;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.internal.InlineDiagramManager;
+
+/**
+ * Handles the references of the inline diagram macro to the attachment holding the diagram, so that the macro is
+ * updated when the attachment is moved.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component
+@Named("inlineDiagram")
+@Singleton
+public class InlineDiagramMacroReferencesHandler implements MacroReferencesHandler
+{
+    @Override
+    public List<EntityReference> getReferences(XWikiDocument document, List<Block> macroBlocks)
+    {
+        List<EntityReference> macroReferences = new ArrayList<>();
+        for (Block macroBlock : macroBlocks) {
+            String diagramName = macroBlock.getParameter("diagramName");
+            if (diagramName != null && !diagramName.isEmpty()) {
+                macroReferences.add(new AttachmentReference(diagramName + InlineDiagramManager.DIAGRAM_SUFFIX,
+                    document.getDocumentReference()));
+            }
+        }
+        return macroReferences;
+    }
+}
@@ -20,17 +20,17 @@
 package com.xwiki.diagram.internal.handlers;
 
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
 import javax.inject.Inject;
-import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.EntityReference;
-import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.search.solr.internal.api.FieldUtils;
 
 /**
@@ -46,8 +46,7 @@ public class LinkRegistry
     private static final String ENTITY_PREFIX = "entity:";
 
     @Inject
-    @Named("withtype/withparameters")
-    private EntityReferenceSerializer<String> entitySerializer;
+    private DiagramReferenceCache referenceCache;
 
     /**
      * Associates the provided list of reference pages with the specified Solr document, establishing backlinks from
@@ -61,22 +60,24 @@ public class LinkRegistry
 
     public boolean registerBacklinks(SolrInputDocument solrDocument, List<EntityReference> references)
     {
-        Set<String> links = new HashSet<>(references.size());
-        Set<String> extendedLinks = new HashSet<>(references.size());
+        // The values already stored in the document are copied once in hash sets, so that duplicates are detected in
+        // constant time, whatever the number of links.
+        Set<Object> existingLinks = getValues(solrDocument, FieldUtils.LINKS);
+        Set<Object> existingExtendedLinks = getValues(solrDocument, FieldUtils.LINKS_EXTENDED);
+        Set<String> links = new LinkedHashSet<>(references.size());
+        Set<String> extendedLinks = new LinkedHashSet<>(references.size());
         boolean updated = false;
 
         for (EntityReference reference : references) {
             EntityReference entityReference =
                 new EntityReference(reference.getName(), reference.getType(), reference.getParent());
-            String serializedEntity = entitySerializer.serialize(entityReference);
+            String serializedEntity = referenceCache.serialize(entityReference);
             //First we check if the solar document already contains this link so we don't store duplicates.
-            boolean alreadyExists =
-                solrDocument.get(FieldUtils.LINKS) != null && solrDocument.get(FieldUtils.LINKS).getValues()
-                    .contains(serializedEntity);
-            if (!alreadyExists) {
-                links.add(serializedEntity);
-                extendedLinks.add(serializedEntity);
-                this.extendLink(entityReference, extendedLinks);
+            if (!existingLinks.contains(serializedEntity) && links.add(serializedEntity)) {
+                if (existingExtendedLinks.add(serializedEntity)) {
+                    extendedLinks.add(serializedEntity);
+                }
+                this.extendLink(entityReference, existingExtendedLinks, extendedLinks);
                 updated = true;
             }
         }
@@ -89,21 +90,33 @@ public class LinkRegistry
         }
         return updated;
     }
+
+    private Set<Object> getValues(SolrInputDocument solrDocument, String fieldName)
+    {
+        SolrInputField field = solrDocument.get(fieldName);
+        return field != null && field.getValues() != null ? new HashSet<>(field.getValues()) : new HashSet<>();
+    }
+
     // Reference org.xwiki.search.solr.internal.metadata.SolrLinkSerializer
     private String serialize(EntityReference reference)
     {
-        return ENTITY_PREFIX + this.entitySerializer.serialize(reference);
+        return ENTITY_PREFIX + this.referenceCache.serialize(reference);
     }
 
     // Reference org.xwiki.search.solr.internal.metadata.AbstractSolrMetadataExtractor
-    private void extendLink(EntityReference reference, Set<String> linksExtended)
+    private void extendLink(EntityReference reference, Set<Object> knownLinksExtended, Set<String> linksExtended)
     {
         // Ensures that the links are added with their parent to the extended link list so the links are properly
-        // linked.
+        // linked. A parent is always added along with all its own parents, so we can stop at the first one that is
+        // already known instead of serializing the rest of the hierarchy again.
         for (EntityReference parent = reference.getParameters().isEmpty() ? reference
             : new EntityReference(reference.getName(), reference.getType(), reference.getParent(), null);
             parent != null; parent = parent.getParent()) {
-            linksExtended.add(this.serialize(parent));
+            String serializedParent = this.serialize(parent);
+            if (!knownLinksExtended.add(serializedParent)) {
+                break;
+            }
+            linksExtended.add(serializedParent);
         }
     }
 }
@@ -0,0 +1,46 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.rendering.block.Block;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Computes the entities referenced by the calls of a diagram macro, so that their backlinks can be indexed. The hint
+ * of each implementation is the id of the macro it handles.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Role
+public interface MacroReferencesHandler
+{
+    /**
+     * @param document the document containing the macro calls
+     * @param macroBlocks the calls of the handled macro found in the document
+     * @return the entities referenced by the macro calls
+     */
+    List<EntityReference> getReferences(XWikiDocument document, List<Block> macroBlocks);
+}
@@ -0,0 +1,491 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xwiki.diagram.DiagramLink;
+
+/**
+ * Records the links of the diagrams to the wiki entities, with the cell holding each link and its kind, so that the
+ * links from a diagram and the diagrams linking to a page can be found without querying Solr or loading any document.
+ * <p>
+ * The links of a document are updated incrementally by the Solr extractors, each of them replacing the links of its
+ * own {@link Scope}. Only the links that were added or removed since the previous update of the scope are applied to
+ * the backlinks and appended to a journal stored in the permanent directory, so that saving a large diagram in which a
+ * single link changed doesn't rewrite all its links. The journal is replayed when XWiki starts and compacted once it
+ * holds too many outdated lines.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramLinkIndex.class)
+@Singleton
+public class DiagramLinkIndex implements Initializable, Disposable
+{
+    /**
+     * The origins of the links of a document, each of them updated independently.
+     */
+    public enum Scope
+    {
+        /**
+         * The links from the content of a standalone diagram.
+         */
+        CONTENT,
+
+        /**
+         * The links from the inline diagrams attached to a document.
+         */
+        INLINE,
+
+        /**
+         * The references of the diagram macros called in a document.
+         */
+        MACROS
+    }
+
+    private static final String UPDATE = "U";
+
+    private static final String DIFF = "D";
+
+    private static final String REMOVE = "R";
+
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private static final String LIST_SEPARATOR = ",";
+
+    private static final String VALUE_SEPARATOR = ":";
+
+    private static final int MIN_COMPACTION_SIZE = 1000;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private EntityReferenceResolver<String> resolver;
+
+    @Inject
+    private Logger logger;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<DocumentReference, Map<Scope, Set<DiagramLink>>> linksByDocument = new HashMap<>();
+
+    private final Map<DocumentReference, Set<DiagramLink>> linksByTarget = new HashMap<>();
+
+    private File journalFile;
+
+    private Writer journal;
+
+    private int journalSize;
+
+    private int scopeCount;
+
+    @Override
+    public void initialize()
+    {
+        this.journalFile = new File(this.environment.getPermanentDirectory(), "diagram/links.journal");
+        if (this.journalFile.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(this.journalFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                }
+            } catch (IOException e) {
+                this.logger.error("Failed to load the diagram link index from [{}].", this.journalFile, e);
+            }
+        }
+        compact();
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.lock.writeLock().lock();
+        try {
+            closeJournal();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the links of a document that come from the given scope. Only the links that were added or removed are
+     * applied and saved.
+     *
+     * @param document the document holding the links
+     * @param scope the origin of the links
+     * @param links the new links of the document for the given scope, empty if it has none anymore
+     * @return {@code true} if the links have changed, {@code false} if they were already indexed
+     */
+    public boolean update(DocumentReference document, Scope scope, List<DiagramLink> links)
+    {
+        this.lock.writeLock().lock();
+        try {
+            Set<DiagramLink> currentLinks = getLinks(document, scope);
+            Set<DiagramLink> newLinks = new LinkedHashSet<>(links);
+            List<DiagramLink> addedLinks = new ArrayList<>();
+            for (DiagramLink link : newLinks) {
+                if (!currentLinks.contains(link)) {
+                    addedLinks.add(link);
+                }
+            }
+            List<DiagramLink> removedLinks = new ArrayList<>();
+            for (DiagramLink link : currentLinks) {
+                if (!newLinks.contains(link)) {
+                    removedLinks.add(link);
+                }
+            }
+            if (addedLinks.isEmpty() && removedLinks.isEmpty()) {
+                return false;
+            }
+            apply(document, scope, addedLinks, removedLinks);
+            appendToJournal(DIFF + FIELD_SEPARATOR + serialize(document) + FIELD_SEPARATOR + scope
+                + FIELD_SEPARATOR + serialize(addedLinks) + FIELD_SEPARATOR + serialize(removedLinks));
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all the links of a document, for example when it is deleted.
+     *
+     * @param document the document holding the links
+     */
+    public void remove(DocumentReference document)
+    {
+        this.lock.writeLock().lock();
+        try {
+            if (this.linksByDocument.containsKey(document)) {
+                removeAll(document);
+                appendToJournal(REMOVE + FIELD_SEPARATOR + serialize(document));
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all the links of the documents of a wiki, for example when the wiki is deleted. The journal is compacted
+     * right away so that it doesn't keep the links of the wiki either.
+     *
+     * @param wiki the name of the wiki
+     */
+    public void removeWiki(String wiki)
+    {
+        this.lock.writeLock().lock();
+        try {
+            List<DocumentReference> documents = new ArrayList<>();
+            for (DocumentReference document : this.linksByDocument.keySet()) {
+                if (document.getWikiReference().getName().equals(wiki)) {
+                    documents.add(document);
+                }
+            }
+            if (!documents.isEmpty()) {
+                documents.forEach(this::removeAll);
+                compact();
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param document a document holding diagrams or diagram macros
+     * @return the links from the diagrams and the diagram macros of the document
+     */
+    public List<DiagramLink> getLinks(DocumentReference document)
+    {
+        this.lock.readLock().lock();
+        try {
+            List<DiagramLink> links = new ArrayList<>();
+            Map<Scope, Set<DiagramLink>> documentLinks = this.linksByDocument.get(document);
+            if (documentLinks != null) {
+                documentLinks.values().forEach(links::addAll);
+            }
+            return links;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param target a document
+     * @return the links from the diagrams to the document or to one of its attachments
+     */
+    public List<DiagramLink> getBacklinks(DocumentReference target)
+    {
+        this.lock.readLock().lock();
+        try {
+            Set<DiagramLink> links = this.linksByTarget.get(target);
+            return links != null ? new ArrayList<>(links) : Collections.emptyList();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param wiki the name of a wiki
+     * @return the links from the diagrams to the documents of the given wiki, indexed by the target document
+     */
+    public Map<DocumentReference, List<DiagramLink>> getBacklinksByTarget(String wiki)
+    {
+        this.lock.readLock().lock();
+        try {
+            Map<DocumentReference, List<DiagramLink>> backlinks = new HashMap<>();
+            this.linksByTarget.forEach((target, links) -> {
+                if (target.getWikiReference().getName().equals(wiki)) {
+                    backlinks.put(target, new ArrayList<>(links));
+                }
+            });
+            return backlinks;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private Set<DiagramLink> getLinks(DocumentReference document, Scope scope)
+    {
+        Map<Scope, Set<DiagramLink>> documentLinks = this.linksByDocument.get(document);
+        Set<DiagramLink> links = documentLinks != null ? documentLinks.get(scope) : null;
+        return links != null ? links : Collections.emptySet();
+    }
+
+    private void put(DocumentReference document, Scope scope, List<DiagramLink> links)
+    {
+        apply(document, scope, links, new ArrayList<>(getLinks(document, scope)));
+    }
+
+    private void removeAll(DocumentReference document)
+    {
+        for (Scope scope : Scope.values()) {
+            apply(document, scope, Collections.emptyList(), new ArrayList<>(getLinks(document, scope)));
+        }
+    }
+
+    private void apply(DocumentReference document, Scope scope, Collection<DiagramLink> addedLinks,
+        Collection<DiagramLink> removedLinks)
+    {
+        Map<Scope, Set<DiagramLink>> documentLinks =
+            this.linksByDocument.computeIfAbsent(document, key -> new EnumMap<>(Scope.class));
+        Set<DiagramLink> scopeLinks = documentLinks.computeIfAbsent(scope, key -> {
+            this.scopeCount++;
+            return new LinkedHashSet<>();
+        });
+        for (DiagramLink link : removedLinks) {
+            if (scopeLinks.remove(link)) {
+                updateBacklinks(link, false);
+            }
+        }
+        for (DiagramLink link : addedLinks) {
+            if (scopeLinks.add(link)) {
+                updateBacklinks(link, true);
+            }
+        }
+        if (scopeLinks.isEmpty()) {
+            documentLinks.remove(scope);
+            this.scopeCount--;
+        }
+        if (documentLinks.isEmpty()) {
+            this.linksByDocument.remove(document);
+        }
+    }
+
+    private void updateBacklinks(DiagramLink link, boolean add)
+    {
+        DocumentReference target = new DocumentReference(link.getTarget().extractReference(EntityType.DOCUMENT));
+        if (add) {
+            this.linksByTarget.computeIfAbsent(target, key -> new LinkedHashSet<>()).add(link);
+        } else {
+            Set<DiagramLink> links = this.linksByTarget.get(target);
+            if (links != null && links.remove(link) && links.isEmpty()) {
+                this.linksByTarget.remove(target);
+            }
+        }
+    }
+
+    private void replay(String line)
+    {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        try {
+            DocumentReference document = deserializeDocument(fields[1]);
+            if (UPDATE.equals(fields[0]) && fields.length == 4) {
+                put(document, Scope.valueOf(fields[2]), deserializeLinks(fields[3]));
+            } else if (DIFF.equals(fields[0]) && fields.length == 5) {
+                apply(document, Scope.valueOf(fields[2]), deserializeLinks(fields[3]), deserializeLinks(fields[4]));
+            } else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+                removeAll(document);
+            }
+        } catch (RuntimeException e) {
+            // The last line can be incomplete if XWiki was stopped while it was written.
+            this.logger.warn("Skipping invalid diagram link index line [{}] from [{}]", line, this.journalFile);
+        }
+    }
+
+    private void appendToJournal(String line)
+    {
+        try {
+            if (this.journal == null) {
+                this.journalFile.getParentFile().mkdirs();
+                this.journal = Files.newBufferedWriter(this.journalFile.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            this.journal.write(line + '\n');
+            this.journal.flush();
+        } catch (IOException e) {
+            this.logger.warn("Failed to save a change of the diagram link index. It will be lost if XWiki is "
+                + "restarted before the diagram is indexed again.", e);
+        }
+        if (++this.journalSize > Math.max(MIN_COMPACTION_SIZE, 2 * this.scopeCount)) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the journal so that it contains only the current links of each document, replacing the differences
+     * recorded since the last compaction.
+     */
+    private void compact()
+    {
+        this.lock.writeLock().lock();
+        try {
+            closeJournal();
+            this.journalFile.getParentFile().mkdirs();
+            File compactedFile = new File(this.journalFile.getParentFile(), this.journalFile.getName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(compactedFile.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<DocumentReference, Map<Scope, Set<DiagramLink>>> documentLinks
+                    : this.linksByDocument.entrySet()) {
+                    String document = serialize(documentLinks.getKey());
+                    for (Map.Entry<Scope, Set<DiagramLink>> scopeLinks : documentLinks.getValue().entrySet()) {
+                        writer.write(UPDATE + FIELD_SEPARATOR + document + FIELD_SEPARATOR + scopeLinks.getKey()
+                            + FIELD_SEPARATOR + serialize(scopeLinks.getValue()) + '\n');
+                    }
+                }
+            }
+            Files.move(compactedFile.toPath(), this.journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            this.journalSize = this.scopeCount;
+        } catch (IOException e) {
+            this.logger.warn("Failed to compact the diagram link index journal [{}].", this.journalFile, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void closeJournal()
+    {
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                this.logger.warn("Failed to close the diagram link index journal [{}].", this.journalFile, e);
+            }
+            this.journal = null;
+        }
+    }
+
+    private String serialize(Collection<DiagramLink> links)
+    {
+        List<String> serializedLinks = new ArrayList<>(links.size());
+        for (DiagramLink link : links) {
+            serializedLinks.add(String.join(VALUE_SEPARATOR, link.getKind().name(), encode(link.getCellId()),
+                serialize(link.getSource()), serialize(link.getTarget())));
+        }
+        return String.join(LIST_SEPARATOR, serializedLinks);
+    }
+
+    private String serialize(EntityReference reference)
+    {
+        return reference.getType().name() + VALUE_SEPARATOR + encode(this.serializer.serialize(reference));
+    }
+
+    private List<DiagramLink> deserializeLinks(String field)
+    {
+        List<DiagramLink> links = new ArrayList<>();
+        for (String link : StringUtils.split(field, LIST_SEPARATOR)) {
+            String[] values = link.split(VALUE_SEPARATOR, -1);
+            links.add(new DiagramLink(deserialize(values[2], values[3]), deserialize(values[4], values[5]),
+                decode(values[1]), DiagramLink.Kind.valueOf(values[0])));
+        }
+        return links;
+    }
+
+    private DocumentReference deserializeDocument(String field)
+    {
+        String[] values = field.split(VALUE_SEPARATOR, -1);
+        return new DocumentReference(deserialize(values[0], values[1]));
+    }
+
+    private EntityReference deserialize(String type, String reference)
+    {
+        return this.resolver.resolve(decode(reference), EntityType.valueOf(type));
+    }
+
+    private static String encode(String value)
+    {
+        // The encoded value doesn't contain any of the separators.
+        return value != null ? URLEncoder.encode(value, StandardCharsets.UTF_8) : "";
+    }
+
+    private static String decode(String value)
+    {
+        return value.isEmpty() ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
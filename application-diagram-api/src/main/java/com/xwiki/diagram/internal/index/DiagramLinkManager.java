@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.QueryException;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DocumentExistenceChecker;
+
+/**
+ * Answers the questions about the diagram links using the {@link DiagramLinkIndex}. Only the links from the diagrams
+ * that the current user can view are returned.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramLinkManager.class)
+@Singleton
+public class DiagramLinkManager
+{
+    @Inject
+    private DiagramLinkIndex linkIndex;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    @Inject
+    private DocumentExistenceChecker existenceChecker;
+
+    /**
+     * @param document a document holding diagrams or diagram macros
+     * @return the links from the diagrams and the diagram macros of the document
+     */
+    public List<DiagramLink> getLinks(DocumentReference document)
+    {
+        return filterViewable(this.linkIndex.getLinks(document));
+    }
+
+    /**
+     * @param target a document
+     * @return the links from the diagrams to the document or to one of its attachments
+     */
+    public List<DiagramLink> getBacklinks(DocumentReference target)
+    {
+        return filterViewable(this.linkIndex.getBacklinks(target));
+    }
+
+    /**
+     * @param wiki the name of a wiki
+     * @return the links from the diagrams to the documents of the given wiki that don't exist
+     * @throws QueryException if checking the existence of the linked documents fails
+     */
+    public List<DiagramLink> getBrokenLinks(String wiki) throws QueryException
+    {
+        Map<DocumentReference, List<DiagramLink>> backlinksByTarget = this.linkIndex.getBacklinksByTarget(wiki);
+        Set<DocumentReference> existingTargets =
+            this.existenceChecker.getExistingDocuments(backlinksByTarget.keySet());
+        List<DiagramLink> brokenLinks = new ArrayList<>();
+        backlinksByTarget.forEach((target, links) -> {
+            if (!existingTargets.contains(target)) {
+                brokenLinks.addAll(links);
+            }
+        });
+        return filterViewable(brokenLinks);
+    }
+
+    private List<DiagramLink> filterViewable(List<DiagramLink> links)
+    {
+        return links.stream().filter(link -> this.authorization.hasAccess(Right.VIEW, link.getSource()))
+            .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.index;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryFilter;
+import org.xwiki.query.QueryManager;
+import org.xwiki.search.solr.SolrIndexer;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DiagramConfiguration;
+import com.xwiki.diagram.internal.InlineDiagramManager;
+import com.xwiki.diagram.internal.handlers.DiagramContentHandler;
+import com.xwiki.diagram.internal.handlers.DiagramLinksCache;
+
+/**
+ * Rebuilds the links of the standalone diagrams and of the inline diagrams of some wikis, without reindexing the
+ * whole wiki. The documents are processed in batches: the diagrams of a batch are parsed concurrently, their links are
+ * recorded in the {@link DiagramLinkIndex}, and the documents are then handed to the Solr indexer so that their
+ * backlinks are updated too, using the links that were just cached. A pause can be made between two batches in order
+ * to limit the load put on the database and on the attachment store.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component
+@Named(DiagramLinksReindexJob.JOB_TYPE)
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class DiagramLinksReindexJob
+    extends AbstractJob<DiagramLinksReindexRequest, DefaultJobStatus<DiagramLinksReindexRequest>>
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOB_TYPE = "diagram.links.reindex";
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("document")
+    private QueryFilter documentQueryFilter;
+
+    @Inject
+    private DiagramLinksCache linksCache;
+
+    @Inject
+    private DiagramLinkIndex linkIndex;
+
+    @Inject
+    private SolrIndexer solrIndexer;
+
+    @Inject
+    private DiagramConfiguration configuration;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Override
+    public String getType()
+    {
+        return JOB_TYPE;
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        List<DocumentReference> documents = getDocuments();
+        int batchSize = this.configuration.getReindexBatchSize();
+        long batchDelay = this.configuration.getReindexBatchDelay();
+        int batchCount = (documents.size() + batchSize - 1) / batchSize;
+        this.logger.info("Rebuilding the links of [{}] diagram documents in [{}] batches.", documents.size(),
+            batchCount);
+
+        ExecutorService parsingExecutor = Executors.newFixedThreadPool(this.configuration.getReindexThreadCount(),
+            new BasicThreadFactory.Builder().namingPattern("Diagram Links Reindex Thread %d").daemon(true).build());
+        this.progressManager.pushLevelProgress(batchCount, this);
+        try {
+            for (int start = 0; start < documents.size(); start += batchSize) {
+                if (start > 0 && batchDelay > 0) {
+                    Thread.sleep(batchDelay);
+                }
+                this.progressManager.startStep(this);
+                reindex(documents.subList(start, Math.min(start + batchSize, documents.size())), parsingExecutor);
+                this.progressManager.endStep(this);
+            }
+        } finally {
+            this.progressManager.popLevelProgress(this);
+            parsingExecutor.shutdownNow();
+        }
+    }
+
+    private List<DocumentReference> getDocuments() throws QueryException
+    {
+        Set<DocumentReference> documents = new LinkedHashSet<>();
+        for (String wiki : this.request.getWikis()) {
+            documents.addAll(getDocuments(wiki, ", BaseObject as obj where doc.fullName = obj.name"
+                + " and obj.className = 'Diagram.DiagramClass' and doc.fullName <> 'Diagram.DiagramTemplate'"));
+            documents.addAll(getDocuments(wiki, ", XWikiAttachment as attachment where attachment.docId = doc.id"
+                + " and attachment.filename like '%" + InlineDiagramManager.DIAGRAM_SUFFIX + "'"));
+        }
+        return new ArrayList<>(documents);
+    }
+
+    private List<DocumentReference> getDocuments(String wiki, String statement) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(statement, Query.HQL);
+        return query.setWiki(wiki).addFilter(this.documentQueryFilter).execute();
+    }
+
+    private void reindex(List<DocumentReference> documents, ExecutorService parsingExecutor)
+    {
+        XWikiContext xcontext = this.contextProvider.get();
+        Map<DocumentReference, Future<List<DiagramLink>>> contentParsing = new LinkedHashMap<>();
+        Map<DocumentReference, List<Future<List<DiagramLink>>>> inlineParsing = new LinkedHashMap<>();
+        for (DocumentReference documentReference : documents) {
+            try {
+                // The store and the context can only be used from the thread that owns the context, so the documents
+                // are loaded and the attachments are opened here, and only the parsing is done by the pool.
+                XWikiDocument document = xcontext.getWiki().getDocument(documentReference, xcontext);
+                if (document.getXObject(DiagramContentHandler.DIAGRAM_CLASS) != null) {
+                    contentParsing.put(documentReference,
+                        parsingExecutor.submit(() -> this.linksCache.getLinks(document)));
+                }
+                List<Future<List<DiagramLink>>> attachmentsParsing = new ArrayList<>();
+                for (XWikiAttachment attachment : document.getAttachmentList()) {
+                    if (attachment.getFilename().endsWith(InlineDiagramManager.DIAGRAM_SUFFIX)) {
+                        InputStream content = attachment.getContentInputStream(xcontext);
+                        attachmentsParsing.add(parsingExecutor
+                            .submit(() -> this.linksCache.getLinks(document, attachment, content)));
+                    }
+                }
+                inlineParsing.put(documentReference, attachmentsParsing);
+            } catch (XWikiException e) {
+                this.logger.warn("Failed to load the diagrams of [{}].", documentReference, e);
+            }
+        }
+
+        for (Map.Entry<DocumentReference, List<Future<List<DiagramLink>>>> entry : inlineParsing.entrySet()) {
+            DocumentReference documentReference = entry.getKey();
+            Future<List<DiagramLink>> parsing = contentParsing.get(documentReference);
+            this.linkIndex.update(documentReference, DiagramLinkIndex.Scope.CONTENT,
+                parsing != null ? getLinks(documentReference, parsing) : Collections.emptyList());
+            List<DiagramLink> inlineLinks = new ArrayList<>();
+            for (Future<List<DiagramLink>> attachmentParsing : entry.getValue()) {
+                inlineLinks.addAll(getLinks(documentReference, attachmentParsing));
+            }
+            this.linkIndex.update(documentReference, DiagramLinkIndex.Scope.INLINE, inlineLinks);
+            // The Solr extractors find the links in the cache, so the diagrams are not parsed again.
+            this.solrIndexer.index(documentReference, false);
+        }
+    }
+
+    private List<DiagramLink> getLinks(DocumentReference documentReference, Future<List<DiagramLink>> parsing)
+    {
+        try {
+            return parsing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.logger.warn("Interrupted while parsing the diagrams of [{}].", documentReference);
+        } catch (ExecutionException e) {
+            this.logger.warn("Failed to parse the diagrams of [{}].", documentReference, e.getCause());
+        }
+        return Collections.emptyList();
+    }
+}
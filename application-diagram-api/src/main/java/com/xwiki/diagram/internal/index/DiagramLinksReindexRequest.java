@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.xwiki.job.AbstractRequest;
+
+/**
+ * The request of the {@link DiagramLinksReindexJob}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+public class DiagramLinksReindexRequest extends AbstractRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PROPERTY_WIKIS = "wikis";
+
+    /**
+     * @param wikis the wikis whose diagram links are rebuilt
+     */
+    public DiagramLinksReindexRequest(List<String> wikis)
+    {
+        setId(getJobId(wikis));
+        setProperty(PROPERTY_WIKIS, wikis);
+    }
+
+    /**
+     * @return the wikis whose diagram links are rebuilt
+     */
+    public List<String> getWikis()
+    {
+        return getProperty(PROPERTY_WIKIS, Collections.emptyList());
+    }
+
+    /**
+     * @param wikis the wikis whose diagram links are rebuilt
+     * @return the id of the job rebuilding the diagram links of these wikis
+     */
+    public static List<String> getJobId(List<String> wikis)
+    {
+        List<String> id = new ArrayList<>(Arrays.asList("diagram", "links", "reindex"));
+        id.addAll(wikis);
+        return id;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.rest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.QueryException;
+import org.xwiki.rest.XWikiResource;
+import org.xwiki.stability.Unstable;
+
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.DiagramLinksResources;
+import com.xwiki.diagram.internal.index.DiagramLinkManager;
+
+/**
+ * Default implementation of {@link DiagramLinksResources}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component
+@Named("com.xwiki.diagram.internal.rest.DefaultDiagramLinksResource")
+@Singleton
+@Unstable
+public class DefaultDiagramLinksResource extends XWikiResource implements DiagramLinksResources
+{
+    @Inject
+    private DiagramLinkManager linkManager;
+
+    @Inject
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private Logger logger;
+
+    @Override
+    public Response getLinks(String documentReference)
+    {
+        return toResponse(this.linkManager.getLinks(this.resolver.resolve(documentReference)));
+    }
+
+    @Override
+    public Response getBacklinks(String documentReference)
+    {
+        return toResponse(this.linkManager.getBacklinks(this.resolver.resolve(documentReference)));
+    }
+
+    @Override
+    public Response getBrokenLinks(String wiki)
+    {
+        try {
+            return toResponse(this.linkManager.getBrokenLinks(wiki));
+        } catch (QueryException e) {
+            logger.error("Failed to get the broken diagram links of the wiki [{}].", wiki, e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    private Response toResponse(List<DiagramLink> links)
+    {
+        List<Map<String, String>> entity = links.stream().map(this::toMap).collect(Collectors.toList());
+        return Response.status(Response.Status.OK).entity(entity).build();
+    }
+
+    private Map<String, String> toMap(DiagramLink link)
+    {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("source", this.serializer.serialize(link.getSource()));
+        values.put("sourceType", link.getSource().getType().name());
+        values.put("target", this.serializer.serialize(link.getTarget()));
+        values.put("targetType", link.getTarget().getType().name());
+        values.put("cellId", link.getCellId());
+        values.put("kind", link.getKind().name());
+        return values;
+    }
+}
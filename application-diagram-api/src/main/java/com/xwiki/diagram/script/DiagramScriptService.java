@@ -19,17 +19,38 @@
  */
 package com.xwiki.diagram.script;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.job.JobStatusStore;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.QueryException;
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.script.service.ScriptServiceManager;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
 import org.xwiki.stability.Unstable;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
 
+import com.xwiki.diagram.DiagramLink;
 import com.xwiki.diagram.internal.DiagramImporter;
+import com.xwiki.diagram.internal.handlers.DiagramLinksCache;
+import com.xwiki.diagram.internal.handlers.DiagramReferenceCache;
+import com.xwiki.diagram.internal.index.DiagramLinkManager;
+import com.xwiki.diagram.internal.index.DiagramLinksReindexJob;
+import com.xwiki.diagram.internal.index.DiagramLinksReindexRequest;
 
 /**
  * Script services for the Diagram application.
@@ -54,6 +75,27 @@ public class DiagramScriptService implements ScriptService
     @Inject
     private DiagramImporter diagramImporter;
 
+    @Inject
+    private DiagramLinkManager linkManager;
+
+    @Inject
+    private DiagramLinksCache linksCache;
+
+    @Inject
+    private DiagramReferenceCache referenceCache;
+
+    @Inject
+    private WikiDescriptorManager wikiDescriptorManager;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    @Inject
+    private JobStatusStore jobStatusStore;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
     @Inject
     private Logger logger;
 
@@ -86,4 +128,119 @@ public class DiagramScriptService implements ScriptService
             return null;
         }
     }
+
+    /**
+     * @param documentReference a document holding diagrams or diagram macros
+     * @return the links from the diagrams and the diagram macros of the document, as recorded by the diagram link
+     *     index
+     * @since 2.0.1
+     */
+    @Unstable
+    public List<DiagramLink> getDiagramLinks(DocumentReference documentReference)
+    {
+        return this.linkManager.getLinks(documentReference);
+    }
+
+    /**
+     * @param documentReference a document
+     * @return the links from the diagrams that the current user can view to the document or to its attachments
+     * @since 2.0.1
+     */
+    @Unstable
+    public List<DiagramLink> getDiagramBacklinks(DocumentReference documentReference)
+    {
+        return this.linkManager.getBacklinks(documentReference);
+    }
+
+    /**
+     * @return the links from the diagrams that the current user can view to the documents of the current wiki that
+     *     don't exist, or {@code null} if they could not be computed
+     * @since 2.0.1
+     */
+    @Unstable
+    public List<DiagramLink> getBrokenDiagramLinks()
+    {
+        try {
+            return this.linkManager.getBrokenLinks(this.wikiDescriptorManager.getCurrentWikiId());
+        } catch (QueryException e) {
+            logger.error("Cannot get the broken diagram links.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts rebuilding the links of the diagrams of the current wiki, unless this is already in progress. The current
+     * user needs administration rights on the current wiki.
+     *
+     * @return the job rebuilding the diagram links, or {@code null} if it could not be started
+     * @since 2.0.1
+     */
+    @Unstable
+    public Job reindexDiagramLinks()
+    {
+        String wiki = this.wikiDescriptorManager.getCurrentWikiId();
+        if (!this.authorization.hasAccess(Right.ADMIN, new WikiReference(wiki))) {
+            return null;
+        }
+
+        List<String> jobId = DiagramLinksReindexRequest.getJobId(List.of(wiki));
+        Job job = this.jobExecutor.getJob(jobId);
+        if (job != null) {
+            return job;
+        }
+        try {
+            return this.jobExecutor.execute(DiagramLinksReindexJob.JOB_TYPE,
+                new DiagramLinksReindexRequest(List.of(wiki)));
+        } catch (JobException e) {
+            logger.error("Cannot start rebuilding the diagram links.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the status of the job rebuilding the links of the diagrams of the current wiki, or {@code null} if the
+     *     links were never rebuilt
+     * @since 2.0.1
+     */
+    @Unstable
+    public JobStatus getDiagramLinksReindexJobStatus()
+    {
+        List<String> jobId =
+            DiagramLinksReindexRequest.getJobId(List.of(this.wikiDescriptorManager.getCurrentWikiId()));
+        Job job = this.jobExecutor.getJob(jobId);
+        return job != null ? job.getStatus() : this.jobStatusStore.getJobStatus(jobId);
+    }
+
+    /**
+     * @return the usage of the cache holding the links extracted from the diagrams, with the {@code hitCount},
+     *     {@code missCount} and {@code hitRate} keys
+     * @since 2.0.1
+     */
+    @Unstable
+    public Map<String, Number> getDiagramLinksCacheStatistics()
+    {
+        return getCacheStatistics(this.linksCache.getHitCount(), this.linksCache.getMissCount(),
+            this.linksCache.getHitRate());
+    }
+
+    /**
+     * @return the usage of the cache holding the references serialized and resolved while indexing the diagrams, with
+     *     the {@code hitCount}, {@code missCount} and {@code hitRate} keys
+     * @since 2.0.1
+     */
+    @Unstable
+    public Map<String, Number> getDiagramReferenceCacheStatistics()
+    {
+        return getCacheStatistics(this.referenceCache.getHitCount(), this.referenceCache.getMissCount(),
+            this.referenceCache.getHitRate());
+    }
+
+    private Map<String, Number> getCacheStatistics(long hitCount, long missCount, double hitRate)
+    {
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("hitCount", hitCount);
+        statistics.put("missCount", missCount);
+        statistics.put("hitRate", hitRate);
+        return statistics;
+    }
 }
@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.validation.EntityNameValidation;
+import org.xwiki.model.validation.EntityNameValidationConfiguration;
+import org.xwiki.model.validation.EntityNameValidationManager;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.internal.handlers.DiagramReferenceCache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramMacroNormalizationRunnable}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramMacroNormalizationRunnableTest
+{
+    private static final String REFERENCE = "reference";
+
+    private static final String STRATEGY = "Strategy";
+
+    private static final String DIAGRAM = "Diagram";
+
+    private static final DocumentReference DOCUMENT_REFERENCE = new DocumentReference("wiki", "Space", "Page");
+
+    private static final DocumentReference DIAGRAM_REFERENCE = new DocumentReference("wiki", "Space", "Target");
+
+    @InjectMockComponents
+    private DiagramMacroNormalizationRunnable runnable;
+
+    @MockComponent
+    private DiagramReferenceCache referenceCache;
+
+    @MockComponent
+    private EntityNameValidationManager entityNameValidationManager;
+
+    @MockComponent
+    private EntityNameValidationConfiguration entityNameValidationConfiguration;
+
+    @MockComponent
+    private DocumentExistenceChecker existenceChecker;
+
+    @Mock
+    private XWikiContext xwikiContext;
+
+    @Mock
+    private XWiki wiki;
+
+    @Mock
+    private XWikiDocument xwikiDocument;
+
+    @Mock
+    private XDOM xdom;
+
+    @Mock
+    private EntityNameValidation entityNameValidation;
+
+    @BeforeEach
+    void setup() throws Exception
+    {
+        when(this.xwikiDocument.getXDOM()).thenReturn(xdom);
+        when(this.xwikiContext.getWiki()).thenReturn(this.wiki);
+        when(this.xwikiDocument.getDocumentReference()).thenReturn(DOCUMENT_REFERENCE);
+        when(entityNameValidationConfiguration.useValidation()).thenReturn(true);
+        when(entityNameValidationConfiguration.useTransformation()).thenReturn(true);
+        when(entityNameValidationManager.getEntityReferenceNameStrategy()).thenReturn(entityNameValidation);
+        when(this.referenceCache.resolveDocument(anyString(), eq(DOCUMENT_REFERENCE))).thenReturn(DIAGRAM_REFERENCE);
+        when(this.existenceChecker.getExistingDocuments(any())).thenReturn(Collections.emptySet());
+    }
+
+    /**
+     * The diagram was created in another version, but the reference doesn't respect the name strategy, but we want to
+     * keep the reference so we don't break the macros that already exist.
+     */
+    @Test
+    void normalizeKeepsTheReferencesOfExistingDiagrams() throws Exception
+    {
+        MacroBlock block = this.createMacroBlock(STRATEGY);
+        when(this.xdom.getBlocks(any(), any())).thenReturn(List.of(block));
+        when(this.existenceChecker.getExistingDocuments(any())).thenReturn(Set.of(DIAGRAM_REFERENCE));
+        when(entityNameValidation.isValid(STRATEGY)).thenReturn(false);
+        when(entityNameValidation.transform(STRATEGY)).thenReturn("Strategy2");
+
+        assertFalse(this.runnable.normalize(this.xwikiDocument, this.xwikiContext));
+
+        assertEquals(STRATEGY, block.getParameter(REFERENCE));
+        verify(this.wiki, never()).saveDocument(any(), anyString(), any());
+    }
+
+    /**
+     * The diagram doesn't exist yet and the reference doesn't respect the name strategy.
+     */
+    @Test
+    void normalizeTransformsInvalidReferences() throws Exception
+    {
+        MacroBlock block = this.createMacroBlock("AAAA");
+        when(this.xdom.getBlocks(any(), any())).thenReturn(List.of(block));
+        when(entityNameValidation.isValid("AAAA")).thenReturn(false);
+        when(entityNameValidation.transform("AAAA")).thenReturn("BBBB");
+
+        assertTrue(this.runnable.normalize(this.xwikiDocument, this.xwikiContext));
+
+        assertEquals("BBBB", block.getParameter(REFERENCE));
+        verify(this.xwikiDocument).setContent(this.xdom);
+        verify(this.wiki).saveDocument(this.xwikiDocument,
+            "Updated diagram macro references to respect the name strategy.", this.xwikiContext);
+    }
+
+    /**
+     * The macro has the default settings where the reference is missing and there is a naming strategy that updates the
+     * name.
+     */
+    @Test
+    void normalizeAddsMissingReferences() throws Exception
+    {
+        MacroBlock block = this.createMacroBlock(null);
+        when(this.xdom.getBlocks(any(), any())).thenReturn(List.of(block));
+        when(entityNameValidation.isValid(DIAGRAM)).thenReturn(false);
+        when(entityNameValidation.transform(DIAGRAM)).thenReturn("Anagram");
+
+        assertTrue(this.runnable.normalize(this.xwikiDocument, this.xwikiContext));
+
+        assertEquals("Anagram", block.getParameter(REFERENCE));
+    }
+
+    /**
+     * Tests that the diagram macros are updated only when both Transform names automatically & Validate names before
+     * saving are set to true.
+     */
+    @Test
+    void normalizeDependsOnTheNameStrategyConfiguration() throws Exception
+    {
+        assertTrue(this.testNameStrategyConfiguration(false, false));
+        assertTrue(this.testNameStrategyConfiguration(true, false));
+        assertTrue(this.testNameStrategyConfiguration(false, true));
+    }
+
+    @Test
+    void needsNormalizationOfMissingOrInvalidReferences() throws Exception
+    {
+        when(entityNameValidation.isValid(STRATEGY)).thenReturn(false);
+        when(entityNameValidation.transform(STRATEGY)).thenReturn("Strategy2");
+
+        assertTrue(this.runnable.needsNormalization(DOCUMENT_REFERENCE, List.of(this.createMacroBlock(null))));
+        assertTrue(this.runnable.needsNormalization(DOCUMENT_REFERENCE, List.of(this.createMacroBlock(STRATEGY))));
+    }
+
+    /**
+     * The references of the existing diagrams are kept, so the document must not be scheduled each time it's indexed.
+     */
+    @Test
+    void needsNormalizationIgnoresTheReferencesThatAreKept() throws Exception
+    {
+        when(entityNameValidation.isValid(DIAGRAM)).thenReturn(true);
+        when(entityNameValidation.isValid(STRATEGY)).thenReturn(false);
+        when(entityNameValidation.transform(STRATEGY)).thenReturn("Strategy2");
+        when(this.existenceChecker.getExistingDocuments(List.of(DIAGRAM_REFERENCE)))
+            .thenReturn(Set.of(DIAGRAM_REFERENCE));
+
+        assertFalse(this.runnable.needsNormalization(DOCUMENT_REFERENCE, List.of(this.createMacroBlock(DIAGRAM))));
+        assertFalse(this.runnable.needsNormalization(DOCUMENT_REFERENCE, List.of(this.createMacroBlock(STRATEGY))));
+
+        // Without the automatic transformation, the invalid references are kept too.
+        when(entityNameValidationConfiguration.useTransformation()).thenReturn(false);
+        when(this.existenceChecker.getExistingDocuments(any())).thenReturn(Collections.emptySet());
+        assertFalse(this.runnable.needsNormalization(DOCUMENT_REFERENCE, List.of(this.createMacroBlock(STRATEGY))));
+    }
+
+    @Test
+    void scheduleIgnoresDocumentsAlreadyScheduled()
+    {
+        this.runnable.schedule(DOCUMENT_REFERENCE);
+        this.runnable.schedule(DOCUMENT_REFERENCE);
+
+        DiagramQueueEntry entry = this.runnable.getNextDiagramQueueEntry();
+        assertEquals(List.of(DOCUMENT_REFERENCE), entry.backlinks);
+        assertTrue(entry.linkedRenames.isEmpty());
+
+        this.runnable.addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
+        assertEquals(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY, this.runnable.getNextDiagramQueueEntry());
+    }
+
+    @Test
+    void stopEntryIsTakenOnlyOnce()
+    {
+        this.runnable.addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
+        this.runnable.schedule(DOCUMENT_REFERENCE);
+        this.runnable.addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
+
+        // The first stop entry drops the pending entries but keeps the stop entry of the other thread.
+        assertEquals(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY, this.runnable.getNextDiagramQueueEntry());
+        assertEquals(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY, this.runnable.getNextDiagramQueueEntry());
+
+        this.runnable.addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
+        this.runnable.removeStopEntries();
+        this.runnable.schedule(DIAGRAM_REFERENCE);
+        assertEquals(List.of(DIAGRAM_REFERENCE), this.runnable.getNextDiagramQueueEntry().backlinks);
+    }
+
+    private boolean testNameStrategyConfiguration(boolean transformsNameAutomatically,
+        boolean validateNamesBeforeSaving) throws Exception
+    {
+        MacroBlock block = this.createMacroBlock(DIAGRAM);
+        when(this.xdom.getBlocks(any(), any())).thenReturn(List.of(block));
+        when(entityNameValidationConfiguration.useValidation()).thenReturn(validateNamesBeforeSaving);
+        when(entityNameValidationConfiguration.useTransformation()).thenReturn(transformsNameAutomatically);
+        when(entityNameValidation.isValid(DIAGRAM)).thenReturn(false);
+        when(entityNameValidation.transform(DIAGRAM)).thenReturn("Anagram");
+        this.runnable.normalize(this.xwikiDocument, this.xwikiContext);
+        return DIAGRAM.equals(block.getParameter(REFERENCE));
+    }
+
+    private MacroBlock createMacroBlock(String name)
+    {
+        return new MacroBlock("diagram", Collections.singletonMap(REFERENCE, name), false);
+    }
+}
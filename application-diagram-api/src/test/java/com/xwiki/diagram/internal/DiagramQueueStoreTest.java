@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramQueueStore}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramQueueStoreTest
+{
+    private static final DocumentReference OLD_PAGE = new DocumentReference("wiki", "Space", "Old Page");
+
+    private static final DocumentReference NEW_PAGE = new DocumentReference("wiki", "Space", "New\tPage");
+
+    private static final DocumentReference BACKLINK = new DocumentReference("wiki", "Space", "Backlink");
+
+    private static final DocumentReference RENAMED_BACKLINK = new DocumentReference("wiki", "Other", "Backlink");
+
+    private static final String QUEUE = "links";
+
+    @InjectMockComponents
+    private DiagramQueueStore store;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private DocumentReferenceResolver<String> resolver;
+
+    @MockComponent
+    private Logger logger;
+
+    @TempDir
+    private File permanentDirectory;
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        when(this.serializer.serialize(any())).thenAnswer(invocation -> {
+            DocumentReference reference = invocation.getArgument(0);
+            return String.join("/", reference.getWikiReference().getName(),
+                reference.getLastSpaceReference().getName(), reference.getName());
+        });
+        when(this.resolver.resolve(anyString())).thenAnswer(invocation -> {
+            String[] parts = invocation.<String>getArgument(0).split("/");
+            return new DocumentReference(parts[0], parts[1], parts[2]);
+        });
+    }
+
+    @Test
+    void loadPendingEntriesWithoutJournal()
+    {
+        assertTrue(this.store.loadPendingEntries(QUEUE).isEmpty());
+    }
+
+    @Test
+    void loadPendingEntriesSkipsAcknowledgedEntries()
+    {
+        Map<DocumentReference, DocumentReference> renameMap = new HashMap<>();
+        renameMap.put(OLD_PAGE, NEW_PAGE);
+        DiagramQueueEntry first = new DiagramQueueEntry(OLD_PAGE, NEW_PAGE, Arrays.asList(BACKLINK), "job", renameMap);
+        DiagramQueueEntry second =
+            new DiagramQueueEntry(NEW_PAGE, OLD_PAGE, Collections.emptyList(), "job", renameMap);
+
+        this.store.append(QUEUE, first);
+        this.store.append(QUEUE, second);
+        this.store.acknowledge(QUEUE, first);
+
+        List<DiagramQueueEntry> entries = this.store.loadPendingEntries(QUEUE);
+        assertEquals(1, entries.size());
+        DiagramQueueEntry entry = entries.get(0);
+        assertEquals(NEW_PAGE, entry.originalDocRef);
+        assertEquals(OLD_PAGE, entry.currentDocRef);
+        assertTrue(entry.backlinks.isEmpty());
+        assertEquals("job", entry.jobID);
+        assertEquals(Collections.singletonMap(NEW_PAGE, OLD_PAGE), entry.linkedRenames);
+    }
+
+    @Test
+    void loadPendingEntriesRestoresGroupedEntries()
+    {
+        Map<DocumentReference, DocumentReference> renameMap = new HashMap<>();
+        renameMap.put(OLD_PAGE, NEW_PAGE);
+        renameMap.put(BACKLINK, RENAMED_BACKLINK);
+        Map<DocumentReference, DocumentReference> linkedRenames = new LinkedHashMap<>();
+        linkedRenames.put(OLD_PAGE, NEW_PAGE);
+
+        this.store.append(QUEUE, new DiagramQueueEntry(BACKLINK, linkedRenames, "job", renameMap));
+
+        List<DiagramQueueEntry> entries = this.store.loadPendingEntries(QUEUE);
+        assertEquals(1, entries.size());
+        DiagramQueueEntry entry = entries.get(0);
+        assertNull(entry.originalDocRef);
+        assertEquals(Arrays.asList(BACKLINK), entry.backlinks);
+        assertEquals(linkedRenames, entry.linkedRenames);
+        // Only the renames of the entry's backlinks are kept.
+        assertEquals(Collections.singletonMap(BACKLINK, RENAMED_BACKLINK), entry.renameMap);
+    }
+
+    @Test
+    void acknowledgeRestoredEntries()
+    {
+        this.store.append(QUEUE,
+            new DiagramQueueEntry(OLD_PAGE, NEW_PAGE, Arrays.asList(BACKLINK), "job", Collections.emptyMap()));
+
+        List<DiagramQueueEntry> entries = this.store.loadPendingEntries(QUEUE);
+        assertEquals(1, entries.size());
+        this.store.acknowledge(QUEUE, entries.get(0));
+
+        assertTrue(this.store.loadPendingEntries(QUEUE).isEmpty());
+        assertEquals(0, new File(this.permanentDirectory, "diagram/queues/links.journal").length());
+    }
+}
@@ -21,6 +21,7 @@ package com.xwiki.diagram.internal;
 
 import java.lang.reflect.Field;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -33,13 +34,16 @@ import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Unit tests for {@link DiagramRunnableThreadsManager}.
@@ -59,6 +63,9 @@ class DiagramRunnableThreadsManagerTest
     @MockComponent
     private DiagramMacroRunnable diagramMacroRunnable;
 
+    @MockComponent
+    private DiagramConfiguration configuration;
+
     @MockComponent
     private Logger logger;
 
@@ -66,13 +73,25 @@ class DiagramRunnableThreadsManagerTest
     void setUp()
     {
         ReflectionUtils.setFieldValue(manager, "logger", this.logger);
+        when(this.configuration.getLinksUpdateThreadCount()).thenReturn(2);
     }
 
-    private Thread getThread(String fieldName) throws Exception
+    private Object getField(String fieldName) throws Exception
     {
         Field field = DiagramRunnableThreadsManager.class.getDeclaredField(fieldName);
         field.setAccessible(true);
-        return (Thread) field.get(manager);
+        return field.get(manager);
+    }
+
+    private Thread getThread(String fieldName) throws Exception
+    {
+        return (Thread) getField(fieldName);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Thread> getThreads(String fieldName) throws Exception
+    {
+        return (List<Thread>) getField(fieldName);
     }
 
     @Test
@@ -80,20 +99,31 @@ class DiagramRunnableThreadsManagerTest
     {
         manager.maybeStart();
 
-        assertNotNull(getThread("diagramLinksThread"));
+        assertNotNull(getThreads("diagramLinksThreads"));
         assertNotNull(getThread("diagramMacroThread"));
     }
 
+    @Test
+    void testStartThreadsStartsConfiguredNumberOfLinksThreads() throws Exception
+    {
+        manager.startThreads();
+
+        List<Thread> linksThreads = getThreads("diagramLinksThreads");
+        assertEquals(2, linksThreads.size());
+        assertEquals("Update Diagram Links Thread 1", linksThreads.get(0).getName());
+        assertEquals("Update Diagram Links Thread 2", linksThreads.get(1).getName());
+    }
+
     @Test
     void testMaybeStartDoesNotReinitializeExistingThreads() throws Exception
     {
         manager.maybeStart();
-        Thread linksThread = getThread("diagramLinksThread");
+        List<Thread> linksThreads = getThreads("diagramLinksThreads");
         Thread macroThread = getThread("diagramMacroThread");
 
         manager.maybeStart();
 
-        assertSame(linksThread, getThread("diagramLinksThread"));
+        assertSame(linksThreads, getThreads("diagramLinksThreads"));
         assertSame(macroThread, getThread("diagramMacroThread"));
     }
 
@@ -101,12 +131,12 @@ class DiagramRunnableThreadsManagerTest
     void testStartThreadsIsIdempotent() throws Exception
     {
         manager.startThreads();
-        Thread linksThread = getThread("diagramLinksThread");
+        List<Thread> linksThreads = getThreads("diagramLinksThreads");
         Thread macroThread = getThread("diagramMacroThread");
 
         manager.startThreads();
 
-        assertSame(linksThread, getThread("diagramLinksThread"));
+        assertSame(linksThreads, getThreads("diagramLinksThreads"));
         assertSame(macroThread, getThread("diagramMacroThread"));
     }
 
@@ -139,6 +169,21 @@ class DiagramRunnableThreadsManagerTest
         verify(diagramLinksRunnable).addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
     }
 
+    @Test
+    void testStopThreadPoolAddsStopEntryPerThreadAndJoinsAllThreads() throws InterruptedException
+    {
+        Thread first = new Thread(() -> { });
+        Thread second = new Thread(() -> { });
+        first.start();
+        second.start();
+
+        manager.stopThreads(List.of(first, second), diagramLinksRunnable);
+
+        verify(diagramLinksRunnable, times(2)).addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
+        verify(diagramLinksRunnable).removeStopEntries();
+        assertTrue(!first.isAlive() && !second.isAlive());
+    }
+
     @Test
     void testStopThreadsWithNullThreadsDoesNothing()
     {
@@ -155,7 +200,7 @@ class DiagramRunnableThreadsManagerTest
 
         manager.stopThreads();
 
-        verify(diagramLinksRunnable).addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
+        verify(diagramLinksRunnable, times(2)).addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
         verify(diagramMacroRunnable).addToQueue(AbstractDiagramRunnable.STOP_RUNNABLE_ENTRY);
     }
 
@@ -171,7 +216,7 @@ class DiagramRunnableThreadsManagerTest
             }
         });
         blockingThread.start();
-        ReflectionUtils.setFieldValue(manager, "diagramLinksThread", blockingThread);
+        ReflectionUtils.setFieldValue(manager, "diagramLinksThreads", List.of(blockingThread));
 
         Thread.currentThread().interrupt();
         manager.stopThreads();
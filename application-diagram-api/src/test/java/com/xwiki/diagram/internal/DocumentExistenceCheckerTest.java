@@ -0,0 +1,111 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DocumentExistenceChecker}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DocumentExistenceCheckerTest
+{
+    private static final String NAMES = "names";
+
+    @InjectMockComponents
+    private DocumentExistenceChecker existenceChecker;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Mock
+    private Query query;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.localSerializer.serialize(any()))
+            .thenAnswer(invocation -> "Space." + invocation.<DocumentReference>getArgument(0).getName());
+        when(this.queryManager.createQuery("where doc.fullName in (:names)", Query.HQL)).thenReturn(this.query);
+        when(this.query.setWiki(anyString())).thenReturn(this.query);
+        when(this.query.bindValue(eq(NAMES), any())).thenReturn(this.query);
+        when(this.query.execute()).thenReturn(List.of("Space.Page0"));
+    }
+
+    @Test
+    void getExistingDocumentsQueriesEachWikiByBatch() throws Exception
+    {
+        List<DocumentReference> references = new ArrayList<>();
+        for (int i = 0; i < 501; i++) {
+            references.add(new DocumentReference("wiki", "Space", "Page" + i));
+        }
+        DocumentReference otherWikiPage = new DocumentReference("other", "Space", "Page0");
+        references.add(otherWikiPage);
+
+        Set<DocumentReference> existingDocuments = this.existenceChecker.getExistingDocuments(references);
+
+        assertEquals(2, existingDocuments.size());
+        assertTrue(existingDocuments.contains(references.get(0)));
+        assertTrue(existingDocuments.contains(otherWikiPage));
+        verify(this.query, times(2)).setWiki("wiki");
+        verify(this.query).setWiki("other");
+        verify(this.query, times(3)).execute();
+    }
+
+    @Test
+    void getExistingDocumentsWithoutReferences() throws Exception
+    {
+        assertTrue(this.existenceChecker.getExistingDocuments(List.of()).isEmpty());
+
+        verify(this.query, never()).execute();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link AhoCorasickMatcher}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+class AhoCorasickMatcherTest
+{
+    private static AhoCorasickMatcher matcher(String... patterns)
+    {
+        return new AhoCorasickMatcher(List.of(patterns).stream()
+            .map(pattern -> pattern.getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList()));
+    }
+
+    private static byte[] bytes(String content)
+    {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void matchesAnyPattern()
+    {
+        AhoCorasickMatcher matcher = matcher("doc:wiki:Space.A", "doc:wiki:Space.B", "doc:wiki:Other.C");
+
+        assertTrue(matcher.matches(bytes("<a href=\"doc:wiki:Space.B\">B</a>")));
+        assertTrue(matcher.matches(bytes("xxdoc:wiki:Other.C")));
+        assertFalse(matcher.matches(bytes("doc:wiki:Space.C doc:wiki:Other.A")));
+    }
+
+    @Test
+    void matchesOverlappingPatterns()
+    {
+        // The failure links must make the automaton fall back to the longest suffix that is also a prefix.
+        AhoCorasickMatcher matcher = matcher("abcd", "bce");
+
+        assertTrue(matcher.matches(bytes("abce")));
+        assertFalse(matcher.matches(bytes("abcbd")));
+    }
+
+    @Test
+    void matchesPatternContainedInAnother()
+    {
+        AhoCorasickMatcher matcher = matcher("abcdef", "cd");
+
+        assertTrue(matcher.matches(bytes("abcx cd")));
+        assertTrue(matcher.matches(bytes("xbcdx")));
+    }
+
+    @Test
+    void matchesPatternSplitBetweenReads() throws Exception
+    {
+        String pattern = "data:xwiki/reference,doc:wiki:Space.A";
+        String content = "x".repeat(8190) + pattern + "y".repeat(10);
+
+        assertTrue(matcher(pattern).matches(new ByteArrayInputStream(bytes(content))));
+        assertFalse(matcher(pattern + "!").matches(new ByteArrayInputStream(bytes(content))));
+    }
+
+    @Test
+    void emptyMatcherMatchesNothing() throws Exception
+    {
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(Collections.emptyList());
+
+        assertTrue(matcher.isEmpty());
+        assertFalse(matcher.matches(bytes("anything")));
+        assertFalse(matcher.matches(new ByteArrayInputStream(bytes("anything"))));
+    }
+}
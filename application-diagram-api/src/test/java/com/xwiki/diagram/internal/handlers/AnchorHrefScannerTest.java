@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Unit tests for {@link AnchorHrefScanner}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+class AnchorHrefScannerTest
+{
+    @Test
+    void scanFindsAllAnchors()
+    {
+        assertEquals(List.of("data:xwiki/reference,doc:wiki:Space.A", "https://www.xwiki.org"),
+            AnchorHrefScanner.scan("<div><a href=\"data:xwiki/reference,doc:wiki:Space.A\">A</a> and "
+                + "<A class=link HREF='https://www.xwiki.org' target=_blank>XWiki</A></div>"));
+    }
+
+    @Test
+    void scanDecodesEntities()
+    {
+        assertEquals(List.of("a&b<c>\"d'AB"),
+            AnchorHrefScanner.scan("<a href=\"a&amp;b&lt;c&gt;&quot;d&apos;&#65;&#x42;\">x</a>"));
+    }
+
+    @Test
+    void scanIgnoresOtherElements()
+    {
+        assertEquals(Collections.emptyList(), AnchorHrefScanner.scan("<abbr href=\"x\">y</abbr><b>z</b>"));
+        assertEquals(List.of("x"), AnchorHrefScanner.scan("<a href=x name=y/>"));
+    }
+
+    @Test
+    void scanHrefsFindsTheAttributeValues()
+    {
+        String html = "<a href=\"x\">x</a><a id=y href = 'y' >y</a><a href=z>z</a>";
+        List<AnchorHrefScanner.Href> hrefs = AnchorHrefScanner.scanHrefs(html);
+
+        assertEquals(3, hrefs.size());
+        assertEquals("x", hrefs.get(0).getValue());
+        assertEquals("\"x\"", html.substring(hrefs.get(0).getStart(), hrefs.get(0).getEnd()));
+        assertEquals("y", hrefs.get(1).getValue());
+        assertEquals("'y'", html.substring(hrefs.get(1).getStart(), hrefs.get(1).getEnd()));
+        assertEquals("z", hrefs.get(2).getValue());
+        assertEquals("z", html.substring(hrefs.get(2).getStart(), hrefs.get(2).getEnd()));
+    }
+
+    @Test
+    void scanGivesUpOnMalformedMarkup()
+    {
+        assertNull(AnchorHrefScanner.scan("<a href=\"x>y</a>"));
+        assertNull(AnchorHrefScanner.scan("text <a"));
+        assertNull(AnchorHrefScanner.scan("<a href=\"&nbsp;\">x</a>"));
+        assertNull(AnchorHrefScanner.scan("<!-- <a href=\"x\">y</a> -->"));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DiagramConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramLinksCache}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramLinksCacheTest
+{
+    private static final DocumentReference DIAGRAM_REFERENCE = new DocumentReference("wiki", "Space", "Diagram");
+
+    private static final DocumentReference LINKED_PAGE = new DocumentReference("wiki", "Space", "Linked");
+
+    private static final String CONTENT = "<mxGraphModel/>";
+
+    @InjectMockComponents
+    private DiagramLinksCache linksCache;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private DiagramConfiguration configuration;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private Provider<DiagramContentHandler> contentHandlerProvider;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
+    @Mock
+    private DiagramContentHandler contentHandler;
+
+    @Mock
+    private XWikiDocument document;
+
+    private final Map<String, List<DiagramLink>> cacheContent = new HashMap<>();
+
+    private final List<EntityReference> linkedPages = List.of(LINKED_PAGE);
+
+    private final List<DiagramLink> links = List.of(
+        new DiagramLink(DIAGRAM_REFERENCE, LINKED_PAGE, "2", DiagramLink.Kind.LINK),
+        new DiagramLink(DIAGRAM_REFERENCE, LINKED_PAGE, "3", DiagramLink.Kind.LABEL));
+
+    @BeforeComponent
+    @SuppressWarnings("unchecked")
+    void beforeComponent() throws Exception
+    {
+        Cache<List<DiagramLink>> cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(invocation -> this.cacheContent.get(invocation.getArgument(0)));
+        doAnswer(invocation -> this.cacheContent.put(invocation.getArgument(0), invocation.getArgument(1)))
+            .when(cache).set(anyString(), any());
+        doAnswer(invocation -> this.cacheContent.remove(invocation.getArgument(0))).when(cache).remove(anyString());
+        when(this.cacheManager.<List<DiagramLink>>createNewCache(any(CacheConfiguration.class)))
+            .thenReturn(cache);
+        when(this.configuration.getLinksCacheSize()).thenReturn(10);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.serializer.serialize(any()))
+            .thenAnswer(invocation -> String.valueOf(invocation.<Object>getArgument(0)));
+        when(this.contentHandlerProvider.get()).thenReturn(this.contentHandler);
+        when(this.contentHandler.getLinks(CONTENT, DIAGRAM_REFERENCE, DIAGRAM_REFERENCE)).thenReturn(this.links);
+        when(this.document.getContent()).thenReturn(CONTENT);
+        when(this.document.getDocumentReference()).thenReturn(DIAGRAM_REFERENCE);
+        when(this.document.getDocumentReferenceWithLocale()).thenReturn(DIAGRAM_REFERENCE);
+        when(this.document.getVersion()).thenReturn("1.1");
+    }
+
+    @Test
+    void getLinkedPagesParsesTheContentOnlyOnce()
+    {
+        assertEquals(this.linkedPages, this.linksCache.getLinkedPages(this.document));
+        assertEquals(this.linkedPages, this.linksCache.getLinkedPages(this.document));
+
+        verify(this.contentHandler).getLinks(CONTENT, DIAGRAM_REFERENCE, DIAGRAM_REFERENCE);
+        assertEquals(1, this.linksCache.getHitCount());
+        assertEquals(1, this.linksCache.getMissCount());
+        assertEquals(0.5, this.linksCache.getHitRate());
+    }
+
+    @Test
+    void getLinksSharesTheParsedContentWithTheLinkedPages()
+    {
+        this.linksCache.getLinkedPages(this.document);
+
+        assertEquals(this.links, this.linksCache.getLinks(this.document));
+        verify(this.contentHandler).getLinks(CONTENT, DIAGRAM_REFERENCE, DIAGRAM_REFERENCE);
+    }
+
+    @Test
+    void getLinkedPagesOfNewVersion()
+    {
+        this.linksCache.getLinkedPages(this.document);
+        when(this.document.getVersion()).thenReturn("2.1");
+        this.linksCache.getLinkedPages(this.document);
+
+        verify(this.contentHandler, times(2)).getLinks(CONTENT, DIAGRAM_REFERENCE, DIAGRAM_REFERENCE);
+        assertEquals(2, this.linksCache.getMissCount());
+    }
+
+    @Test
+    void getLinkedPagesOfDirtyDocument()
+    {
+        when(this.document.isContentDirty()).thenReturn(true);
+
+        this.linksCache.getLinkedPages(this.document);
+        this.linksCache.getLinkedPages(this.document);
+
+        verify(this.contentHandler, times(2)).getLinks(CONTENT, DIAGRAM_REFERENCE, DIAGRAM_REFERENCE);
+        assertNull(this.linksCache.peekLinkedPages(this.document));
+    }
+
+    @Test
+    void getLinksOfAttachmentContent() throws Exception
+    {
+        AttachmentReference attachmentReference = new AttachmentReference("inline.diagram.xml", DIAGRAM_REFERENCE);
+        XWikiAttachment attachment = mock(XWikiAttachment.class);
+        when(attachment.getReference()).thenReturn(attachmentReference);
+        when(attachment.getVersion()).thenReturn("1.1");
+        InputStream content = mock(InputStream.class);
+        when(this.contentHandler.getLinks(content, DIAGRAM_REFERENCE, attachmentReference)).thenReturn(this.links);
+
+        assertEquals(this.links, this.linksCache.getLinks(this.document, attachment, content));
+        verify(content).close();
+
+        // The content of a cached attachment is closed without being parsed.
+        InputStream cachedContent = mock(InputStream.class);
+        assertEquals(this.links, this.linksCache.getLinks(this.document, attachment, cachedContent));
+        verify(cachedContent).close();
+        verify(this.contentHandler, never()).getLinks(cachedContent, DIAGRAM_REFERENCE, attachmentReference);
+        assertEquals(this.linkedPages, this.linksCache.peekLinkedPages(attachment));
+    }
+
+    @Test
+    void invalidate()
+    {
+        this.linksCache.getLinkedPages(this.document);
+        assertEquals(this.linkedPages, this.linksCache.peekLinkedPages(this.document));
+
+        this.linksCache.invalidate(this.document);
+
+        assertNull(this.linksCache.peekLinkedPages(this.document));
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+import org.xwiki.xml.html.HTMLCleaner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramLinksRewriter}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+@ComponentList({ DiagramLinkHandler.class, DiagramParserPool.class })
+class DiagramLinksRewriterTest
+{
+    private static final String PREFIX = "data:xwiki/reference,doc:";
+
+    private static final DocumentReference OLD_A = new DocumentReference("wiki", "Space", "A");
+
+    private static final DocumentReference NEW_A = new DocumentReference("wiki", "Moved", "A");
+
+    private static final DocumentReference OLD_B = new DocumentReference("wiki", "Space", "B");
+
+    private static final DocumentReference NEW_B = new DocumentReference("wiki", "Moved", "B");
+
+    @InjectMockComponents
+    private DiagramLinksRewriter linksRewriter;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private HTMLCleaner htmlCleaner;
+
+    private Map<String, String> newLinks;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        // The labels used in these tests are valid XHTML so we can parse them directly.
+        when(this.htmlCleaner.clean(any(Reader.class))).thenAnswer(invocation -> parse(
+            "<html>" + IOUtils.toString((Reader) invocation.getArgument(0)) + "</html>"));
+        this.newLinks = getNewLinks(Map.of(OLD_A, NEW_A, OLD_B, NEW_B));
+    }
+
+    private static Document parse(String xml) throws Exception
+    {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(toStream(xml));
+    }
+
+    private static InputStream toStream(String xml)
+    {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String link(DocumentReference reference)
+    {
+        return PREFIX + reference;
+    }
+
+    private static String anchor(DocumentReference reference)
+    {
+        return "&lt;a href=&quot;" + link(reference) + "&quot;&gt;" + reference.getName() + "&lt;/a&gt;";
+    }
+
+    @Test
+    void rewriteAllRenamedPagesInOnePass() throws Exception
+    {
+        String diagram = "<mxGraphModel><root>"
+            + "<UserObject id=\"1\" label=\"Label\" link=\"" + link(OLD_A) + "\"><mxCell/></UserObject>"
+            + "<mxCell id=\"2\" value=\"" + anchor(OLD_A) + " and " + anchor(OLD_B) + "\"><mxGeometry/></mxCell>"
+            + "</root></mxGraphModel>";
+
+        assertTrue(this.linksRewriter.needsRewrite(toStream(diagram), this.newLinks));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(this.linksRewriter.rewrite(toStream(diagram), output, this.newLinks));
+
+        Document document = parse(output.toString(StandardCharsets.UTF_8));
+        Element userObject = (Element) document.getElementsByTagName(DiagramLinkHandler.USEROBJECT).item(0);
+        assertEquals(link(NEW_A), userObject.getAttribute(DiagramLinkHandler.LINK));
+        assertEquals("Label", userObject.getAttribute(DiagramLinkHandler.LABEL));
+        Element mxCell = (Element) document.getElementsByTagName(DiagramLinkHandler.MXCELL).item(1);
+        assertEquals("<a href=\"" + link(NEW_A) + "\">A</a> and <a href=\"" + link(NEW_B) + "\">B</a>",
+            mxCell.getAttribute("value"));
+    }
+
+    @Test
+    void rewriteKeepsTheRestOfTheDiagram() throws Exception
+    {
+        String diagram = "<mxfile host=\"xwiki\"><diagram id=\"d\" name=\"Page-1\"><mxGraphModel><root>"
+            + "<UserObject id=\"1\" link=\"" + link(OLD_A) + "\"><mxCell/></UserObject>"
+            + "</root></mxGraphModel></diagram></mxfile>";
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        this.linksRewriter.rewrite(toStream(diagram), output, this.newLinks);
+
+        assertEquals(diagram.replace(link(OLD_A), link(NEW_A)), output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void rewriteKeepsTheLineBreaksAndTabsOfTheAttributes() throws Exception
+    {
+        String diagram = "<mxGraphModel><root>"
+            + "<mxCell id=\"1\" value=\"First line&#xa;" + anchor(OLD_A) + "&#xd;&#xa;\tlast line\"/>"
+            + "<mxCell id=\"2\" value=\"Not&#xa;linked&#x9;&quot;label&quot; &amp; &lt;more&gt;\"/>"
+            + "</root></mxGraphModel>";
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(this.linksRewriter.rewrite(toStream(diagram), output, this.newLinks));
+
+        Document original = parse(diagram);
+        Document rewritten = parse(output.toString(StandardCharsets.UTF_8));
+        Element firstCell = (Element) rewritten.getElementsByTagName(DiagramLinkHandler.MXCELL).item(0);
+        assertEquals("First line\n<a href=\"" + link(NEW_A) + "\">A</a>\r\n\tlast line",
+            firstCell.getAttribute("value"));
+        Element secondCell = (Element) rewritten.getElementsByTagName(DiagramLinkHandler.MXCELL).item(1);
+        assertEquals("Not\nlinked\t\"label\" & <more>", secondCell.getAttribute("value"));
+        assertEquals(((Element) original.getElementsByTagName(DiagramLinkHandler.MXCELL).item(1))
+            .getAttribute("value"), secondCell.getAttribute("value"));
+        assertEquals(0, firstCell.getChildNodes().getLength());
+    }
+
+    @Test
+    void rewriteSwappedPages() throws Exception
+    {
+        Map<String, String> swap = getNewLinks(Map.of(OLD_A, OLD_B, OLD_B, OLD_A));
+
+        assertEquals(List.of("<a href=\"" + link(OLD_B) + "\">A</a> and <a href=\"" + link(OLD_A) + "\">B</a>",
+            "<!-- comment --><a href=\"" + link(OLD_B) + "\">A</a> and <a href=\"" + link(OLD_A) + "\">B</a>"),
+            rewriteValues(anchor(OLD_A) + " and " + anchor(OLD_B), swap));
+    }
+
+    @Test
+    void rewriteChainedRenames() throws Exception
+    {
+        DocumentReference oldC = new DocumentReference("wiki", "Space", "C");
+        Map<String, String> chain = getNewLinks(Map.of(OLD_A, OLD_B, OLD_B, oldC));
+
+        assertEquals(List.of("<a href=\"" + link(OLD_B) + "\">A</a>", "<!-- comment --><a href=\"" + link(OLD_B)
+            + "\">A</a>"), rewriteValues(anchor(OLD_A), chain));
+    }
+
+    @Test
+    void rewriteDoesntModifyTheLinksSharingThePrefixOfARenamedPage() throws Exception
+    {
+        DocumentReference page = new DocumentReference("wiki", "Space", "Page");
+        DocumentReference page2 = new DocumentReference("wiki", "Space", "Page2");
+        DocumentReference movedPage = new DocumentReference("wiki", "Moved", "Page");
+        Map<String, String> rename = getNewLinks(Map.of(page, movedPage));
+
+        assertEquals(List.of("<a href=\"" + link(page2) + "\">Page2</a> and <a href=\"" + link(movedPage)
+            + "\">Page</a>", "<!-- comment --><a href=\"" + link(page2) + "\">Page2</a> and <a href=\""
+            + link(movedPage) + "\">Page</a>"), rewriteValues(anchor(page2) + " and " + anchor(page), rename));
+    }
+
+    /**
+     * Rewrites a diagram with two cells having the given label, the second one being rewritten without knowing where
+     * the links are because the label starts with a comment, and returns the new labels.
+     */
+    private List<String> rewriteValues(String label, Map<String, String> links) throws Exception
+    {
+        String diagram = "<mxGraphModel><root><mxCell id=\"1\" value=\"" + label + "\"/>"
+            + "<mxCell id=\"2\" value=\"&lt;!-- comment --&gt;" + label + "\"/></root></mxGraphModel>";
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(this.linksRewriter.rewrite(toStream(diagram), output, links));
+
+        NodeList cells = parse(output.toString(StandardCharsets.UTF_8))
+            .getElementsByTagName(DiagramLinkHandler.MXCELL);
+        return List.of(((Element) cells.item(0)).getAttribute("value"),
+            ((Element) cells.item(1)).getAttribute("value"));
+    }
+
+    private Map<String, String> getNewLinks(Map<DocumentReference, DocumentReference> renames) throws Exception
+    {
+        return this.componentManager.<DiagramLinkHandler>getInstance(DiagramLinkHandler.class).getNewLinks(renames);
+    }
+
+    @Test
+    void needsRewriteIgnoresOtherPages() throws Exception
+    {
+        DocumentReference other = new DocumentReference("wiki", "Space", "Other");
+        String diagram = "<mxGraphModel><root>"
+            + "<UserObject id=\"1\" link=\"" + link(other) + "\"><mxCell/></UserObject>"
+            + "<UserObject id=\"2\" link=\"https://www.xwiki.org\"><mxCell/></UserObject>"
+            + "<mxCell id=\"3\" value=\"" + anchor(other) + "\"><mxGeometry/></mxCell>"
+            + "</root></mxGraphModel>";
+
+        assertFalse(this.linksRewriter.needsRewrite(toStream(diagram), this.newLinks));
+    }
+}
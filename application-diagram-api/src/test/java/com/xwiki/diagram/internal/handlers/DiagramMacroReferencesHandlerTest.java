@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.internal.DiagramConfiguration;
+import com.xwiki.diagram.internal.DiagramRunnableThreadsManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link DiagramMacroReferencesHandler}
+ */
+@ComponentTest
+@ComponentList(DiagramReferenceCache.class)
+public class DiagramMacroReferencesHandlerTest
+{
+
+    private static final String REFERENCE = "reference";
+
+    private static final String STRATEGY = "Strategy";
+
+    private static final String DIAGRAM = "Diagram";
+
+    @InjectMockComponents
+    private DiagramMacroReferencesHandler handler;
+
+    @MockComponent
+    @Named("withtype/withparameters")
+    private EntityReferenceSerializer<String> entitySerializer;
+
+    @MockComponent
+    private DiagramConfiguration configuration;
+
+    @MockComponent
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    @MockComponent
+    private DiagramRunnableThreadsManager diagramRunnableThreadsManager;
+
+    @Mock
+    private XWikiDocument xwikiDocument;
+
+    @Mock
+    private DocumentReference documentReference;
+
+    @Mock
+    private DocumentReference diagramReference;
+
+    @BeforeComponent
+    void beforeComponent()
+    {
+        when(this.configuration.getReferenceCacheSize()).thenReturn(100);
+    }
+
+    @BeforeEach
+    void setup()
+    {
+        when(this.xwikiDocument.getDocumentReference()).thenReturn(documentReference);
+    }
+
+    /**
+     * The references that respect the name strategy are only resolved.
+     */
+    @Test
+    void getReferencesOfValidReference()
+    {
+        MacroBlock block = this.createMacroBlock(STRATEGY);
+        when(this.explicitDocumentReferenceResolver.resolve(STRATEGY, documentReference))
+            .thenReturn(diagramReference);
+
+        assertEquals(List.of(diagramReference), handler.getReferences(this.xwikiDocument, List.of(block)));
+
+        verify(this.diagramRunnableThreadsManager).needsMacroNormalization(documentReference, List.of(block));
+        verify(this.diagramRunnableThreadsManager, never()).submitMacroNormalization(any());
+        verify(this.xwikiDocument, never()).setContent(any(XDOM.class));
+    }
+
+    /**
+     * The references that have to be updated are left untouched by the handler, which schedules their update and
+     * indexes them with their current value.
+     */
+    @Test
+    void getReferencesSchedulesTheNormalization()
+    {
+        MacroBlock block = this.createMacroBlock(null);
+        when(this.diagramRunnableThreadsManager.needsMacroNormalization(any(), any())).thenReturn(true);
+        when(this.explicitDocumentReferenceResolver.resolve(DIAGRAM, documentReference))
+            .thenReturn(diagramReference);
+
+        assertEquals(List.of(diagramReference), handler.getReferences(this.xwikiDocument, List.of(block)));
+
+        assertNull(block.getParameter(REFERENCE));
+        verify(this.diagramRunnableThreadsManager).submitMacroNormalization(documentReference);
+        verify(this.xwikiDocument, never()).setContent(any(XDOM.class));
+    }
+
+    private MacroBlock createMacroBlock(String name)
+    {
+        return new MacroBlock("diagram", Collections.singletonMap(REFERENCE, name), false);
+    }
+}
@@ -23,183 +23,116 @@ import java.util.Collections;
 import java.util.List;
 
 import javax.inject.Named;
-import javax.inject.Provider;
 
 import org.apache.solr.common.SolrInputDocument;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.DocumentReferenceResolver;
-import org.xwiki.model.validation.EntityNameValidation;
-import org.xwiki.model.validation.EntityNameValidationConfiguration;
-import org.xwiki.model.validation.EntityNameValidationManager;
+import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.block.MacroBlock;
 import org.xwiki.rendering.block.XDOM;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
-import com.xpn.xwiki.XWiki;
-import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.index.DiagramLinkIndex;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 /**
  * Unit test for {@link DiagramMacroSolrMetadataExtractor}
  */
 @ComponentTest
-public class DiagramMacroSolrMetadataExtractorTest
+class DiagramMacroSolrMetadataExtractorTest
 {
-
-    private static final String REFERENCE = "reference";
-
-    private static final String STRATEGY = "Strategy";
-
-    private static final String DIAGRAM = "Diagram";
+    private static final DocumentReference DOCUMENT_REFERENCE = new DocumentReference("wiki", "Space", "Page");
 
     @InjectMockComponents
     private DiagramMacroSolrMetadataExtractor extractor;
 
     @MockComponent
-    @Named("explicit")
-    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+    @Named("diagram")
+    private MacroReferencesHandler diagramReferencesHandler;
 
     @MockComponent
-    private Provider<XWikiContext> contextProvider;
+    @Named("embedDiagram")
+    private MacroReferencesHandler embedDiagramReferencesHandler;
 
     @MockComponent
-    private EntityNameValidationManager entityNameValidationManager;
+    @Named("inlineDiagram")
+    private MacroReferencesHandler inlineDiagramReferencesHandler;
 
     @MockComponent
-    private EntityNameValidationConfiguration entityNameValidationConfiguration;
+    private LinkRegistry linkRegistry;
 
-    @Mock
-    private XWikiContext xwikiContext;
-
-    @Mock
-    private XWiki wiki;
+    @MockComponent
+    private DiagramLinkIndex linkIndex;
 
     @Mock
     private XWikiDocument xwikiDocument;
 
     @Mock
-    private XDOM xdom;
+    private SolrInputDocument solrDocument;
 
     @Mock
-    private EntityNameValidation entityNameValidation;
+    private DocumentReference diagramReference;
 
     @Mock
-    private DocumentReference documentReference;
+    private DocumentReference embeddedReference;
 
     @Mock
-    private SolrInputDocument solrDocument;
-
-    @BeforeEach
-    void setup()
-    {
-        when(this.xwikiDocument.getXDOM()).thenReturn(xdom);
-        when(this.contextProvider.get()).thenReturn(this.xwikiContext);
-        when(this.xwikiContext.getWiki()).thenReturn(this.wiki);
-        when(this.xwikiDocument.getDocumentReference()).thenReturn(documentReference);
-        when(entityNameValidationConfiguration.useValidation()).thenReturn(true);
-        when(entityNameValidationConfiguration.useTransformation()).thenReturn(true);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy()).thenReturn(entityNameValidation);
-    }
-
-    /**
-     * The diagram was created in another version, but the reference doesn't respect the name strategy, but we want to
-     * keep the reference so we don't break the macros that already exist.
-     *
-     */
-    @Test
-    void updateReferenceCase1() throws XWikiException
-    {
-        MacroBlock block = this.createMacroBlock(STRATEGY);
-        when(this.xwikiDocument.getXDOM().getBlocks(any(), any())).thenReturn(List.of(block));
-        when(explicitDocumentReferenceResolver.resolve(STRATEGY, xwikiDocument.getDocumentReference())).thenReturn(
-            documentReference);
-        when(xwikiContext.getWiki().exists(documentReference, xwikiContext)).thenReturn(true);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().isValid(STRATEGY)).thenReturn(false);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().transform(STRATEGY)).thenReturn(
-            "Strategy2");
-        extractor.extract(this.xwikiDocument, this.solrDocument);
-        assertEquals(STRATEGY, block.getParameter(REFERENCE));
-    }
+    private AttachmentReference attachmentReference;
 
-    /**
-     * The diagram was created, it respects the name strategy, but the reference doesn't respect the name strategy.
-     */
     @Test
-    void updateReferenceCase2() throws XWikiException
+    void extractDispatchesEachMacroToItsHandler()
     {
-        MacroBlock block = this.createMacroBlock("AAAA");
-        when(this.xwikiDocument.getXDOM().getBlocks(any(), any())).thenReturn(List.of(block));
-        when(explicitDocumentReferenceResolver.resolve("AAAA", xwikiDocument.getDocumentReference())).thenReturn(
-            documentReference);
-        when(xwikiContext.getWiki().exists(documentReference, xwikiContext)).thenReturn(false);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().isValid("AAAA")).thenReturn(false);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().transform("AAAA")).thenReturn("BBBB");
-        extractor.extract(this.xwikiDocument, this.solrDocument);
-        assertEquals("BBBB", block.getParameter(REFERENCE));
+        MacroBlock diagram = this.createMacroBlock("diagram");
+        MacroBlock embedDiagram = this.createMacroBlock("embedDiagram");
+        MacroBlock inlineDiagram = this.createMacroBlock("inlineDiagram");
+        MacroBlock otherDiagram = this.createMacroBlock("diagram");
+        when(this.xwikiDocument.getXDOM()).thenReturn(new XDOM(
+            List.of(diagram, this.createMacroBlock("code"), embedDiagram, inlineDiagram, otherDiagram)));
+        when(this.diagramReferencesHandler.getReferences(this.xwikiDocument, List.of(diagram, otherDiagram)))
+            .thenReturn(List.of(this.diagramReference));
+        when(this.embedDiagramReferencesHandler.getReferences(this.xwikiDocument, List.of(embedDiagram)))
+            .thenReturn(List.of(this.embeddedReference));
+        when(this.inlineDiagramReferencesHandler.getReferences(this.xwikiDocument, List.of(inlineDiagram)))
+            .thenReturn(List.of(this.attachmentReference));
+        when(this.linkRegistry.registerBacklinks(this.solrDocument,
+            List.of(this.diagramReference, this.embeddedReference, this.attachmentReference))).thenReturn(true);
+
+        when(this.xwikiDocument.getDocumentReference()).thenReturn(DOCUMENT_REFERENCE);
+
+        assertTrue(this.extractor.extract(this.xwikiDocument, this.solrDocument));
+
+        verify(this.linkIndex).update(DOCUMENT_REFERENCE, DiagramLinkIndex.Scope.MACROS, List.of(
+            new DiagramLink(DOCUMENT_REFERENCE, this.diagramReference, null, DiagramLink.Kind.MACRO),
+            new DiagramLink(DOCUMENT_REFERENCE, this.embeddedReference, null, DiagramLink.Kind.EMBED),
+            new DiagramLink(DOCUMENT_REFERENCE, this.attachmentReference, null, DiagramLink.Kind.MACRO)));
     }
 
-    /**
-     * The macro has the default settings where the reference is missing and there is a naming strategy that updates the
-     * name.
-     *
-     */
     @Test
-    void updateReferenceCase3() throws XWikiException
+    void extractWithoutDiagramMacros()
     {
-        MacroBlock block = this.createMacroBlock(null);
-        when(this.xwikiDocument.getXDOM().getBlocks(any(), any())).thenReturn(List.of(block));
-        when(explicitDocumentReferenceResolver.resolve(STRATEGY, xwikiDocument.getDocumentReference())).thenReturn(
-            documentReference);
-        when(xwikiContext.getWiki().exists(documentReference, xwikiContext)).thenReturn(false);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().isValid(DIAGRAM)).thenReturn(false);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().transform(DIAGRAM)).thenReturn("Anagram");
-        extractor.extract(this.xwikiDocument, this.solrDocument);
-        assertEquals("Anagram", block.getParameter(REFERENCE));
-    }
+        when(this.xwikiDocument.getXDOM()).thenReturn(new XDOM(List.<Block>of(this.createMacroBlock("code"))));
 
-    /**
-     * Tests that the diagram macros are updated only when both Transform names automatically &  Validate names before
-     * saving are set to true.
-     *
-     */
-    @Test
-    void updateReferenceCase4() throws XWikiException
-    {
-        assertTrue(this.testNameStrategyConfiguration(false, false));
-        assertTrue(this.testNameStrategyConfiguration(true, false));
-        assertTrue(this.testNameStrategyConfiguration(false, true));
-    }
-
-    private boolean testNameStrategyConfiguration(boolean transformsNameAutomatically,
-        boolean validateNamesBeforeSaving) throws XWikiException
-    {
+        assertFalse(this.extractor.extract(this.xwikiDocument, this.solrDocument));
 
-        MacroBlock block = this.createMacroBlock(DIAGRAM);
-        when(this.xwikiDocument.getXDOM().getBlocks(any(), any())).thenReturn(List.of(block));
-        when(explicitDocumentReferenceResolver.resolve(DIAGRAM, xwikiDocument.getDocumentReference())).thenReturn(
-            documentReference);
-        when(xwikiContext.getWiki().exists(documentReference, xwikiContext)).thenReturn(false);
-        when(entityNameValidationConfiguration.useValidation()).thenReturn(validateNamesBeforeSaving);
-        when(entityNameValidationConfiguration.useTransformation()).thenReturn(transformsNameAutomatically);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().isValid(DIAGRAM)).thenReturn(false);
-        when(entityNameValidationManager.getEntityReferenceNameStrategy().transform(DIAGRAM)).thenReturn("Anagram");
-        extractor.extract(this.xwikiDocument, this.solrDocument);
-        return DIAGRAM.equals(block.getParameter(REFERENCE));
+        verifyNoInteractions(this.diagramReferencesHandler);
+        verifyNoInteractions(this.embedDiagramReferencesHandler);
+        verifyNoInteractions(this.inlineDiagramReferencesHandler);
+        verifyNoInteractions(this.linkRegistry);
     }
 
-    private MacroBlock createMacroBlock(String name)
+    private MacroBlock createMacroBlock(String id)
     {
-        return new MacroBlock("diagram", Collections.singletonMap(REFERENCE, name), false);
+        return new MacroBlock(id, Collections.emptyMap(), false);
     }
 }
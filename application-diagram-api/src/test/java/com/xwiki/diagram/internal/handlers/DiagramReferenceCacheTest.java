@@ -0,0 +1,111 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.diagram.internal.DiagramConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramReferenceCache}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramReferenceCacheTest
+{
+    private static final DocumentReference FIRST_PAGE = new DocumentReference("wiki", "Space", "First");
+
+    private static final DocumentReference SECOND_PAGE = new DocumentReference("wiki", "Space", "Second");
+
+    @InjectMockComponents
+    private DiagramReferenceCache referenceCache;
+
+    @MockComponent
+    @Named("withtype/withparameters")
+    private EntityReferenceSerializer<String> entitySerializer;
+
+    @MockComponent
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    @MockComponent
+    private DiagramConfiguration configuration;
+
+    @BeforeComponent
+    void beforeComponent()
+    {
+        when(this.configuration.getReferenceCacheSize()).thenReturn(1);
+    }
+
+    @Test
+    void serialize()
+    {
+        when(this.entitySerializer.serialize(FIRST_PAGE)).thenReturn("document:wiki:Space.First");
+
+        String serialized = this.referenceCache.serialize(FIRST_PAGE);
+        assertSame(serialized, this.referenceCache.serialize(new DocumentReference("wiki", "Space", "First")));
+
+        verify(this.entitySerializer).serialize(FIRST_PAGE);
+        assertEquals(1, this.referenceCache.getHitCount());
+        assertEquals(1, this.referenceCache.getMissCount());
+        assertEquals(0.5, this.referenceCache.getHitRate());
+    }
+
+    @Test
+    void serializeEvictsTheLeastRecentlyUsedReferences()
+    {
+        when(this.entitySerializer.serialize(FIRST_PAGE)).thenReturn("document:wiki:Space.First");
+        when(this.entitySerializer.serialize(SECOND_PAGE)).thenReturn("document:wiki:Space.Second");
+
+        this.referenceCache.serialize(FIRST_PAGE);
+        this.referenceCache.serialize(SECOND_PAGE);
+        this.referenceCache.serialize(FIRST_PAGE);
+
+        verify(this.entitySerializer, times(2)).serialize(FIRST_PAGE);
+    }
+
+    @Test
+    void resolveDocument()
+    {
+        when(this.explicitDocumentReferenceResolver.resolve("First", SECOND_PAGE)).thenReturn(FIRST_PAGE);
+
+        assertSame(FIRST_PAGE, this.referenceCache.resolveDocument("First", SECOND_PAGE));
+        assertSame(FIRST_PAGE, this.referenceCache.resolveDocument("First", SECOND_PAGE));
+
+        verify(this.explicitDocumentReferenceResolver).resolve("First", SECOND_PAGE);
+    }
+}
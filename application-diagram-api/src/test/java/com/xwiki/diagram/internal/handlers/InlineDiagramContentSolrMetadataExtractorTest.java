@@ -20,10 +20,11 @@
 package com.xwiki.diagram.internal.handlers;
 
 import java.io.ByteArrayInputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import javax.inject.Named;
 import javax.inject.Provider;
@@ -32,22 +33,30 @@ import org.apache.solr.common.SolrInputDocument;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
+import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.validation.EntityNameValidation;
 import org.xwiki.rendering.block.XDOM;
+import org.xwiki.test.annotation.BeforeComponent;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DiagramConfiguration;
+import com.xwiki.diagram.internal.index.DiagramLinkIndex;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -65,11 +74,14 @@ public class InlineDiagramContentSolrMetadataExtractorTest
     private InlineDiagramContentSolrMetadataExtractor inlineDiagramContentSolrMetadataExtractor;
 
     @MockComponent
-    private DiagramContentHandler diagramContentHandler;
+    private DiagramLinksCache linksCache;
 
     @MockComponent
     private LinkRegistry linkRegistry;
 
+    @MockComponent
+    private DiagramLinkIndex linkIndex;
+
     @MockComponent
     @Named("explicit")
     private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
@@ -77,6 +89,9 @@ public class InlineDiagramContentSolrMetadataExtractorTest
     @MockComponent
     private Provider<XWikiContext> contextProvider;
 
+    @MockComponent
+    private DiagramConfiguration configuration;
+
     @Mock
     private XWiki wiki;
 
@@ -104,9 +119,24 @@ public class InlineDiagramContentSolrMetadataExtractorTest
     @Mock
     private XWikiAttachment attachment;
 
+    @Mock
+    private XWikiAttachment otherAttachment;
+
     @Mock
     private EntityReference entityReference;
 
+    @Mock
+    private EntityReference otherEntityReference;
+
+    @Mock
+    private AttachmentReference attachmentReference;
+
+    @BeforeComponent
+    void beforeComponent()
+    {
+        when(this.configuration.getIndexingThreadCount()).thenReturn(2);
+    }
+
     @BeforeEach
     void setup()
     {
@@ -116,7 +146,7 @@ public class InlineDiagramContentSolrMetadataExtractorTest
     }
 
     @Test
-    void extractIgnoresOldAttachments()
+    void extractIndexesOldAttachments()
     {
         Date oldDate = new Date(System.currentTimeMillis() - (20 * 60 * 1000));
 
@@ -125,12 +155,32 @@ public class InlineDiagramContentSolrMetadataExtractorTest
 
         when(document.getAttachmentList()).thenReturn(Collections.singletonList(attachment));
 
-        boolean result = inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument);
+        List<EntityReference> references = List.of(entityReference);
+        when(linksCache.getLinks(document, attachment, xwikiContext)).thenReturn(getLinks(references));
+        when(linkRegistry.registerBacklinks(solrDocument, references)).thenReturn(true);
 
-        assertFalse(result);
+        assertTrue(inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument));
 
-        verifyNoInteractions(diagramContentHandler);
-        verifyNoInteractions(linkRegistry);
+        verify(linkRegistry).registerBacklinks(solrDocument, references);
+    }
+
+    @Test
+    void extractGetsTheLinksOfEveryAttachmentFromTheLinksCache()
+    {
+        when(attachment.getFilename()).thenReturn("test.diagram.xml");
+        when(attachment.getDate()).thenReturn(new Date());
+
+        when(document.getAttachmentList()).thenReturn(Collections.singletonList(attachment));
+
+        List<EntityReference> references = List.of(entityReference);
+        when(linksCache.getLinks(document, attachment, xwikiContext)).thenReturn(getLinks(references));
+
+        inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument);
+        inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument);
+
+        // The links cache decides whether the attachment has to be parsed again.
+        verify(linksCache, times(2)).getLinks(document, attachment, xwikiContext);
+        verify(linkRegistry, times(2)).registerBacklinks(solrDocument, references);
     }
 
     @Test
@@ -146,34 +196,90 @@ public class InlineDiagramContentSolrMetadataExtractorTest
 
         assertFalse(result);
 
-        verifyNoInteractions(diagramContentHandler);
+        verifyNoInteractions(linksCache);
         verifyNoInteractions(linkRegistry);
     }
 
     @Test
-    void extractWithValidDiagramAttachment() throws XWikiException
+    void extractUpdatesTheLinkIndex()
+    {
+        when(attachment.getFilename()).thenReturn("test.diagram.xml");
+        when(attachment.getDate()).thenReturn(new Date());
+        when(document.getAttachmentList()).thenReturn(Collections.singletonList(attachment));
+        when(document.getDocumentReference()).thenReturn(documentReference);
+        List<DiagramLink> links = getLinks(List.of(entityReference));
+        when(linksCache.getLinks(document, attachment, xwikiContext)).thenReturn(links);
+
+        inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument);
+
+        verify(linkIndex).update(documentReference, DiagramLinkIndex.Scope.INLINE, links);
+
+        when(document.getAttachmentList()).thenReturn(Collections.emptyList());
+
+        inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument);
+
+        verify(linkIndex).update(documentReference, DiagramLinkIndex.Scope.INLINE, Collections.emptyList());
+    }
+
+    @Test
+    void extractWithValidDiagramAttachment()
     {
         Date now = new Date();
 
         when(attachment.getFilename()).thenReturn("test.diagram.xml");
         when(attachment.getDate()).thenReturn(now);
-        when(attachment.getContentInputStream(xwikiContext)).thenReturn(
-            new ByteArrayInputStream("<diagram/>".getBytes(StandardCharsets.UTF_8)));
 
         when(document.getAttachmentList()).thenReturn(Collections.singletonList(attachment));
         when(document.getDocumentReference()).thenReturn(documentReference);
 
         List<EntityReference> references = List.of(entityReference);
 
-        when(diagramContentHandler.getLinkedPages("<diagram/>", documentReference)).thenReturn(references);
+        when(linksCache.getLinks(document, attachment, xwikiContext)).thenReturn(getLinks(references));
 
         when(linkRegistry.registerBacklinks(solrDocument, references)).thenReturn(false);
 
         boolean result = inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument);
 
         assertFalse(result);
-        verify(diagramContentHandler).getLinkedPages("<diagram/>", documentReference);
+        verify(linksCache).getLinks(document, attachment, xwikiContext);
         verify(linkRegistry).registerBacklinks(solrDocument, references);
     }
-}
 
+    @Test
+    void extractParsesSeveralAttachmentsConcurrently() throws Exception
+    {
+        Date now = new Date();
+
+        when(attachment.getFilename()).thenReturn("first.diagram.xml");
+        when(attachment.getDate()).thenReturn(now);
+        when(otherAttachment.getFilename()).thenReturn("second.diagram.xml");
+        when(otherAttachment.getDate()).thenReturn(now);
+
+        when(document.getAttachmentList()).thenReturn(List.of(attachment, otherAttachment));
+
+        InputStream content = new ByteArrayInputStream(new byte[0]);
+        InputStream otherContent = new ByteArrayInputStream(new byte[0]);
+        when(attachment.getContentInputStream(xwikiContext)).thenReturn(content);
+        when(otherAttachment.getContentInputStream(xwikiContext)).thenReturn(otherContent);
+
+        List<EntityReference> references = List.of(entityReference);
+        List<EntityReference> otherReferences = List.of(otherEntityReference);
+        when(linksCache.getLinks(document, attachment, content)).thenReturn(getLinks(references));
+        when(linksCache.getLinks(document, otherAttachment, otherContent)).thenReturn(getLinks(otherReferences));
+        when(linkRegistry.registerBacklinks(solrDocument, otherReferences)).thenReturn(true);
+
+        assertTrue(inlineDiagramContentSolrMetadataExtractor.extract(document, solrDocument));
+
+        // The context is only used by the indexing thread.
+        verify(linksCache, never()).getLinks(any(XWikiDocument.class), any(XWikiAttachment.class),
+            any(XWikiContext.class));
+        verify(linkRegistry).registerBacklinks(solrDocument, references);
+        verify(linkRegistry).registerBacklinks(solrDocument, otherReferences);
+    }
+
+    private List<DiagramLink> getLinks(List<EntityReference> references)
+    {
+        return references.stream().map(reference -> new DiagramLink(attachmentReference, reference, "2",
+            DiagramLink.Kind.LINK)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.handlers;
+
+import java.util.List;
+
+import javax.inject.Named;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.search.solr.internal.api.FieldUtils;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.diagram.internal.DiagramConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link LinkRegistry}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+@ComponentList(DiagramReferenceCache.class)
+class LinkRegistryTest
+{
+    private static final EntityReference FIRST_PAGE = new DocumentReference("wiki", "Space", "First");
+
+    private static final EntityReference SECOND_PAGE = new DocumentReference("wiki", "Space", "Second");
+
+    @InjectMockComponents
+    private LinkRegistry linkRegistry;
+
+    @MockComponent
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    @MockComponent
+    private DiagramConfiguration configuration;
+
+    @MockComponent
+    @Named("withtype/withparameters")
+    private EntityReferenceSerializer<String> entitySerializer;
+
+    @BeforeComponent
+    void beforeComponent()
+    {
+        when(this.configuration.getReferenceCacheSize()).thenReturn(100);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.entitySerializer.serialize(any())).thenAnswer(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            return reference.getType().getLowerCase() + ":" + reference.getName();
+        });
+    }
+
+    @Test
+    void registerBacklinks()
+    {
+        SolrInputDocument solrDocument = new SolrInputDocument();
+
+        assertTrue(this.linkRegistry.registerBacklinks(solrDocument, List.of(FIRST_PAGE, SECOND_PAGE, FIRST_PAGE)));
+
+        assertEquals(List.of("document:First", "document:Second"),
+            solrDocument.getFieldValues(FieldUtils.LINKS));
+        assertEquals(List.of("document:First", "entity:document:First", "entity:space:Space", "entity:wiki:wiki",
+            "document:Second", "entity:document:Second"), solrDocument.getFieldValues(FieldUtils.LINKS_EXTENDED));
+    }
+
+    @Test
+    void registerBacklinksSkipsExistingLinks()
+    {
+        SolrInputDocument solrDocument = new SolrInputDocument();
+        this.linkRegistry.registerBacklinks(solrDocument, List.of(FIRST_PAGE));
+
+        assertFalse(this.linkRegistry.registerBacklinks(solrDocument, List.of(FIRST_PAGE)));
+        assertTrue(this.linkRegistry.registerBacklinks(solrDocument, List.of(SECOND_PAGE)));
+
+        assertEquals(List.of("document:First", "document:Second"),
+            solrDocument.getFieldValues(FieldUtils.LINKS));
+        assertEquals(List.of("document:First", "entity:document:First", "entity:space:Space", "entity:wiki:wiki",
+            "document:Second", "entity:document:Second"), solrDocument.getFieldValues(FieldUtils.LINKS_EXTENDED));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.index;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.diagram.DiagramLink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramLinkIndex}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramLinkIndexTest
+{
+    private static final DocumentReference DIAGRAM = new DocumentReference("wiki", "Space", "Diagram");
+
+    private static final DocumentReference PAGE = new DocumentReference("wiki", "Space", "Page");
+
+    private static final DocumentReference OTHER_PAGE = new DocumentReference("other", "Space", "Page");
+
+    private static final AttachmentReference INLINE_DIAGRAM = new AttachmentReference("test.diagram.xml", PAGE);
+
+    private static final DiagramLink CELL_LINK = new DiagramLink(DIAGRAM, PAGE, "2", DiagramLink.Kind.LINK);
+
+    private static final DiagramLink LABEL_LINK =
+        new DiagramLink(DIAGRAM, OTHER_PAGE, "3", DiagramLink.Kind.LABEL);
+
+    private static final DiagramLink INLINE_LINK =
+        new DiagramLink(INLINE_DIAGRAM, DIAGRAM, "2", DiagramLink.Kind.LINK);
+
+    private static final DiagramLink MACRO_LINK = new DiagramLink(PAGE, INLINE_DIAGRAM, null, DiagramLink.Kind.MACRO);
+
+    @TempDir
+    private static File temporaryDirectory;
+
+    @InjectMockComponents
+    private DiagramLinkIndex linkIndex;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private EntityReferenceResolver<String> resolver;
+
+    @MockComponent
+    private Logger logger;
+
+    private File permanentDirectory;
+
+    @BeforeComponent
+    void beforeComponent() throws Exception
+    {
+        this.permanentDirectory = Files.createTempDirectory(temporaryDirectory.toPath(), "permanent").toFile();
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        when(this.serializer.serialize(any())).thenAnswer(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            StringBuilder serializedReference = new StringBuilder(reference.getName());
+            for (EntityReference parent = reference.getParent(); parent != null; parent = parent.getParent()) {
+                serializedReference.insert(0, parent.getName() + '/');
+            }
+            return serializedReference.toString();
+        });
+        when(this.resolver.resolve(anyString(), any(EntityType.class))).thenAnswer(invocation -> {
+            String[] parts = invocation.<String>getArgument(0).split("/");
+            DocumentReference document = new DocumentReference(parts[0], parts[1], parts[2]);
+            return invocation.getArgument(1) == EntityType.ATTACHMENT ? new AttachmentReference(parts[3], document)
+                : document;
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception
+    {
+        this.linkIndex.dispose();
+    }
+
+    @Test
+    void updateAndQuery()
+    {
+        assertTrue(this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(CELL_LINK, LABEL_LINK)));
+        assertTrue(this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.INLINE, List.of(INLINE_LINK)));
+        assertTrue(this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.MACROS, List.of(MACRO_LINK)));
+
+        assertEquals(List.of(CELL_LINK, LABEL_LINK), this.linkIndex.getLinks(DIAGRAM));
+        assertEquals(List.of(INLINE_LINK, MACRO_LINK), this.linkIndex.getLinks(PAGE));
+        assertEquals(List.of(CELL_LINK, MACRO_LINK), this.linkIndex.getBacklinks(PAGE));
+        assertEquals(List.of(INLINE_LINK), this.linkIndex.getBacklinks(DIAGRAM));
+        assertEquals(Map.of(OTHER_PAGE, List.of(LABEL_LINK)), this.linkIndex.getBacklinksByTarget("other"));
+    }
+
+    @Test
+    void updateWithTheSameLinks()
+    {
+        assertTrue(this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(CELL_LINK)));
+        assertFalse(this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(CELL_LINK)));
+        assertFalse(this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.CONTENT, Collections.emptyList()));
+    }
+
+    @Test
+    void updateReplacesTheLinksOfTheScope()
+    {
+        this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(CELL_LINK, LABEL_LINK));
+        this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(LABEL_LINK));
+
+        assertEquals(List.of(LABEL_LINK), this.linkIndex.getLinks(DIAGRAM));
+        assertTrue(this.linkIndex.getBacklinks(PAGE).isEmpty());
+    }
+
+    @Test
+    void updateSavesOnlyTheChangedLinks() throws Exception
+    {
+        this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(CELL_LINK, LABEL_LINK));
+        this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(LABEL_LINK, INLINE_LINK));
+
+        List<String> journal =
+            Files.readAllLines(new File(this.permanentDirectory, "diagram/links.journal").toPath());
+        String[] diff = journal.get(journal.size() - 1).split("\t", -1);
+        assertEquals("D", diff[0]);
+        assertEquals("CONTENT", diff[2]);
+        // The label link didn't change so it is neither added nor removed.
+        assertTrue(diff[3].startsWith("LINK:2:ATTACHMENT:") && !diff[3].contains(","), diff[3]);
+        assertTrue(diff[4].startsWith("LINK:2:DOCUMENT:") && !diff[4].contains(","), diff[4]);
+
+        assertEquals(List.of(LABEL_LINK, INLINE_LINK), this.linkIndex.getLinks(DIAGRAM));
+        assertEquals(List.of(LABEL_LINK), this.linkIndex.getBacklinks(OTHER_PAGE));
+        assertTrue(this.linkIndex.getBacklinks(PAGE).isEmpty());
+    }
+
+    @Test
+    void remove()
+    {
+        this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.INLINE, List.of(INLINE_LINK));
+        this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.MACROS, List.of(MACRO_LINK));
+
+        this.linkIndex.remove(PAGE);
+
+        assertTrue(this.linkIndex.getLinks(PAGE).isEmpty());
+        assertTrue(this.linkIndex.getBacklinks(DIAGRAM).isEmpty());
+    }
+
+    @Test
+    void removeWiki() throws Exception
+    {
+        DocumentReference otherDiagram = new DocumentReference("other", "Space", "Diagram");
+        DiagramLink otherLink = new DiagramLink(otherDiagram, PAGE, "2", DiagramLink.Kind.LINK);
+        this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(CELL_LINK, LABEL_LINK));
+        this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.INLINE, List.of(INLINE_LINK));
+        this.linkIndex.update(otherDiagram, DiagramLinkIndex.Scope.CONTENT, List.of(otherLink));
+
+        this.linkIndex.removeWiki("wiki");
+
+        assertTrue(this.linkIndex.getLinks(DIAGRAM).isEmpty());
+        assertTrue(this.linkIndex.getLinks(PAGE).isEmpty());
+        assertTrue(this.linkIndex.getBacklinks(OTHER_PAGE).isEmpty());
+        // The links from the other wikis to the deleted wiki are kept.
+        assertEquals(List.of(otherLink), this.linkIndex.getLinks(otherDiagram));
+        assertEquals(List.of(otherLink), this.linkIndex.getBacklinks(PAGE));
+        List<String> journal =
+            Files.readAllLines(new File(this.permanentDirectory, "diagram/links.journal").toPath());
+        assertEquals(1, journal.size());
+        assertTrue(journal.get(0).startsWith("U\tDOCUMENT:other"), journal.get(0));
+    }
+
+    @Test
+    void initializeReplaysTheJournal() throws Exception
+    {
+        this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(CELL_LINK, LABEL_LINK));
+        this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.INLINE, List.of(INLINE_LINK));
+        this.linkIndex.update(PAGE, DiagramLinkIndex.Scope.MACROS, List.of(MACRO_LINK));
+        this.linkIndex.update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(LABEL_LINK));
+        this.linkIndex.remove(PAGE);
+        this.linkIndex.dispose();
+
+        DiagramLinkIndex restartedIndex = new DiagramLinkIndex();
+        ReflectionUtils.setFieldValue(restartedIndex, "environment", this.environment);
+        ReflectionUtils.setFieldValue(restartedIndex, "serializer", this.serializer);
+        ReflectionUtils.setFieldValue(restartedIndex, "resolver", this.resolver);
+        ReflectionUtils.setFieldValue(restartedIndex, "logger", this.logger);
+        restartedIndex.initialize();
+
+        assertEquals(List.of(LABEL_LINK), restartedIndex.getLinks(DIAGRAM));
+        assertTrue(restartedIndex.getLinks(PAGE).isEmpty());
+        assertEquals(List.of(LABEL_LINK), restartedIndex.getBacklinks(OTHER_PAGE));
+        // The journal is compacted when it's loaded.
+        assertEquals(1, Files.readAllLines(new File(this.permanentDirectory, "diagram/links.journal").toPath()).size());
+        restartedIndex.dispose();
+    }
+}
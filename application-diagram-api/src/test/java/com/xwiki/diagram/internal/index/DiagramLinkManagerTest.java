@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.index;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DocumentExistenceChecker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramLinkManager}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramLinkManagerTest
+{
+    private static final DocumentReference DIAGRAM = new DocumentReference("wiki", "Space", "Diagram");
+
+    private static final DocumentReference HIDDEN_DIAGRAM = new DocumentReference("wiki", "Space", "Hidden");
+
+    private static final DocumentReference PAGE = new DocumentReference("wiki", "Space", "Page");
+
+    private static final DocumentReference MISSING_PAGE = new DocumentReference("wiki", "Space", "Missing");
+
+    private static final DiagramLink LINK = new DiagramLink(DIAGRAM, PAGE, "2", DiagramLink.Kind.LINK);
+
+    private static final DiagramLink HIDDEN_LINK = new DiagramLink(HIDDEN_DIAGRAM, PAGE, "2", DiagramLink.Kind.LINK);
+
+    private static final DiagramLink BROKEN_LINK =
+        new DiagramLink(DIAGRAM, MISSING_PAGE, "3", DiagramLink.Kind.LABEL);
+
+    @InjectMockComponents
+    private DiagramLinkManager linkManager;
+
+    @MockComponent
+    private DiagramLinkIndex linkIndex;
+
+    @MockComponent
+    private ContextualAuthorizationManager authorization;
+
+    @MockComponent
+    private DocumentExistenceChecker existenceChecker;
+
+    @Test
+    void getBacklinksOfViewableDiagrams()
+    {
+        when(this.linkIndex.getBacklinks(PAGE)).thenReturn(List.of(LINK, HIDDEN_LINK));
+        when(this.authorization.hasAccess(Right.VIEW, DIAGRAM)).thenReturn(true);
+
+        assertEquals(List.of(LINK), this.linkManager.getBacklinks(PAGE));
+    }
+
+    @Test
+    void getBrokenLinks() throws Exception
+    {
+        when(this.linkIndex.getBacklinksByTarget("wiki"))
+            .thenReturn(Map.of(PAGE, List.of(LINK), MISSING_PAGE, List.of(BROKEN_LINK)));
+        when(this.authorization.hasAccess(Right.VIEW, DIAGRAM)).thenReturn(true);
+        when(this.existenceChecker.getExistingDocuments(Set.of(PAGE, MISSING_PAGE))).thenReturn(Set.of(PAGE));
+
+        assertEquals(List.of(BROKEN_LINK), this.linkManager.getBrokenLinks("wiki"));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.internal.index;
+
+import java.io.InputStream;
+import java.util.List;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.xwiki.job.event.status.JobProgressManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryFilter;
+import org.xwiki.query.QueryManager;
+import org.xwiki.search.solr.SolrIndexer;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xwiki.diagram.DiagramLink;
+import com.xwiki.diagram.internal.DiagramConfiguration;
+import com.xwiki.diagram.internal.handlers.DiagramContentHandler;
+import com.xwiki.diagram.internal.handlers.DiagramLinksCache;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramLinksReindexJob}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramLinksReindexJobTest
+{
+    private static final DocumentReference DIAGRAM = new DocumentReference("wiki", "Space", "Diagram");
+
+    private static final DocumentReference PAGE = new DocumentReference("wiki", "Space", "Page");
+
+    private static final DocumentReference TARGET = new DocumentReference("wiki", "Space", "Target");
+
+    private static final DiagramLink DIAGRAM_LINK = new DiagramLink(DIAGRAM, TARGET, "2", DiagramLink.Kind.LINK);
+
+    private static final DiagramLink INLINE_LINK = new DiagramLink(PAGE, TARGET, "3", DiagramLink.Kind.LABEL);
+
+    @InjectMockComponents
+    private DiagramLinksReindexJob job;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    @Named("document")
+    private QueryFilter documentQueryFilter;
+
+    @MockComponent
+    private DiagramLinksCache linksCache;
+
+    @MockComponent
+    private DiagramLinkIndex linkIndex;
+
+    @MockComponent
+    private SolrIndexer solrIndexer;
+
+    @MockComponent
+    private DiagramConfiguration configuration;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
+    @MockComponent
+    private JobProgressManager progressManager;
+
+    @Mock
+    private XWikiContext xcontext;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private Query diagramsQuery;
+
+    @Mock
+    private Query attachmentsQuery;
+
+    @Mock
+    private XWikiDocument diagramDocument;
+
+    @Mock
+    private XWikiDocument pageDocument;
+
+    @Mock
+    private XWikiAttachment attachment;
+
+    @Mock
+    private InputStream attachmentContent;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.contextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWiki()).thenReturn(this.xwiki);
+        when(this.configuration.getReindexBatchSize()).thenReturn(1);
+        when(this.configuration.getReindexThreadCount()).thenReturn(2);
+
+        when(this.queryManager.createQuery(startsWith(", BaseObject"), eq(Query.HQL))).thenReturn(this.diagramsQuery);
+        when(this.diagramsQuery.setWiki("wiki")).thenReturn(this.diagramsQuery);
+        when(this.diagramsQuery.addFilter(this.documentQueryFilter)).thenReturn(this.diagramsQuery);
+        when(this.diagramsQuery.execute()).thenReturn(List.of(DIAGRAM));
+        when(this.queryManager.createQuery(startsWith(", XWikiAttachment"), eq(Query.HQL)))
+            .thenReturn(this.attachmentsQuery);
+        when(this.attachmentsQuery.setWiki("wiki")).thenReturn(this.attachmentsQuery);
+        when(this.attachmentsQuery.addFilter(this.documentQueryFilter)).thenReturn(this.attachmentsQuery);
+        when(this.attachmentsQuery.execute()).thenReturn(List.of(PAGE, DIAGRAM));
+
+        when(this.xwiki.getDocument(DIAGRAM, this.xcontext)).thenReturn(this.diagramDocument);
+        when(this.diagramDocument.getXObject(DiagramContentHandler.DIAGRAM_CLASS)).thenReturn(mock(BaseObject.class));
+        when(this.linksCache.getLinks(this.diagramDocument)).thenReturn(List.of(DIAGRAM_LINK));
+
+        when(this.xwiki.getDocument(PAGE, this.xcontext)).thenReturn(this.pageDocument);
+        when(this.pageDocument.getAttachmentList()).thenReturn(List.of(this.attachment));
+        when(this.attachment.getFilename()).thenReturn("inline.diagram.xml");
+        when(this.attachment.getContentInputStream(this.xcontext)).thenReturn(this.attachmentContent);
+        when(this.linksCache.getLinks(this.pageDocument, this.attachment, this.attachmentContent))
+            .thenReturn(List.of(INLINE_LINK));
+
+        this.job.initialize(new DiagramLinksReindexRequest(List.of("wiki")));
+    }
+
+    @Test
+    void runInternal() throws Exception
+    {
+        this.job.runInternal();
+
+        verify(this.linkIndex).update(DIAGRAM, DiagramLinkIndex.Scope.CONTENT, List.of(DIAGRAM_LINK));
+        verify(this.linkIndex).update(DIAGRAM, DiagramLinkIndex.Scope.INLINE, List.of());
+        verify(this.linkIndex).update(PAGE, DiagramLinkIndex.Scope.CONTENT, List.of());
+        verify(this.linkIndex).update(PAGE, DiagramLinkIndex.Scope.INLINE, List.of(INLINE_LINK));
+        // The context is only used by the job thread.
+        verify(this.linksCache, never()).getLinks(any(XWikiDocument.class), any(XWikiAttachment.class),
+            any(XWikiContext.class));
+        verify(this.solrIndexer).index(DIAGRAM, false);
+        verify(this.solrIndexer).index(PAGE, false);
+
+        // The documents are deduplicated and each of them is processed in its own batch.
+        verify(this.progressManager).pushLevelProgress(eq(2), same(this.job));
+        verify(this.progressManager, times(2)).startStep(this.job);
+        verify(this.progressManager, times(2)).endStep(this.job);
+        verify(this.progressManager).popLevelProgress(this.job);
+    }
+}
@@ -50,4 +50,114 @@ public class DiagramExportConfiguration
     {
         return 10000 * 10000;
     }
+
+    /**
+     * @return the maximum number of pixels of a PNG export rendered at once, 4194304 (2048x2048px) by default; larger
+     *     images are rendered and encoded one band of rows at a time, so that they are never held in memory entirely
+     * @since 2.0.1
+     */
+    public long getExportTileArea()
+    {
+        return 2048 * 2048;
+    }
+
+    /**
+     * @return the compression level of the PNG exports, between 0 (no compression) and 9 (best compression), 6 by
+     *     default
+     * @since 2.0.1
+     */
+    public int getPNGCompressionLevel()
+    {
+        return 6;
+    }
+
+    /**
+     * @return the filter applied to the rows of the PNG exports before compressing them: {@code none}, {@code sub},
+     *     {@code up}, {@code average}, {@code paeth} or {@code adaptive}; {@code none} by default, which is the
+     *     fastest and suits the flat colors of most diagrams
+     * @since 2.0.1
+     */
+    public String getPNGFilter()
+    {
+        return "none";
+    }
+
+    /**
+     * @return the number of threads compressing the PNG exports, shared by all the exports, the number of available
+     *     processors by default; with {@code 1} each export is compressed by the thread rendering it
+     * @since 2.0.1
+     */
+    public int getPNGEncoderThreadCount()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the number of threads decoding and laying out the pages of the multi-page PDF exports, shared by all the
+     *     exports, the number of available processors by default
+     * @since 2.0.1
+     */
+    public int getPageExportThreadCount()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the maximum number of diagrams rendered at the same time, the number of available processors by default
+     * @since 2.0.1
+     */
+    public int getMaxConcurrentExports()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the maximum number of exports waiting for a render slot, 20 by default; the exports requested while the
+     *     queue is full are rejected
+     * @since 2.0.1
+     */
+    public int getMaxQueuedExports()
+    {
+        return 20;
+    }
+
+    /**
+     * @return the maximum time (in milliseconds) an export waits for a render slot before being rejected, 10000 (10s)
+     *     by default
+     * @since 2.0.1
+     */
+    public long getExportQueueTimeout()
+    {
+        return 10000L;
+    }
+
+    /**
+     * @return the memory (in bytes) that the exports rendered at the same time may use, estimated from the size of
+     *     the rendered images, a quarter of the maximum heap size by default
+     * @since 2.0.1
+     */
+    public long getExportMemoryBudget()
+    {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * @return the maximum size (in bytes) of the exports kept on disk in order to be served again without rendering
+     *     the diagram, 104857600 (100MB) by default, {@code 0} disables the cache
+     * @since 2.0.1
+     */
+    public long getCacheMaxSize()
+    {
+        return 104857600L;
+    }
+
+    /**
+     * @return the maximum size (in bytes) of a single cached export, 10485760 (10MB) by default; larger exports are
+     *     not cached
+     * @since 2.0.1
+     */
+    public long getCacheMaxEntrySize()
+    {
+        return 10485760L;
+    }
 }
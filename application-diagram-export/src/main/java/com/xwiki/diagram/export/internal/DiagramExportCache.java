@@ -0,0 +1,219 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.environment.Environment;
+
+import com.xwiki.diagram.export.DiagramExportConfiguration;
+
+/**
+ * Keeps the output of the recent diagram exports on disk so that exporting again the same diagram with the same
+ * parameters doesn't require to render it. The exports are identified by a hash of the diagram XML and of the export
+ * parameters that affect the output, and the least recently used ones are deleted when the cache exceeds its maximum
+ * size.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramExportCache.class)
+@Singleton
+public class DiagramExportCache implements Initializable
+{
+    private static final String ENTRY_EXTENSION = ".export";
+
+    private static final char FIELD_SEPARATOR = '\n';
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private DiagramExportConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private File cacheDirectory;
+
+    /**
+     * The size of the cached exports, by key, from the least recently used to the most recently used.
+     */
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75F, true);
+
+    private long size;
+
+    @Override
+    public void initialize()
+    {
+        this.cacheDirectory = new File(this.environment.getTemporaryDirectory(), "diagram/export");
+        this.cacheDirectory.mkdirs();
+        // The exports cached before a restart are kept, the oldest being the first to be evicted.
+        File[] files = this.cacheDirectory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (file.getName().endsWith(ENTRY_EXTENSION)) {
+                    String key = file.getName().substring(0, file.getName().length() - ENTRY_EXTENSION.length());
+                    this.entries.put(key, file.length());
+                    this.size += file.length();
+                } else {
+                    // Leftover of an export that didn't finish.
+                    file.delete();
+                }
+            }
+        }
+        evict();
+    }
+
+    /**
+     * @return {@code true} if the exports are cached, {@code false} if the cache is disabled
+     */
+    public boolean isEnabled()
+    {
+        return this.configuration.getCacheMaxSize() > 0;
+    }
+
+    /**
+     * @param request a diagram export request
+     * @return the key identifying the output of the given export request in the cache
+     */
+    public String getKey(DiagramExportRequest request)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // Only the parameters used when rendering the diagram are taken into account.
+            String parameters = String.join(String.valueOf(FIELD_SEPARATOR), request.format,
+                Objects.toString(request.width), Objects.toString(request.height), Objects.toString(request.scale),
+                request.backgroundColor != null ? Integer.toHexString(request.backgroundColor.getRGB()) : null,
+                Objects.toString(request.borderWidth), Objects.toString(request.dotsPerInch),
+                String.valueOf(request.allPages));
+            digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) FIELD_SEPARATOR);
+            digest.update(request.xml.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a cached export to the given output stream.
+     *
+     * @param key the key identifying the export, see {@link #getKey(DiagramExportRequest)}
+     * @param outputStream where to write the cached export
+     * @return {@code true} if the export was cached and has been written, {@code false} if it has to be rendered
+     * @throws IOException if it fails to write the cached export
+     */
+    public boolean get(String key, OutputStream outputStream) throws IOException
+    {
+        synchronized (this) {
+            if (this.entries.get(key) == null) {
+                return false;
+            }
+        }
+        try (InputStream inputStream = Files.newInputStream(getEntryFile(key).toPath())) {
+            inputStream.transferTo(outputStream);
+            return true;
+        } catch (NoSuchFileException e) {
+            // The export was evicted in the meantime.
+            return false;
+        }
+    }
+
+    /**
+     * @return a new temporary file where an export can be rendered before being added to the cache
+     * @throws IOException if it fails to create the file
+     */
+    public File createTemporaryFile() throws IOException
+    {
+        this.cacheDirectory.mkdirs();
+        return Files.createTempFile(this.cacheDirectory.toPath(), "diagram", ".tmp").toFile();
+    }
+
+    /**
+     * Adds an export to the cache, unless it is too large. The file is moved into the cache and must not be used
+     * afterwards.
+     *
+     * @param key the key identifying the export, see {@link #getKey(DiagramExportRequest)}
+     * @param file a temporary file holding the export, see {@link #createTemporaryFile()}
+     */
+    public void put(String key, File file)
+    {
+        long fileSize = file.length();
+        if (fileSize > this.configuration.getCacheMaxEntrySize()) {
+            file.delete();
+            return;
+        }
+        synchronized (this) {
+            try {
+                Files.move(file.toPath(), getEntryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                this.logger.warn("Failed to cache the diagram export [{}].", key, e);
+                file.delete();
+                return;
+            }
+            Long previousSize = this.entries.put(key, fileSize);
+            this.size += fileSize - (previousSize != null ? previousSize : 0);
+            evict();
+        }
+    }
+
+    private synchronized void evict()
+    {
+        long maxSize = this.configuration.getCacheMaxSize();
+        Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+        while (this.size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            getEntryFile(entry.getKey()).delete();
+            this.size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private File getEntryFile(String key)
+    {
+        return new File(this.cacheDirectory, key + ENTRY_EXTENSION);
+    }
+}
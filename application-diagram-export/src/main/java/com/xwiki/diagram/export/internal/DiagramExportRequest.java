@@ -102,6 +102,12 @@ public class DiagramExportRequest
      */
     public boolean embedXML;
 
+    /**
+     * Whether to export all the pages of the diagram instead of only the first one. Only the PDF export format supports
+     * this, each page of the diagram being exported on its own PDF page.
+     */
+    public boolean allPages;
+
     /**
      * Whether to encode the output of the diagram export as Base64. This makes sense for image formats.
      */
@@ -85,6 +85,7 @@ public class DiagramExportRequestFactory
 
         diagramExportRequest.base64 = getBoolean(request, "base64");
         diagramExportRequest.embedXML = getBoolean(request, "embedXml");
+        diagramExportRequest.allPages = getBoolean(request, "allPages");
 
         diagramExportRequest.outputFileName = request.getParameter("filename");
         if (StringUtils.endsWithIgnoreCase(diagramExportRequest.outputFileName, ".xml")) {
@@ -0,0 +1,177 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+import com.xwiki.diagram.export.DiagramExportConfiguration;
+
+/**
+ * Limits the number of diagrams rendered at the same time and the memory they use, so that a burst of large exports
+ * doesn't exhaust the heap. The memory needed by an export is estimated from the size of the image that is rendered at
+ * once, which is only a band of rows of the exported image for the large PNG exports. An export waits for a render
+ * slot when the limits are reached, and it is rejected if it doesn't get one in time, if too many exports are already
+ * waiting or if it would exceed the memory budget on its own.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramExportScheduler.class)
+@Singleton
+public class DiagramExportScheduler
+{
+    /**
+     * The width and the height assumed for the exports that don't specify them.
+     */
+    private static final long DEFAULT_SIZE = 1000;
+
+    /**
+     * The rendered images use 4 bytes (ARGB) per pixel.
+     */
+    private static final long BYTES_PER_PIXEL = 4;
+
+    @Inject
+    private DiagramExportConfiguration configuration;
+
+    @Inject
+    private DiagramExporter exporter;
+
+    private final Lock lock = new ReentrantLock(true);
+
+    private final Condition slotReleased = this.lock.newCondition();
+
+    private int usedSlots;
+
+    private long usedMemory;
+
+    private int queuedExports;
+
+    /**
+     * A render slot, that must be closed once the export is done.
+     */
+    public final class Slot implements AutoCloseable
+    {
+        private final long memory;
+
+        private Slot(long memory)
+        {
+            this.memory = memory;
+        }
+
+        @Override
+        public void close()
+        {
+            release(this.memory);
+        }
+    }
+
+    /**
+     * Waits for a render slot.
+     *
+     * @param request the export to render
+     * @return the render slot, or {@code null} if the export is rejected
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public Slot acquire(DiagramExportRequest request) throws InterruptedException
+    {
+        long memory = estimateMemory(request);
+        long memoryBudget = this.configuration.getExportMemoryBudget();
+        if (memory > memoryBudget) {
+            // The export would never get a render slot, see #exceedsMemoryBudget.
+            return null;
+        }
+
+        long timeout = TimeUnit.MILLISECONDS.toNanos(this.configuration.getExportQueueTimeout());
+        this.lock.lock();
+        try {
+            if (!isAvailable(memory, memoryBudget)) {
+                if (this.queuedExports >= this.configuration.getMaxQueuedExports()) {
+                    return null;
+                }
+                this.queuedExports++;
+                try {
+                    while (!isAvailable(memory, memoryBudget)) {
+                        if (timeout <= 0) {
+                            return null;
+                        }
+                        timeout = this.slotReleased.awaitNanos(timeout);
+                    }
+                } finally {
+                    this.queuedExports--;
+                }
+            }
+            this.usedSlots++;
+            this.usedMemory += memory;
+            return new Slot(memory);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param request a diagram export request
+     * @return {@code true} if the export needs more memory than the whole budget, in which case it is always rejected,
+     *     whatever the number of exports being rendered
+     */
+    public boolean exceedsMemoryBudget(DiagramExportRequest request)
+    {
+        return estimateMemory(request) > this.configuration.getExportMemoryBudget();
+    }
+
+    /**
+     * @param request a diagram export request
+     * @return the memory (in bytes) needed to render the export
+     */
+    public long estimateMemory(DiagramExportRequest request)
+    {
+        long width = request.width != null ? request.width : DEFAULT_SIZE;
+        long height = request.height != null ? request.height : DEFAULT_SIZE;
+        if (this.exporter.isTiled(request)) {
+            height = this.exporter.getTileHeight(request);
+        }
+        return width * height * BYTES_PER_PIXEL;
+    }
+
+    private boolean isAvailable(long memory, long memoryBudget)
+    {
+        return this.usedSlots < this.configuration.getMaxConcurrentExports()
+            && this.usedMemory + memory <= memoryBudget;
+    }
+
+    private void release(long memory)
+    {
+        this.lock.lock();
+        try {
+            this.usedSlots--;
+            this.usedMemory -= memory;
+            this.slotReleased.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -19,11 +19,20 @@
  */
 package com.xwiki.diagram.export.internal;
 
+import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import javax.imageio.ImageIO;
 import javax.inject.Inject;
@@ -40,12 +49,14 @@ import com.mxgraph.util.mxCellRenderer;
 import com.mxgraph.util.mxCellRenderer.CanvasFactory;
 import com.mxgraph.util.mxRectangle;
 import com.mxgraph.util.mxUtils;
+import com.mxgraph.view.mxCellState;
 import com.mxgraph.view.mxGraph;
 import com.mxpdf.text.Document;
 import com.mxpdf.text.DocumentException;
 import com.mxpdf.text.PageSize;
 import com.mxpdf.text.Rectangle;
 import com.mxpdf.text.pdf.PdfWriter;
+import com.xwiki.diagram.export.DiagramExportConfiguration;
 
 /**
  * Exports a diagram to PDF or image format.
@@ -57,23 +68,131 @@ import com.mxpdf.text.pdf.PdfWriter;
 @Singleton
 public class DiagramExporter
 {
+    /**
+     * The margin (in pixels) around the bounding box of the cells when checking if they are visible.
+     */
+    private static final double VISIBLE_AREA_MARGIN = 16;
+
     @Inject
     private Logger logger;
 
     @Inject
     private DiagramXMLParser xmlParser;
 
+    @Inject
+    private DiagramExportCache cache;
+
+    @Inject
+    private DiagramExportConfiguration configuration;
+
+    @Inject
+    private PNGStreamWriterFactory pngWriterFactory;
+
+    @Inject
+    private DiagramPageExportExecutor pageExecutor;
+
+    /**
+     * Reserves the resources needed to render a diagram.
+     *
+     * @version $Id$
+     * @since 2.0.1
+     */
+    @FunctionalInterface
+    public interface RenderSlotSupplier
+    {
+        /**
+         * @param request the export to render
+         * @return the render slot, closed once the diagram is rendered, or {@code null} if the export is rejected
+         * @throws InterruptedException if the current thread is interrupted while waiting for a render slot
+         */
+        DiagramExportScheduler.Slot acquire(DiagramExportRequest request) throws InterruptedException;
+    }
+
     /**
-     * Exports a diagram.
+     * Exports a diagram. The output of the recent exports is cached, so the diagram is rendered only if it wasn't
+     * exported recently with the same parameters. A render slot is acquired only when the diagram has to be rendered.
      * 
      * @param request the diagram export request
      * @param outputStream where to write the output to
+     * @param slotSupplier provides the render slot when the export is not cached
+     * @return {@code true} if the diagram was exported, {@code false} if it had to be rendered and didn't get a render
+     *     slot, in which case nothing was written to the output
      * @throws IOException if it fails to write the output to the response
      * @throws ParserConfigurationException if it fails to create an XML reader
      * @throws SAXException if it fails to parse the diagram XML
      * @throws DocumentException if it fails to generate the PDF
      */
-    public void export(DiagramExportRequest request, OutputStream outputStream)
+    public boolean export(DiagramExportRequest request, OutputStream outputStream, RenderSlotSupplier slotSupplier)
+        throws IOException, DocumentException, SAXException, ParserConfigurationException
+    {
+        String key = null;
+        if (this.cache.isEnabled()) {
+            key = this.cache.getKey(request);
+            if (this.cache.get(key, outputStream)) {
+                return true;
+            }
+        }
+
+        DiagramExportScheduler.Slot slot;
+        try {
+            slot = slotSupplier.acquire(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (slot == null) {
+            return false;
+        }
+        try {
+            if (key != null) {
+                renderAndCache(request, key, outputStream);
+            } else {
+                render(request, outputStream);
+            }
+        } finally {
+            slot.close();
+        }
+        return true;
+    }
+
+    /**
+     * Renders a diagram. The export is streamed to the output while it is being rendered, and saved at the same time
+     * in order to be cached once it's complete.
+     */
+    private void renderAndCache(DiagramExportRequest request, String key, OutputStream outputStream)
+        throws IOException, DocumentException, SAXException, ParserConfigurationException
+    {
+        File output = this.cache.createTemporaryFile();
+        try {
+            try (OutputStream fileOutputStream = new BufferedOutputStream(Files.newOutputStream(output.toPath()))) {
+                render(request, new TeeOutputStream(outputStream, fileOutputStream));
+            }
+            this.cache.put(key, output);
+        } finally {
+            Files.deleteIfExists(output.toPath());
+        }
+    }
+
+    /**
+     * @param request a diagram export request
+     * @return {@code true} if the diagram is rendered one tile at a time, because the exported image is too large
+     */
+    public boolean isTiled(DiagramExportRequest request)
+    {
+        return DiagramExportRequest.FORMAT_PNG.equals(request.format) && request.width != null
+            && request.height != null && (long) request.width * request.height > this.configuration.getExportTileArea();
+    }
+
+    /**
+     * @param request a diagram export request that is rendered one tile at a time, see {@link #isTiled}
+     * @return the height of the tiles, which span the whole width of the exported image
+     */
+    public int getTileHeight(DiagramExportRequest request)
+    {
+        return (int) Math.max(1, Math.min(request.height, this.configuration.getExportTileArea() / request.width));
+    }
+
+    private void render(DiagramExportRequest request, OutputStream outputStream)
         throws IOException, DocumentException, SAXException, ParserConfigurationException
     {
         if (DiagramExportRequest.FORMAT_PDF.equals(request.format)) {
@@ -86,6 +205,12 @@ public class DiagramExporter
     protected void exportAsImage(DiagramExportRequest request, OutputStream outputStream)
         throws IOException, SAXException, ParserConfigurationException
     {
+        if (DiagramExportRequest.FORMAT_PNG.equals(request.format) && request.width != null
+            && request.height != null) {
+            exportAsPNG(request, outputStream);
+            return;
+        }
+
         BufferedImage image = mxUtils.createBufferedImage(request.width, request.height, request.backgroundColor);
         drawToCanvas(request, (width, height) -> {
             Graphics2D graphics2D = image.createGraphics();
@@ -99,11 +224,12 @@ public class DiagramExporter
     protected void exportAsPDF(DiagramExportRequest request, OutputStream outputStream)
         throws DocumentException, IOException, SAXException, ParserConfigurationException
     {
-        Rectangle pageSize = PageSize.A4;
-        if (request.width != null && request.height != null) {
-            pageSize = new Rectangle(request.width, request.height);
+        if (request.allPages) {
+            exportAllPagesAsPDF(request, outputStream);
+            return;
         }
 
+        Rectangle pageSize = getPageSize(request);
         Document document = new Document(pageSize);
         final PdfWriter writer = PdfWriter.getInstance(document, outputStream);
         document.open();
@@ -113,21 +239,196 @@ public class DiagramExporter
         document.close();
     }
 
+    /**
+     * Exports each page of the diagram on its own PDF page. The pages are decoded and laid out concurrently, but they
+     * are drawn one after the other, in order, since the PDF writer is not thread safe.
+     */
+    private void exportAllPagesAsPDF(DiagramExportRequest request, OutputStream outputStream)
+        throws DocumentException, IOException
+    {
+        List<Future<mxGraph>> pages = new ArrayList<>();
+        for (Supplier<mxGraph> pageParser : this.xmlParser.parsePages(request.xml)) {
+            pages.add(this.pageExecutor.submit(() -> layout(pageParser.get(), request)));
+        }
+
+        Rectangle pageSize = getPageSize(request);
+        Document document = new Document(pageSize);
+        PdfWriter writer = PdfWriter.getInstance(document, outputStream);
+        document.open();
+        try {
+            for (int i = 0; i < pages.size(); i++) {
+                if (i > 0) {
+                    document.newPage();
+                }
+                mxGraph graph = pages.get(i).get();
+                if (graph != null) {
+                    drawLaidOut(graph, request,
+                        writer.getDirectContent().createGraphics(pageSize.getWidth(), pageSize.getHeight()));
+                } else {
+                    this.logger.warn("Page [{}] of the specified diagram is not valid and thus it can't be drawn.",
+                        i + 1);
+                }
+                // The pages that can't be drawn are kept so that the page numbers match the diagram.
+                writer.setPageEmpty(false);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting the diagram pages.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to export the diagram pages.", e.getCause());
+        } finally {
+            pages.forEach(page -> page.cancel(true));
+        }
+        document.close();
+    }
+
+    private mxGraph layout(mxGraph graph, DiagramExportRequest request)
+    {
+        if (graph != null) {
+            configureGraph(graph, request);
+            graph.getView().setScale(request.scale);
+            graph.getView().validate();
+        }
+        return graph;
+    }
+
+    /**
+     * Draws a graph whose view has already been validated, like {@link mxCellRenderer#drawCells} does but without
+     * computing again the cell states.
+     */
+    private void drawLaidOut(mxGraph graph, DiagramExportRequest request, Graphics2D graphics2D)
+    {
+        mxRectangle clip;
+        if (request.width != null && request.height != null) {
+            clip = new mxRectangle(0, 0, request.width, request.height);
+        } else {
+            clip = graph.getPaintBounds(new Object[] {graph.getModel().getRoot()});
+        }
+        mxGraphics2DCanvas canvas = new mxGraphics2DCanvas(graphics2D);
+        if (clip != null) {
+            canvas.setTranslate(-Math.round(clip.getX()), -Math.round(clip.getY()));
+        }
+        canvas.setScale(graph.getView().getScale());
+        drawCell(graph, canvas, graph.getModel().getRoot(), null);
+        graphics2D.dispose();
+    }
+
+    /**
+     * Draws a cell and its descendants, like {@link mxGraph#drawCell} does, but skips the cells that are outside of the
+     * visible area.
+     *
+     * @param visibleArea the area to draw, in view coordinates, or {@code null} to draw all the cells
+     */
+    private void drawCell(mxGraph graph, mxICanvas canvas, Object cell, mxRectangle visibleArea)
+    {
+        mxCellState state = graph.getView().getState(cell);
+        if (state != null && isVisible(state, visibleArea)) {
+            graph.drawState(canvas, state, true);
+        }
+        // The children are checked even if their parent is not visible, since they can be outside of its bounds.
+        int childCount = graph.getModel().getChildCount(cell);
+        for (int i = 0; i < childCount; i++) {
+            drawCell(graph, canvas, graph.getModel().getChildAt(cell, i), visibleArea);
+        }
+    }
+
+    private boolean isVisible(mxCellState state, mxRectangle visibleArea)
+    {
+        mxRectangle boundingBox = state.getBoundingBox();
+        if (visibleArea == null || boundingBox == null) {
+            return true;
+        }
+        // The bounding box doesn't always include the end markers of the edges.
+        return boundingBox.getX() - VISIBLE_AREA_MARGIN < visibleArea.getX() + visibleArea.getWidth()
+            && boundingBox.getX() + boundingBox.getWidth() + VISIBLE_AREA_MARGIN > visibleArea.getX()
+            && boundingBox.getY() - VISIBLE_AREA_MARGIN < visibleArea.getY() + visibleArea.getHeight()
+            && boundingBox.getY() + boundingBox.getHeight() + VISIBLE_AREA_MARGIN > visibleArea.getY();
+    }
+
+    private Rectangle getPageSize(DiagramExportRequest request)
+    {
+        Rectangle pageSize = PageSize.A4;
+        if (request.width != null && request.height != null) {
+            pageSize = new Rectangle(request.width, request.height);
+        }
+        return pageSize;
+    }
+
+    /**
+     * Renders the diagram and encodes it with a {@link PNGStreamWriter} writing directly to the output. The large
+     * images are rendered in horizontal bands that are encoded as soon as they are drawn, so that only one band is
+     * held in memory instead of the whole image. The bands span the whole width so that the PNG rows can be written in
+     * order. The diagram is laid out once and each band only draws the cells that intersect it.
+     */
+    private void exportAsPNG(DiagramExportRequest request, OutputStream outputStream) throws IOException
+    {
+        mxGraph graph = parse(request);
+        if (graph != null) {
+            graph.getView().setScale(request.scale);
+            graph.getView().validate();
+        }
+        boolean transparent = request.backgroundColor == null;
+        int tileHeight = isTiled(request) ? getTileHeight(request) : request.height;
+        BufferedImage tile = new BufferedImage(request.width, tileHeight,
+            transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        PNGStreamWriter writer =
+            this.pngWriterFactory.createWriter(outputStream, request.width, request.height, transparent);
+        writer.writeHeader();
+        for (int y = 0; y < request.height; y += tileHeight) {
+            int height = Math.min(tileHeight, request.height - y);
+            Graphics2D graphics2D = tile.createGraphics();
+            if (transparent) {
+                graphics2D.setComposite(AlphaComposite.Clear);
+            } else {
+                graphics2D.setColor(request.backgroundColor);
+            }
+            graphics2D.fillRect(0, 0, request.width, tileHeight);
+            graphics2D.dispose();
+            if (graph != null) {
+                Graphics2D tileGraphics = tile.createGraphics();
+                mxUtils.setAntiAlias(tileGraphics, true, true);
+                tileGraphics.setClip(0, 0, request.width, height);
+                mxGraphics2DCanvas canvas = new mxGraphics2DCanvas(tileGraphics);
+                canvas.setTranslate(0, -y);
+                canvas.setScale(graph.getView().getScale());
+                drawCell(graph, canvas, graph.getModel().getRoot(), new mxRectangle(0, y, request.width, height));
+                tileGraphics.dispose();
+            }
+            writer.writeRows(tile, height);
+        }
+        writer.finish();
+    }
+
     private void drawToCanvas(DiagramExportRequest request, BiFunction<Integer, Integer, Graphics2D> graphicsFactory)
     {
-        mxGraph graph = this.xmlParser.parse(request.xml);
+        mxGraph graph = parse(request);
         if (graph == null) {
-            this.logger.warn("The specified diagram is not valid and thus it can't be drawn.");
             return;
         }
-        configureGraph(graph, request);
 
         mxRectangle clip = null;
         if (request.width != null && request.height != null) {
             clip = new mxRectangle(0, 0, request.width, request.height);
         }
+        draw(graph, request.scale, clip, graphicsFactory);
+    }
+
+    private mxGraph parse(DiagramExportRequest request)
+    {
+        mxGraph graph = this.xmlParser.parse(request.xml);
+        if (graph == null) {
+            this.logger.warn("The specified diagram is not valid and thus it can't be drawn.");
+        } else {
+            configureGraph(graph, request);
+        }
+        return graph;
+    }
+
+    private void draw(mxGraph graph, double scale, mxRectangle clip,
+        BiFunction<Integer, Integer, Graphics2D> graphicsFactory)
+    {
         mxGraphics2DCanvas canvas =
-            (mxGraphics2DCanvas) mxCellRenderer.drawCells(graph, null, request.scale, clip, new CanvasFactory()
+            (mxGraphics2DCanvas) mxCellRenderer.drawCells(graph, null, scale, clip, new CanvasFactory()
             {
                 public mxICanvas createCanvas(int width, int height)
                 {
@@ -153,4 +454,47 @@ public class DiagramExporter
         // .getResource("/META-INF/resources/webjars/draw.io/12.2.2-SNAPSHOT/styles/default.xml").toString());
         // codec.decode(document.getDocumentElement(), graph.getStylesheet());
     }
+
+    /**
+     * Writes the same data to two output streams.
+     */
+    private static final class TeeOutputStream extends OutputStream
+    {
+        private final OutputStream first;
+
+        private final OutputStream second;
+
+        TeeOutputStream(OutputStream first, OutputStream second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.first.write(b);
+            this.second.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            this.first.write(bytes, offset, length);
+            this.second.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            this.first.flush();
+            this.second.flush();
+        }
+
+        @Override
+        public void close()
+        {
+            // The streams are closed by their owners.
+        }
+    }
 }
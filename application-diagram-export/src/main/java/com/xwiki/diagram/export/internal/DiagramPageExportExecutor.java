@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import com.xwiki.diagram.export.DiagramExportConfiguration;
+
+/**
+ * The pool of threads on which the pages of the multi-page exports are decoded and laid out. It is shared by all the
+ * diagram exporters.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = DiagramPageExportExecutor.class)
+@Singleton
+public class DiagramPageExportExecutor implements Initializable, Disposable
+{
+    @Inject
+    private DiagramExportConfiguration configuration;
+
+    private ExecutorService pageExecutor;
+
+    @Override
+    public void initialize()
+    {
+        this.pageExecutor = Executors.newFixedThreadPool(this.configuration.getPageExportThreadCount(),
+            new BasicThreadFactory.Builder().namingPattern("Diagram Page Export Thread %d").daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.pageExecutor.shutdownNow();
+    }
+
+    /**
+     * @param <T> the type of the result of the task
+     * @param task the task processing a page
+     * @return the pending result of the task
+     */
+    public <T> Future<T> submit(Callable<T> task)
+    {
+        return this.pageExecutor.submit(task);
+    }
+}
@@ -21,12 +21,17 @@ package com.xwiki.diagram.export.internal;
 
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -56,6 +61,8 @@ public class DiagramXMLParser
 
     private static final String TAG_MX_GRAPH_MODEL = "mxGraphModel";
 
+    private static final String TAG_MX_FILE = "mxfile";
+
     /**
      * Allow TAB, LF and CR.
      */
@@ -70,8 +77,53 @@ public class DiagramXMLParser
      */
     public mxGraph parse(String xml)
     {
-        Element graphModelElement = extractGraphModel(mxXmlUtils.parseXml(xml));
-        if (graphModelElement == null) {
+        return decode(extractGraphModel(mxXmlUtils.parseXml(xml)));
+    }
+
+    /**
+     * Parses all the pages of a diagram. Only the XML is parsed by this method; each page is decompressed and decoded
+     * by the returned suppliers, which can be called concurrently.
+     *
+     * @param xml the diagram XML
+     * @return the suppliers of the diagram objects corresponding to the pages of the diagram, in order; a supplier
+     *     returns {@code null} if its page is not valid
+     * @since 2.0.1
+     */
+    public List<Supplier<mxGraph>> parsePages(String xml)
+    {
+        Document document = mxXmlUtils.parseXml(xml);
+        Element root = document.getDocumentElement();
+        List<Element> diagramElements = new ArrayList<>();
+        if (TAG_DIAGRAM.equalsIgnoreCase(root.getTagName())) {
+            diagramElements.add(root);
+        } else if (TAG_MX_FILE.equalsIgnoreCase(root.getTagName())) {
+            NodeList diagrams = root.getElementsByTagName(TAG_DIAGRAM);
+            for (int i = 0; i < diagrams.getLength(); i++) {
+                diagramElements.add((Element) diagrams.item(i));
+            }
+        }
+
+        List<Supplier<mxGraph>> pages = new ArrayList<>();
+        if (diagramElements.isEmpty()) {
+            pages.add(() -> decode(extractGraphModel(document)));
+        }
+        for (Element diagramElement : diagramElements) {
+            Element firstChildElement = getFirstChildElement(diagramElement);
+            if (firstChildElement != null && TAG_MX_GRAPH_MODEL.equalsIgnoreCase(firstChildElement.getTagName())) {
+                // The DOM is not thread safe, so each page is decoded from its own copy.
+                Element graphModelElement = copy(firstChildElement);
+                pages.add(() -> decode(graphModelElement));
+            } else {
+                String text = diagramElement.getTextContent().trim();
+                pages.add(() -> decode(decompressGraphModel(text)));
+            }
+        }
+        return pages;
+    }
+
+    private mxGraph decode(Element graphModelElement)
+    {
+        if (graphModelElement == null || !TAG_MX_GRAPH_MODEL.equalsIgnoreCase(graphModelElement.getTagName())) {
             return null;
         }
 
@@ -81,6 +133,18 @@ public class DiagramXMLParser
         return graph;
     }
 
+    private Element copy(Element element)
+    {
+        try {
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            Element copy = (Element) document.importNode(element, true);
+            document.appendChild(copy);
+            return copy;
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Failed to create an XML document.", e);
+        }
+    }
+
     // See Editor.extractGraphModel
     // https://github.com/jgraph/drawio/blob/master/src/main/webapp/js/diagramly/Editor.js
     private Element extractGraphModel(Document document)
@@ -101,7 +165,7 @@ public class DiagramXMLParser
         Element root = document.getDocumentElement();
         if (TAG_DIAGRAM.equalsIgnoreCase(root.getTagName())) {
             return root;
-        } else if ("mxfile".equalsIgnoreCase(root.getTagName())) {
+        } else if (TAG_MX_FILE.equalsIgnoreCase(root.getTagName())) {
             NodeList diagrams = root.getElementsByTagName(TAG_DIAGRAM);
             if (diagrams.getLength() > 0) {
                 return (Element) diagrams.item(0);
@@ -118,7 +182,13 @@ public class DiagramXMLParser
         String text = diagramElement.getTextContent().trim();
         if (firstChildElement != null && TAG_MX_GRAPH_MODEL.equalsIgnoreCase(firstChildElement.getTagName())) {
             return firstChildElement;
-        } else if (!text.isEmpty()) {
+        }
+        return decompressGraphModel(text);
+    }
+
+    private Element decompressGraphModel(String text)
+    {
+        if (!text.isEmpty()) {
             try {
                 String xml = decompress(text);
                 if (!StringUtils.isBlank(xml)) {
@@ -42,30 +42,39 @@ import com.mxpdf.text.DocumentException;
 public class HTTPDiagramExporter extends DiagramExporter
 {
     /**
-     * Exports a diagram.
+     * Exports a diagram. The output is served from the cache when the diagram was exported recently with the same
+     * parameters.
      * 
      * @param request the diagram export request
      * @param response the response to write the output to
+     * @param slotSupplier provides the render slot when the export is not cached
+     * @return {@code true} if the diagram was exported, {@code false} if it had to be rendered and didn't get a render
+     *     slot, in which case the response is left untouched
      * @throws IOException if it fails to write the output to the response
      * @throws ParserConfigurationException if it fails to create an XML reader
      * @throws SAXException if it fails to parse the diagram XML
      * @throws DocumentException if it fails to generate the PDF
      */
-    public void export(DiagramExportRequest request, HttpServletResponse response)
+    public boolean export(DiagramExportRequest request, HttpServletResponse response, RenderSlotSupplier slotSupplier)
         throws IOException, DocumentException, SAXException, ParserConfigurationException
     {
-        try (OutputStream out = response.getOutputStream()) {
-            if (DiagramExportRequest.FORMAT_PDF.equals(request.format)) {
-                exportAsPDF(request, response);
-            } else {
-                exportAsImage(request, response);
-            }
-            response.setStatus(HttpServletResponse.SC_OK);
+        if (DiagramExportRequest.FORMAT_PDF.equals(request.format)) {
+            setPDFHeaders(request, response);
+        } else {
+            setImageHeaders(request, response);
         }
+        OutputStream out = response.getOutputStream();
+        if (!export(request, out, slotSupplier)) {
+            // Nothing was written, so the headers can be removed in order to report the rejection.
+            response.reset();
+            return false;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        out.close();
+        return true;
     }
 
-    private void exportAsImage(DiagramExportRequest request, HttpServletResponse response)
-        throws IOException, SAXException, ParserConfigurationException
+    private void setImageHeaders(DiagramExportRequest request, HttpServletResponse response)
     {
         if (request.outputFileName != null) {
             response.setContentType("application/x-unknown");
@@ -73,20 +82,15 @@ public class HTTPDiagramExporter extends DiagramExporter
         } else if (request.format != null) {
             response.setContentType("image/" + request.format.toLowerCase());
         }
-
-        exportAsImage(request, response.getOutputStream());
     }
 
-    private void exportAsPDF(DiagramExportRequest request, HttpServletResponse response)
-        throws DocumentException, IOException, SAXException, ParserConfigurationException
+    private void setPDFHeaders(DiagramExportRequest request, HttpServletResponse response)
     {
         response.setContentType("application/pdf");
 
         if (request.outputFileName != null) {
             setContentDisposition(response, request.outputFileName);
         }
-
-        exportAsPDF(request, response.getOutputStream());
     }
 
     private void setContentDisposition(HttpServletResponse response, String fileName)
@@ -0,0 +1,564 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG image incrementally, a few rows at a time, so that the whole image never has to be held in memory. The
+ * rows are taken from images of type {@link BufferedImage#TYPE_INT_ARGB} or {@link BufferedImage#TYPE_INT_RGB} having
+ * the width of the PNG image.
+ * <p>
+ * The compression level and the filter applied to the rows before compressing them can be chosen. When an executor is
+ * provided, the rows are split in bands that are filtered and compressed concurrently, each band being compressed
+ * independently and ending on a byte boundary so that the compressed bands can be concatenated in a single zlib
+ * stream.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ * @see <a href="https://www.w3.org/TR/png/">Portable Network Graphics (PNG) Specification</a>
+ */
+public class PNGStreamWriter
+{
+    /**
+     * The filters that can be applied to the rows of the image before compressing them.
+     */
+    public enum Filter
+    {
+        /**
+         * The rows are compressed as they are.
+         */
+        NONE,
+
+        /**
+         * Each byte is replaced by its difference with the corresponding byte of the previous pixel.
+         */
+        SUB,
+
+        /**
+         * Each byte is replaced by its difference with the corresponding byte of the pixel above.
+         */
+        UP,
+
+        /**
+         * Each byte is replaced by its difference with the average of the previous pixel and of the pixel above.
+         */
+        AVERAGE,
+
+        /**
+         * Each byte is replaced by its difference with the Paeth predictor of the neighbour pixels.
+         */
+        PAETH,
+
+        /**
+         * Each row is filtered with the filter producing the smallest sum of absolute differences, like most PNG
+         * encoders do.
+         */
+        ADAPTIVE
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * The zlib header for a deflate stream with a 32K window.
+     */
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9C};
+
+    private static final int ADLER_BASE = 65521;
+
+    private static final int BIT_DEPTH = 8;
+
+    private static final int COLOR_TYPE_RGB = 2;
+
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    /**
+     * The maximum size of the IDAT chunks.
+     */
+    private static final int IDAT_SIZE = 1 << 16;
+
+    /**
+     * The number of uncompressed bytes of the bands compressed concurrently.
+     */
+    private static final int BAND_SIZE = 1 << 18;
+
+    private final DataOutputStream output;
+
+    private final int width;
+
+    private final int height;
+
+    private final boolean alpha;
+
+    private final int bytesPerPixel;
+
+    private final int rowLength;
+
+    private final int compressionLevel;
+
+    private final Filter filter;
+
+    private final ExecutorService executor;
+
+    private ChunkOutputStream imageData;
+
+    /**
+     * Used when the rows are compressed on the current thread.
+     */
+    private Deflater deflater;
+
+    private DeflaterOutputStream compressedImageData;
+
+    private RowEncoder rowEncoder;
+
+    /**
+     * Used when the rows are compressed concurrently.
+     */
+    private byte[] previousRow;
+
+    private long adler = 1;
+
+    private int writtenRows;
+
+    /**
+     * Creates a writer compressing the rows with the default compression level and without filtering them.
+     *
+     * @param outputStream where to write the PNG image, it is not closed by this writer
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param alpha whether the image is transparent
+     */
+    public PNGStreamWriter(OutputStream outputStream, int width, int height, boolean alpha)
+    {
+        this(outputStream, width, height, alpha, Deflater.DEFAULT_COMPRESSION, Filter.NONE, null);
+    }
+
+    /**
+     * @param outputStream where to write the PNG image, it is not closed by this writer
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param alpha whether the image is transparent
+     * @param compressionLevel the compression level, between 0 and 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param filter the filter applied to the rows before compressing them
+     * @param executor the executor used to compress bands of rows concurrently, {@code null} to compress them on the
+     *     current thread
+     */
+    public PNGStreamWriter(OutputStream outputStream, int width, int height, boolean alpha, int compressionLevel,
+        Filter filter, ExecutorService executor)
+    {
+        this.output = new DataOutputStream(outputStream);
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.bytesPerPixel = alpha ? 4 : 3;
+        this.rowLength = width * this.bytesPerPixel;
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.executor = executor;
+    }
+
+    /**
+     * Writes the PNG signature and the image header.
+     *
+     * @throws IOException if it fails to write
+     */
+    public void writeHeader() throws IOException
+    {
+        this.output.write(SIGNATURE);
+        ChunkOutputStream header = new ChunkOutputStream("IHDR", 13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(this.width);
+        headerData.writeInt(this.height);
+        headerData.writeByte(BIT_DEPTH);
+        headerData.writeByte(this.alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        // Deflate compression, adaptive filtering, no interlace.
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        header.close();
+
+        this.imageData = new ChunkOutputStream("IDAT", IDAT_SIZE);
+        // The first row is filtered as if it was preceded by a row of zeros.
+        if (this.executor == null) {
+            this.deflater = new Deflater(this.compressionLevel);
+            this.compressedImageData = new DeflaterOutputStream(this.imageData, this.deflater, IDAT_SIZE);
+            this.rowEncoder = new RowEncoder(new byte[this.rowLength]);
+        } else {
+            this.imageData.write(ZLIB_HEADER);
+            this.previousRow = new byte[this.rowLength];
+        }
+    }
+
+    /**
+     * Writes the next rows of the image.
+     *
+     * @param image the image holding the rows to write, starting from its first row
+     * @param rowCount the number of rows to write
+     * @throws IOException if it fails to write
+     */
+    public void writeRows(BufferedImage image, int rowCount) throws IOException
+    {
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        if (this.executor == null) {
+            for (int y = 0; y < rowCount; y++) {
+                this.compressedImageData.write(this.rowEncoder.encode(pixels, y));
+            }
+        } else {
+            writeBands(pixels, rowCount);
+        }
+        this.writtenRows += rowCount;
+    }
+
+    /**
+     * Writes the end of the image. The output stream is flushed but not closed.
+     *
+     * @throws IOException if it fails to write or if some rows of the image were not written
+     */
+    public void finish() throws IOException
+    {
+        if (this.writtenRows != this.height) {
+            throw new IOException(
+                String.format("Expected [%d] rows but [%d] rows were written.", this.height, this.writtenRows));
+        }
+        if (this.executor == null) {
+            this.compressedImageData.close();
+            this.deflater.end();
+        } else {
+            // Ends the deflate stream with an empty final block, followed by the checksum of the uncompressed data.
+            Deflater lastBlock = new Deflater(this.compressionLevel, true);
+            byte[] buffer = new byte[16];
+            try {
+                lastBlock.finish();
+                this.imageData.write(buffer, 0, lastBlock.deflate(buffer));
+            } finally {
+                lastBlock.end();
+            }
+            new DataOutputStream(this.imageData).writeInt((int) this.adler);
+            this.imageData.close();
+        }
+        new ChunkOutputStream("IEND", 0).close();
+        this.output.flush();
+    }
+
+    private void writeBands(int[] pixels, int rowCount) throws IOException
+    {
+        int bandRows = Math.max(1, BAND_SIZE / (this.rowLength + 1));
+        List<Future<Band>> bands = new ArrayList<>();
+        for (int firstRow = 0; firstRow < rowCount; firstRow += bandRows) {
+            int bandStart = firstRow;
+            int bandEnd = Math.min(rowCount, firstRow + bandRows);
+            byte[] bandPreviousRow = bandStart == 0 ? this.previousRow : toRaw(pixels, bandStart - 1, null);
+            bands.add(this.executor.submit(() -> compressBand(pixels, bandStart, bandEnd, bandPreviousRow)));
+        }
+        try {
+            for (Future<Band> future : bands) {
+                Band band = future.get();
+                this.imageData.write(band.data);
+                this.adler = combineAdler(this.adler, band.adler, band.length);
+            }
+        } catch (InterruptedException e) {
+            bands.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing the PNG image.");
+        } catch (ExecutionException e) {
+            bands.forEach(future -> future.cancel(true));
+            throw new IOException("Failed to compress the PNG image.", e.getCause());
+        }
+        this.previousRow = toRaw(pixels, rowCount - 1, null);
+    }
+
+    private Band compressBand(int[] pixels, int start, int end, byte[] previousRaw)
+    {
+        RowEncoder encoder = new RowEncoder(previousRaw.clone());
+        Deflater bandDeflater = new Deflater(this.compressionLevel, true);
+        Adler32 bandAdler = new Adler32();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[IDAT_SIZE];
+        try {
+            for (int y = start; y < end; y++) {
+                byte[] row = encoder.encode(pixels, y);
+                bandAdler.update(row);
+                bandDeflater.setInput(row);
+                while (!bandDeflater.needsInput()) {
+                    compressed.write(buffer, 0, bandDeflater.deflate(buffer));
+                }
+            }
+            // The sync flush ends the band on a byte boundary without ending the deflate stream.
+            int length;
+            do {
+                length = bandDeflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, length);
+            } while (length == buffer.length);
+        } finally {
+            bandDeflater.end();
+        }
+        return new Band(compressed.toByteArray(), bandAdler.getValue(), (long) (end - start) * (this.rowLength + 1));
+    }
+
+    private byte[] toRaw(int[] pixels, int y, byte[] row)
+    {
+        byte[] raw = row != null ? row : new byte[this.rowLength];
+        int offset = 0;
+        for (int x = y * this.width, end = x + this.width; x < end; x++) {
+            int pixel = pixels[x];
+            raw[offset++] = (byte) (pixel >> 16);
+            raw[offset++] = (byte) (pixel >> 8);
+            raw[offset++] = (byte) pixel;
+            if (this.alpha) {
+                raw[offset++] = (byte) (pixel >>> 24);
+            }
+        }
+        return raw;
+    }
+
+    // See adler32_combine from zlib.
+    private static long combineAdler(long adler1, long adler2, long length2)
+    {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * A band of rows, filtered and compressed.
+     */
+    private static final class Band
+    {
+        private final byte[] data;
+
+        private final long adler;
+
+        private final long length;
+
+        Band(byte[] data, long adler, long length)
+        {
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Converts the pixels of consecutive rows to filtered PNG rows.
+     */
+    private final class RowEncoder
+    {
+        private byte[] previous;
+
+        private byte[] current;
+
+        private byte[] filtered;
+
+        private byte[] candidate;
+
+        RowEncoder(byte[] previousRow)
+        {
+            this.previous = previousRow;
+            this.current = new byte[rowLength];
+            this.filtered = new byte[rowLength + 1];
+            if (filter == Filter.ADAPTIVE) {
+                this.candidate = new byte[rowLength + 1];
+            }
+        }
+
+        /**
+         * @return the filtered row, which is overwritten by the next call
+         */
+        byte[] encode(int[] pixels, int y)
+        {
+            toRaw(pixels, y, this.current);
+            if (filter == Filter.ADAPTIVE) {
+                long bestSum = Long.MAX_VALUE;
+                for (Filter rowFilter : Filter.values()) {
+                    if (rowFilter != Filter.ADAPTIVE) {
+                        apply(rowFilter, this.candidate);
+                        long sum = getAbsoluteSum(this.candidate);
+                        if (sum < bestSum) {
+                            bestSum = sum;
+                            byte[] best = this.candidate;
+                            this.candidate = this.filtered;
+                            this.filtered = best;
+                        }
+                    }
+                }
+            } else {
+                apply(filter, this.filtered);
+            }
+
+            byte[] raw = this.current;
+            this.current = this.previous;
+            this.previous = raw;
+            return this.filtered;
+        }
+
+        private void apply(Filter rowFilter, byte[] row)
+        {
+            row[0] = (byte) rowFilter.ordinal();
+            for (int i = 0; i < rowLength; i++) {
+                int value = this.current[i] & 0xFF;
+                int left = i >= bytesPerPixel ? this.current[i - bytesPerPixel] & 0xFF : 0;
+                int up = this.previous[i] & 0xFF;
+                int upLeft = i >= bytesPerPixel ? this.previous[i - bytesPerPixel] & 0xFF : 0;
+                switch (rowFilter) {
+                    case SUB:
+                        value -= left;
+                        break;
+                    case UP:
+                        value -= up;
+                        break;
+                    case AVERAGE:
+                        value -= (left + up) >> 1;
+                        break;
+                    case PAETH:
+                        value -= paeth(left, up, upLeft);
+                        break;
+                    default:
+                        break;
+                }
+                row[i + 1] = (byte) value;
+            }
+        }
+
+        private int paeth(int left, int up, int upLeft)
+        {
+            int estimate = left + up - upLeft;
+            int leftDistance = Math.abs(estimate - left);
+            int upDistance = Math.abs(estimate - up);
+            int upLeftDistance = Math.abs(estimate - upLeft);
+            if (leftDistance <= upDistance && leftDistance <= upLeftDistance) {
+                return left;
+            } else if (upDistance <= upLeftDistance) {
+                return up;
+            } else {
+                return upLeft;
+            }
+        }
+
+        private long getAbsoluteSum(byte[] row)
+        {
+            long sum = 0;
+            for (int i = 1; i < row.length; i++) {
+                sum += Math.abs(row[i]);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Splits the data written to it into PNG chunks of the given type.
+     */
+    private final class ChunkOutputStream extends OutputStream
+    {
+        private final byte[] type;
+
+        private final byte[] buffer;
+
+        private int size;
+
+        private boolean closed;
+
+        ChunkOutputStream(String type, int maxSize)
+        {
+            this.type = type.getBytes(StandardCharsets.US_ASCII);
+            this.buffer = new byte[maxSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (this.size == this.buffer.length) {
+                writeChunk();
+            }
+            this.buffer[this.size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            int start = offset;
+            int remaining = length;
+            while (remaining > 0) {
+                if (this.size == this.buffer.length) {
+                    writeChunk();
+                }
+                int count = Math.min(remaining, this.buffer.length - this.size);
+                System.arraycopy(bytes, start, this.buffer, this.size, count);
+                this.size += count;
+                start += count;
+                remaining -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!this.closed) {
+                this.closed = true;
+                // Chunks without data, like IEND, are written too.
+                if (this.size > 0 || this.buffer.length == 0) {
+                    writeChunk();
+                }
+            }
+        }
+
+        private void writeChunk() throws IOException
+        {
+            CRC32 crc = new CRC32();
+            crc.update(this.type);
+            crc.update(this.buffer, 0, this.size);
+            output.writeInt(this.size);
+            output.write(this.type);
+            output.write(this.buffer, 0, this.size);
+            output.writeInt((int) crc.getValue());
+            this.size = 0;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import com.xwiki.diagram.export.DiagramExportConfiguration;
+
+/**
+ * Creates the {@link PNGStreamWriter}s used to encode the PNG exports, configured with the compression level and the
+ * row filter from the {@link DiagramExportConfiguration}. The rows of the exports are compressed on a pool of threads
+ * shared by all the exports.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@Component(roles = PNGStreamWriterFactory.class)
+@Singleton
+public class PNGStreamWriterFactory implements Initializable, Disposable
+{
+    @Inject
+    private DiagramExportConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private ExecutorService encoderExecutor;
+
+    private PNGStreamWriter.Filter filter;
+
+    @Override
+    public void initialize()
+    {
+        int threadCount = this.configuration.getPNGEncoderThreadCount();
+        if (threadCount > 1) {
+            this.encoderExecutor = Executors.newFixedThreadPool(threadCount,
+                new BasicThreadFactory.Builder().namingPattern("Diagram PNG Encoder Thread %d").daemon(true).build());
+        }
+
+        String filterName = this.configuration.getPNGFilter();
+        try {
+            this.filter = PNGStreamWriter.Filter.valueOf(filterName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            this.logger.warn("Unknown PNG filter [{}], the rows of the PNG exports won't be filtered.", filterName);
+            this.filter = PNGStreamWriter.Filter.NONE;
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.encoderExecutor != null) {
+            this.encoderExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param outputStream where to write the PNG image, it is not closed by the writer
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param alpha whether the image is transparent
+     * @return a new writer for the given PNG image
+     */
+    public PNGStreamWriter createWriter(OutputStream outputStream, int width, int height, boolean alpha)
+    {
+        return new PNGStreamWriter(outputStream, width, height, alpha, this.configuration.getPNGCompressionLevel(),
+            this.filter, this.encoderExecutor);
+    }
+}
@@ -21,6 +21,7 @@ package com.xwiki.diagram.export.script;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -41,6 +42,7 @@ import org.xwiki.stability.Unstable;
 import com.xwiki.diagram.export.DiagramExportConfiguration;
 import com.xwiki.diagram.export.internal.DiagramExportRequest;
 import com.xwiki.diagram.export.internal.DiagramExportRequestFactory;
+import com.xwiki.diagram.export.internal.DiagramExportScheduler;
 import com.xwiki.diagram.export.internal.HTTPDiagramExporter;
 
 /**
@@ -67,6 +69,9 @@ public class DiagramExporterScriptService implements ScriptService
     @Inject
     private DiagramExportRequestFactory diagramExportRequestFactory;
 
+    @Inject
+    private DiagramExportScheduler exportScheduler;
+
     @Inject
     private ContextualAuthorizationManager authorization;
 
@@ -74,7 +79,10 @@ public class DiagramExporterScriptService implements ScriptService
     private DocumentAccessBridge documentAccessBridge;
 
     /**
-     * Exports a diagram.
+     * Exports a diagram. The number of diagrams rendered at the same time is limited, so the export may have to wait
+     * for the others to finish. It fails with a {@link HttpServletResponse#SC_SERVICE_UNAVAILABLE} status if it can't
+     * be rendered in time, and with a {@link HttpServletResponse#SC_REQUEST_ENTITY_TOO_LARGE} status if it needs more
+     * memory than the whole export memory budget.
      * 
      * @param request the export request
      * @param response the response to write the output to
@@ -86,11 +94,23 @@ public class DiagramExporterScriptService implements ScriptService
         if (diagramExportRequest == null) {
             return;
         }
+        if (this.exportScheduler.exceedsMemoryBudget(diagramExportRequest)) {
+            // Retrying wouldn't help, the export can't be rendered even when the server is idle.
+            this.logger.warn("Rejected the export of the [{}] diagram because it is too large.",
+                diagramExportRequest.diagramReference);
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                "The diagram export is too large. Please export it with a smaller size or scale.");
+            return;
+        }
 
         try {
             long start = System.currentTimeMillis();
 
-            this.diagramExporter.export(diagramExportRequest, response);
+            // The cached exports are not rendered so they don't need a render slot.
+            if (!this.diagramExporter.export(diagramExportRequest, response, this.exportScheduler::acquire)) {
+                rejectExport(diagramExportRequest, response);
+                return;
+            }
 
             long memory = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
             long duration = System.currentTimeMillis() - start;
@@ -111,6 +131,17 @@ public class DiagramExporterScriptService implements ScriptService
         }
     }
 
+    private void rejectExport(DiagramExportRequest diagramExportRequest, HttpServletResponse response)
+        throws IOException
+    {
+        this.logger.warn("Rejected the export of the [{}] diagram because the server is busy.",
+            diagramExportRequest.diagramReference);
+        response.setHeader("Retry-After",
+            String.valueOf(TimeUnit.MILLISECONDS.toSeconds(this.configuration.getExportQueueTimeout()) + 1));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Too many diagrams are being exported. Please try again later.");
+    }
+
     private DiagramExportRequest validateRequest(HttpServletRequest request, HttpServletResponse response)
         throws IOException
     {
@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.diagram.export.DiagramExportConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramExportCache}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramExportCacheTest
+{
+    @TempDir
+    private static File temporaryDirectory;
+
+    @InjectMockComponents
+    private DiagramExportCache cache;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private DiagramExportConfiguration configuration;
+
+    @BeforeComponent
+    void beforeComponent() throws Exception
+    {
+        when(this.environment.getTemporaryDirectory())
+            .thenReturn(Files.createTempDirectory(temporaryDirectory.toPath(), "tmp").toFile());
+        when(this.configuration.getCacheMaxSize()).thenReturn(10L);
+        when(this.configuration.getCacheMaxEntrySize()).thenReturn(6L);
+    }
+
+    @Test
+    void getKey()
+    {
+        DiagramExportRequest request = new DiagramExportRequest();
+        request.format = DiagramExportRequest.FORMAT_PNG;
+        request.xml = "<mxGraphModel/>";
+        String key = this.cache.getKey(request);
+
+        assertEquals(key, this.cache.getKey(request));
+        request.width = 100;
+        assertNotEquals(key, this.cache.getKey(request));
+        request.width = null;
+        request.format = DiagramExportRequest.FORMAT_PDF;
+        assertNotEquals(key, this.cache.getKey(request));
+    }
+
+    @Test
+    void putAndGet() throws Exception
+    {
+        assertFalse(this.cache.get("first", new ByteArrayOutputStream()));
+
+        this.cache.put("first", createTemporaryFile("12345"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(this.cache.get("first", output));
+        assertEquals("12345", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void evictTheLeastRecentlyUsedExports() throws Exception
+    {
+        this.cache.put("first", createTemporaryFile("1234"));
+        this.cache.put("second", createTemporaryFile("1234"));
+        assertTrue(this.cache.get("first", new ByteArrayOutputStream()));
+
+        // The second export is the least recently used one.
+        this.cache.put("third", createTemporaryFile("1234"));
+
+        assertTrue(this.cache.get("first", new ByteArrayOutputStream()));
+        assertFalse(this.cache.get("second", new ByteArrayOutputStream()));
+        assertTrue(this.cache.get("third", new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void putTooLargeExport() throws Exception
+    {
+        File file = createTemporaryFile("1234567");
+
+        this.cache.put("large", file);
+
+        assertFalse(this.cache.get("large", new ByteArrayOutputStream()));
+        assertFalse(file.exists());
+    }
+
+    private File createTemporaryFile(String content) throws Exception
+    {
+        File file = this.cache.createTemporaryFile();
+        Files.writeString(file.toPath(), content);
+        return file;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.diagram.export.DiagramExportConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramExportScheduler}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramExportSchedulerTest
+{
+    @InjectMockComponents
+    private DiagramExportScheduler scheduler;
+
+    @MockComponent
+    private DiagramExportConfiguration configuration;
+
+    @MockComponent
+    private DiagramExporter exporter;
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.configuration.getMaxConcurrentExports()).thenReturn(2);
+        when(this.configuration.getMaxQueuedExports()).thenReturn(1);
+        when(this.configuration.getExportQueueTimeout()).thenReturn(0L);
+        when(this.configuration.getExportMemoryBudget()).thenReturn(1000L);
+    }
+
+    @Test
+    void estimateMemory()
+    {
+        DiagramExportRequest request = createRequest(10, 20);
+        assertEquals(800, this.scheduler.estimateMemory(request));
+
+        request.width = null;
+        assertEquals(80000, this.scheduler.estimateMemory(request));
+
+        // Only one tile of the large PNG exports is held in memory.
+        request = createRequest(100, 1000);
+        when(this.exporter.isTiled(request)).thenReturn(true);
+        when(this.exporter.getTileHeight(request)).thenReturn(10);
+        assertEquals(4000, this.scheduler.estimateMemory(request));
+    }
+
+    @Test
+    void acquireLimitsTheConcurrentExports() throws Exception
+    {
+        DiagramExportScheduler.Slot first = this.scheduler.acquire(createRequest(10, 10));
+        DiagramExportScheduler.Slot second = this.scheduler.acquire(createRequest(10, 10));
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(this.scheduler.acquire(createRequest(10, 10)));
+
+        first.close();
+        assertNotNull(this.scheduler.acquire(createRequest(10, 10)));
+    }
+
+    @Test
+    void acquireLimitsTheMemory() throws Exception
+    {
+        // An export that would exceed the budget on its own is rejected right away.
+        assertNull(this.scheduler.acquire(createRequest(100, 100)));
+
+        DiagramExportScheduler.Slot slot = this.scheduler.acquire(createRequest(10, 20));
+        assertNotNull(slot);
+        assertNull(this.scheduler.acquire(createRequest(10, 10)));
+
+        slot.close();
+        assertNotNull(this.scheduler.acquire(createRequest(10, 10)));
+    }
+
+    @Test
+    void exceedsMemoryBudget() throws Exception
+    {
+        assertTrue(this.scheduler.exceedsMemoryBudget(createRequest(100, 100)));
+        assertFalse(this.scheduler.exceedsMemoryBudget(createRequest(10, 20)));
+
+        // A busy server doesn't make an export too large.
+        DiagramExportScheduler.Slot slot = this.scheduler.acquire(createRequest(10, 20));
+        assertNull(this.scheduler.acquire(createRequest(10, 20)));
+        assertFalse(this.scheduler.exceedsMemoryBudget(createRequest(10, 20)));
+        slot.close();
+    }
+
+    @Test
+    void acquireWaitsForARenderSlot() throws Exception
+    {
+        when(this.configuration.getExportQueueTimeout()).thenReturn(10000L);
+        when(this.configuration.getMaxConcurrentExports()).thenReturn(1);
+        DiagramExportScheduler.Slot slot = this.scheduler.acquire(createRequest(10, 10));
+
+        Thread releasingThread = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            slot.close();
+        });
+        releasingThread.start();
+
+        assertNotNull(this.scheduler.acquire(createRequest(10, 10)));
+        releasingThread.join();
+    }
+
+    private DiagramExportRequest createRequest(Integer width, Integer height)
+    {
+        DiagramExportRequest request = new DiagramExportRequest();
+        request.format = DiagramExportRequest.FORMAT_PNG;
+        request.width = width;
+        request.height = height;
+        return request;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.mxgraph.view.mxGraph;
+import com.xwiki.diagram.export.DiagramExportConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramExporter}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+@ComponentTest
+class DiagramExporterTest
+{
+    private static final String KEY = "key";
+
+    /**
+     * A PDF page object, as opposed to the page tree whose type is "Pages".
+     */
+    private static final Pattern PDF_PAGE = Pattern.compile("/Type\\s*/Page(?![a-zA-Z])");
+
+    /**
+     * A diagram whose shapes, edge and labels cross the bands of rows in which the large PNG exports are rendered.
+     */
+    private static final String DIAGRAM = "<mxGraphModel><root><mxCell id=\"0\"/><mxCell id=\"1\" parent=\"0\"/>"
+        + "<mxCell id=\"2\" value=\"First&lt;br&gt;shape\" style=\"rounded=1;\" vertex=\"1\" parent=\"1\">"
+        + "<mxGeometry x=\"20\" y=\"10\" width=\"80\" height=\"40\" as=\"geometry\"/></mxCell>"
+        + "<mxCell id=\"3\" value=\"Second shape\" style=\"ellipse;\" vertex=\"1\" parent=\"1\">"
+        + "<mxGeometry x=\"100\" y=\"160\" width=\"80\" height=\"60\" as=\"geometry\"/></mxCell>"
+        + "<mxCell id=\"4\" value=\"An edge label&lt;br&gt;on two lines\" edge=\"1\" parent=\"1\" source=\"2\" "
+        + "target=\"3\"><mxGeometry relative=\"1\" as=\"geometry\"/></mxCell>"
+        + "</root></mxGraphModel>";
+
+    @InjectMockComponents
+    private DiagramExporter exporter;
+
+    @MockComponent
+    private DiagramExportCache cache;
+
+    @MockComponent
+    private DiagramXMLParser xmlParser;
+
+    @MockComponent
+    private DiagramExportConfiguration configuration;
+
+    @MockComponent
+    private PNGStreamWriterFactory pngWriterFactory;
+
+    @MockComponent
+    private DiagramPageExportExecutor pageExecutor;
+
+    private final Logger logger = mock(Logger.class);
+
+    private final DiagramExporter.RenderSlotSupplier slotSupplier = mock(DiagramExporter.RenderSlotSupplier.class);
+
+    private final DiagramExportRequest request = new DiagramExportRequest();
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp()
+    {
+        this.request.format = DiagramExportRequest.FORMAT_PNG;
+        this.request.xml = "<mxGraphModel/>";
+        when(this.cache.isEnabled()).thenReturn(true);
+        when(this.cache.getKey(this.request)).thenReturn(KEY);
+        ReflectionUtils.setFieldValue(this.exporter, "logger", this.logger);
+    }
+
+    @Test
+    void exportCachedWithoutRenderSlot() throws Exception
+    {
+        when(this.cache.get(KEY, this.output)).thenReturn(true);
+
+        assertTrue(this.exporter.export(this.request, this.output, this.slotSupplier));
+
+        verifyNoInteractions(this.slotSupplier);
+    }
+
+    @Test
+    void exportRejectedWithoutRenderSlot() throws Exception
+    {
+        // The render slot is requested only once the export is known to be missing from the cache.
+        assertFalse(this.exporter.export(this.request, this.output, this.slotSupplier));
+
+        verify(this.slotSupplier).acquire(this.request);
+        verify(this.cache, never()).createTemporaryFile();
+        verify(this.cache, never()).put(any(), any());
+        verifyNoInteractions(this.xmlParser);
+        assertEquals(0, this.output.size());
+    }
+
+    @Test
+    void exportInterruptedWhileWaitingForRenderSlot() throws Exception
+    {
+        when(this.slotSupplier.acquire(this.request)).thenThrow(new InterruptedException());
+
+        try {
+            assertFalse(this.exporter.export(this.request, this.output, this.slotSupplier));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        verifyNoInteractions(this.xmlParser);
+    }
+
+    @Test
+    void exportLargePNGInBands() throws Exception
+    {
+        DiagramXMLParser parser = new DiagramXMLParser();
+        when(this.xmlParser.parse(DIAGRAM)).thenAnswer(invocation -> parser.parse(DIAGRAM));
+        when(this.pngWriterFactory.createWriter(any(), anyInt(), anyInt(), anyBoolean())).thenAnswer(
+            invocation -> new PNGStreamWriter(invocation.getArgument(0), invocation.getArgument(1),
+                invocation.getArgument(2), invocation.getArgument(3)));
+        when(this.slotSupplier.acquire(this.request)).thenReturn(mock(DiagramExportScheduler.Slot.class));
+        when(this.cache.isEnabled()).thenReturn(false);
+        this.request.xml = DIAGRAM;
+        this.request.width = 200;
+        this.request.height = 240;
+
+        when(this.configuration.getExportTileArea()).thenReturn(200L * 240);
+        assertFalse(this.exporter.isTiled(this.request));
+        BufferedImage image = exportPNG();
+
+        // Render the diagram in bands of 35 rows.
+        when(this.configuration.getExportTileArea()).thenReturn(200L * 35);
+        assertTrue(this.exporter.isTiled(this.request));
+        BufferedImage tiledImage = exportPNG();
+
+        assertEquals(image.getWidth(), tiledImage.getWidth());
+        assertEquals(image.getHeight(), tiledImage.getHeight());
+        boolean drawn = false;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRGB(x, y), tiledImage.getRGB(x, y), "Pixel (" + x + ", " + y + ")");
+                drawn |= image.getRGB(x, y) != 0;
+            }
+        }
+        assertTrue(drawn);
+    }
+
+    private BufferedImage exportPNG() throws Exception
+    {
+        this.output.reset();
+        assertTrue(this.exporter.export(this.request, this.output, this.slotSupplier));
+        return ImageIO.read(new ByteArrayInputStream(this.output.toByteArray()));
+    }
+
+    @Test
+    void exportAllPagesAsPDF() throws Exception
+    {
+        // Add an invalid page between the two pages of the diagram.
+        String xml = IOUtils.toString(getClass().getResourceAsStream("/multiPageDiagram.xml"), StandardCharsets.UTF_8)
+            .replaceFirst("</diagram>", "</diagram><diagram id=\"invalid\" name=\"Invalid\"><invalid/></diagram>");
+        DiagramXMLParser parser = new DiagramXMLParser();
+        when(this.xmlParser.parsePages(xml)).thenAnswer(invocation -> parser.parsePages(xml));
+        mockPDFExport(xml);
+
+        assertTrue(this.exporter.export(this.request, this.output, this.slotSupplier));
+
+        // The invalid page is exported blank, so that the page numbers match the diagram.
+        assertEquals(3, countPDFPages(this.output.toByteArray()));
+        verify(this.logger).warn("Page [{}] of the specified diagram is not valid and thus it can't be drawn.", 2);
+    }
+
+    @Test
+    void exportAllPagesAsPDFWhenAPageFails() throws Exception
+    {
+        IllegalStateException failure = new IllegalStateException("Failed to decode the page.");
+        Supplier<mxGraph> failingPage = () -> {
+            throw failure;
+        };
+        when(this.xmlParser.parsePages(this.request.xml)).thenReturn(List.of(() -> null, failingPage));
+        DiagramExportScheduler.Slot slot = mockPDFExport(this.request.xml);
+
+        IOException exception = assertThrows(IOException.class,
+            () -> this.exporter.export(this.request, this.output, this.slotSupplier));
+
+        assertSame(failure, exception.getCause());
+        verify(slot).close();
+    }
+
+    private DiagramExportScheduler.Slot mockPDFExport(String xml) throws Exception
+    {
+        this.request.format = DiagramExportRequest.FORMAT_PDF;
+        this.request.allPages = true;
+        this.request.xml = xml;
+        when(this.cache.isEnabled()).thenReturn(false);
+        DiagramExportScheduler.Slot slot = mock(DiagramExportScheduler.Slot.class);
+        when(this.slotSupplier.acquire(this.request)).thenReturn(slot);
+        // Process the pages right away, on the current thread.
+        when(this.pageExecutor.submit(any())).thenAnswer(invocation -> {
+            FutureTask<Object> task = new FutureTask<>(invocation.<Callable<Object>>getArgument(0));
+            task.run();
+            return task;
+        });
+        return slot;
+    }
+
+    private static int countPDFPages(byte[] pdf)
+    {
+        Matcher matcher = PDF_PAGE.matcher(new String(pdf, StandardCharsets.ISO_8859_1));
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.diagram.export.internal;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for {@link PNGStreamWriter}.
+ *
+ * @version $Id$
+ * @since 2.0.1
+ */
+class PNGStreamWriterTest
+{
+    @Test
+    void writeInTiles() throws Exception
+    {
+        BufferedImage tile = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PNGStreamWriter writer = new PNGStreamWriter(output, 300, 500, true);
+
+        writer.writeHeader();
+        fill(tile, Color.RED);
+        writer.writeRows(tile, 200);
+        fill(tile, new Color(0, 0, 255, 128));
+        writer.writeRows(tile, 200);
+        fill(tile, Color.GREEN);
+        writer.writeRows(tile, 100);
+        writer.finish();
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(300, image.getWidth());
+        assertEquals(500, image.getHeight());
+        assertEquals(Color.RED.getRGB(), image.getRGB(299, 199));
+        assertEquals(new Color(0, 0, 255, 128).getRGB(), image.getRGB(0, 200));
+        assertEquals(Color.GREEN.getRGB(), image.getRGB(150, 499));
+    }
+
+    @Test
+    void writeOpaqueImage() throws Exception
+    {
+        BufferedImage tile = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        fill(tile, Color.ORANGE);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PNGStreamWriter writer = new PNGStreamWriter(output, 10, 10, false);
+
+        writer.writeHeader();
+        writer.writeRows(tile, 10);
+        writer.finish();
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(Color.ORANGE.getRGB(), image.getRGB(5, 5));
+    }
+
+    @Test
+    void writeWithFilters() throws Exception
+    {
+        BufferedImage tile = createGradient(64, 64);
+        for (PNGStreamWriter.Filter filter : PNGStreamWriter.Filter.values()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            PNGStreamWriter writer = new PNGStreamWriter(output, 64, 128, true, 9, filter, null);
+
+            writer.writeHeader();
+            writer.writeRows(tile, 64);
+            writer.writeRows(tile, 64);
+            writer.finish();
+
+            assertImage(tile, ImageIO.read(new ByteArrayInputStream(output.toByteArray())));
+        }
+    }
+
+    @Test
+    void writeInParallel() throws Exception
+    {
+        // Large enough to be split in several bands.
+        BufferedImage tile = createGradient(1000, 300);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (PNGStreamWriter.Filter filter : PNGStreamWriter.Filter.values()) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                PNGStreamWriter writer = new PNGStreamWriter(output, 1000, 600, true, 1, filter, executor);
+
+                writer.writeHeader();
+                writer.writeRows(tile, 300);
+                writer.writeRows(tile, 300);
+                writer.finish();
+
+                assertImage(tile, ImageIO.read(new ByteArrayInputStream(output.toByteArray())));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void finishWithMissingRows() throws Exception
+    {
+        PNGStreamWriter writer = new PNGStreamWriter(new ByteArrayOutputStream(), 10, 10, false);
+        writer.writeHeader();
+        writer.writeRows(new BufferedImage(10, 5, BufferedImage.TYPE_INT_RGB), 5);
+
+        assertThrows(IOException.class, writer::finish);
+    }
+
+    private BufferedImage createGradient(int width, int height)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, new Color(x % 256, y % 256, (x + y) % 256, (x * y) % 256).getRGB());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Checks that the image is made of the given tile repeated vertically.
+     */
+    private void assertImage(BufferedImage tile, BufferedImage image)
+    {
+        assertEquals(tile.getWidth(), image.getWidth());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(tile.getRGB(x, y % tile.getHeight()), image.getRGB(x, y));
+            }
+        }
+    }
+
+    private void fill(BufferedImage image, Color color)
+    {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.dispose();
+    }
+}
@@ -20,6 +20,8 @@
 package com.xwiki.diagram.internal;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.function.Supplier;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
@@ -54,6 +56,22 @@ public class DiagramXMLParserTest
         assertEquals(80, (int) bounds.getHeight());
     }
 
+    @Test
+    public void parsePages() throws Exception
+    {
+        String xml = getDiagramXML("/multiPageDiagram.xml");
+        List<Supplier<mxGraph>> pages = this.mocker.getComponentUnderTest().parsePages(xml);
+        assertEquals(2, pages.size());
+
+        mxRectangle bounds = pages.get(0).get().getGraphBounds();
+        assertEquals(80, (int) bounds.getWidth());
+        assertEquals(80, (int) bounds.getHeight());
+
+        bounds = pages.get(1).get().getGraphBounds();
+        assertEquals(40, (int) bounds.getWidth());
+        assertEquals(20, (int) bounds.getHeight());
+    }
+
     private String getDiagramXML(String fileName) throws IOException
     {
         return IOUtils.toString(this.getClass().getResourceAsStream(fileName), "UTF-8");